@@ -0,0 +1,189 @@
+import java.math.BigDecimal;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class runs the benchmarked operations against Cafe, see bench.CafeOps.
+ * Customer credentials come from data/users.csv; orders are generated on the
+ * server with generate_series so seeding a large table takes one round trip.
+ */
+public class CafeBenchOps implements bench.CafeOps {
+
+   private Cafe _esql = null;
+   private final List<String[]> _customers = new ArrayList<String[]>();
+   private String _manager = null;
+
+   public void open(String dbname, String dbport, String user, String dataDir, int orders) throws Exception {
+      readUsers(new File(dataDir, "users.csv"));
+      if (this._customers.isEmpty() || this._manager == null)
+         throw new IllegalStateException("users.csv must hold at least one Customer and one Manager");
+      this._esql = new Cafe(dbname, dbport, user, "");
+      seedOrders(orders);
+   }// end open
+
+   public void close() {
+      if (this._esql != null)
+         this._esql.cleanup();
+      this._esql = null;
+   }// end close
+
+   public int customers() {
+      return this._customers.size();
+   }// end customers
+
+   public boolean logIn(int customer) throws Exception {
+      String[] user = this._customers.get(customer % this._customers.size());
+      Session session = Cafe.logIn(this._esql, user[0], user[1]);
+      if (session == null)
+         return false;
+      this._esql.getSessions().close(session);
+      return true;
+   }// end logIn
+
+   public long menuListing() throws Exception {
+      MenuSnapshot menu = this._esql.getMenu();
+      long sum = 0;
+      for (int i = 0; i < menu.size(); ++i)
+         sum += menu.name(i).length() + menu.type(i).length() + menu.price(i).hashCode();
+      return sum;
+   }// end menuListing
+
+   public long menuListingUncached() throws Exception {
+      final long[] sum = new long[1];
+      this._esql.streamQuery("SELECT * FROM MENU", 0, row -> {
+         sum[0] += row.getString(1).length() + row.getBigDecimal(3).hashCode();
+      });
+      return sum[0];
+   }// end menuListingUncached
+
+   public int menuSearch(String query) throws Exception {
+      MenuSnapshot menu = this._esql.getMenu();
+      return menu.search().search(query, menu.size()).length;
+   }// end menuSearch
+
+   public int placeOrder(int customer, int items, int offset) throws Exception {
+      return Cafe.placeOrder(this._esql, this._customers.get(customer % this._customers.size())[0], items(items, offset));
+   }// end placeOrder
+
+   public int openOrder(int customer) throws Exception {
+      return placeOrder(customer, 1, 0);
+   }// end openOrder
+
+   /*
+    * Adds an item to the order and takes it off again, or the other way
+    * round when the order already has it, leaving the order as it was for
+    * the next invocation.
+    **/
+   public BigDecimal updateOrder(int orderID, int offset) throws Exception {
+      String item = items(1, offset).get(0);
+      try {
+         Cafe.addItemToOrder(this._esql, orderID, item);
+         return Cafe.removeItemFromOrder(this._esql, orderID, item);
+      } catch (IllegalArgumentException alreadyOrdered) {
+         Cafe.removeItemFromOrder(this._esql, orderID, item);
+         return Cafe.addItemToOrder(this._esql, orderID, item);
+      } // end try
+   }// end updateOrder
+
+   public long customerHistory(int customer) throws Exception {
+      final long[] sum = new long[1];
+      Cafe.orderHistory(this._esql, this._customers.get(customer % this._customers.size())[0], false,
+            row -> sum[0] += row.getInt(1));
+      return sum[0];
+   }// end customerHistory
+
+   public long managerHistory() throws Exception {
+      final long[] sum = new long[1];
+      Cafe.orderHistory(this._esql, this._manager, true, row -> sum[0] += row.getInt(1));
+      return sum[0];
+   }// end managerHistory
+
+   /*
+    * count distinct menu items, starting at offset and wrapping around
+    **/
+   private List<String> items(int count, int offset) throws Exception {
+      MenuSnapshot menu = this._esql.getMenu();
+      count = Math.min(count, menu.size());
+      List<String> items = new ArrayList<String>(count);
+      for (int i = 0; i < count; ++i)
+         items.add(MenuSnapshot.key(menu.name(Math.floorMod(offset + i, menu.size()))));
+      return items;
+   }// end items
+
+   /*
+    * users.csv rows are login;phoneNum;password;favItems;type
+    **/
+   private void readUsers(File file) throws IOException {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(";", -1);
+            if (fields.length < 5)
+               continue;
+            if (fields[4].trim().equals("Customer"))
+               this._customers.add(new String[] { fields[0], fields[2] });
+            else if (fields[4].trim().equals("Manager") && this._manager == null)
+               this._manager = fields[0];
+         } // end while
+      } finally {
+         reader.close();
+      } // end try
+   }// end readUsers
+
+   /*
+    * Tops the Orders table up to the requested size. Generated orders belong
+    * to the customers from users.csv, are spread over the last 30 days with
+    * one in ten unpaid, and hold one to three items each.
+    **/
+   private void seedOrders(final int target) throws Exception {
+      Long existing = this._esql.queryForObject("SELECT count(*) FROM ORDERS", row -> row.getLong(1));
+      final int missing = (int) Math.max(0, target - existing);
+      if (missing == 0)
+         return;
+      System.out.println("Seeding " + missing + " orders...");
+
+      final String[] logins = new String[this._customers.size()];
+      for (int i = 0; i < logins.length; ++i)
+         logins[i] = this._customers.get(i)[0];
+      final List<String> menu = new ArrayList<String>(Arrays.asList(names()));
+
+      this._esql.inTransaction(() -> {
+         Integer from = this._esql.queryForObject("SELECT COALESCE(MAX(orderid), 0) FROM ORDERS", row -> row.getInt(1));
+         this._esql.executeUpdate(
+               "INSERT INTO ORDERS (login, paid, timeStampRecieved, total) "
+                     + "SELECT (?::varchar[])[1 + g % ?], g % 10 <> 0, NOW() - (g % 43200) * '1 minute'::INTERVAL, 0 "
+                     + "FROM generate_series(1, ?) g",
+               logins, logins.length, missing);
+         this._esql.executeUpdate(
+               "INSERT INTO ITEMSTATUS (orderid, itemName, lastUpdated, status, orderTime) "
+                     + "SELECT o.orderid, (?::varchar[])[1 + (o.orderid + i) % ?], o.timeStampRecieved, "
+                     + "CASE WHEN o.paid THEN 'Finished' ELSE 'Started' END, o.timeStampRecieved "
+                     + "FROM ORDERS o, generate_series(0, o.orderid % 3) i WHERE o.orderid > ?",
+               menu.toArray(new String[0]), menu.size(), from);
+         this._esql.executeUpdate(
+               "UPDATE ORDERS o SET total = s.total FROM "
+                     + "(SELECT i.orderid, SUM(m.price) AS total FROM ITEMSTATUS i JOIN MENU m ON m.itemName = i.itemName "
+                     + "WHERE i.orderid > ? GROUP BY i.orderid) s WHERE o.orderid = s.orderid",
+               from);
+         return null;
+      });
+      this._esql.executeUpdate("ANALYZE ORDERS");
+      this._esql.executeUpdate("ANALYZE ITEMSTATUS");
+      System.out.println("Done");
+   }// end seedOrders
+
+   private String[] names() throws Exception {
+      MenuSnapshot menu = this._esql.getMenu();
+      String[] names = new String[menu.size()];
+      for (int i = 0; i < names.length; ++i)
+         names[i] = MenuSnapshot.key(menu.name(i));
+      return names;
+   }// end names
+
+}// end CafeBenchOps
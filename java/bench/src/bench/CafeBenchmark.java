@@ -0,0 +1,135 @@
+package bench;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the data-access paths behind the Cafe menus. Each
+ * benchmark reports throughput and the sampled latency distribution
+ * (p50/p90/p99/p99.9 and max), so a change to the access layer can be
+ * compared run against run.
+ *
+ * The database is chosen with -Dbench.db, -Dbench.port and -Dbench.user and
+ * must have been created with sql/scripts/create_db.sh; -Dbench.orders sets
+ * the number of orders it is seeded up to. java/scripts/bench.sh passes
+ * these on.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class CafeBenchmark {
+
+   /**
+    * One connected Cafe shared by all benchmark threads.
+    */
+   @State(Scope.Benchmark)
+   public static class Db {
+
+      CafeOps ops;
+      final AtomicInteger next = new AtomicInteger();
+
+      @Setup(Level.Trial)
+      public void open() throws Exception {
+         this.ops = (CafeOps) Class.forName("CafeBenchOps").getDeclaredConstructor().newInstance();
+         this.ops.open(System.getProperty("bench.db"), System.getProperty("bench.port", "5432"),
+               System.getProperty("bench.user"), System.getProperty("bench.data", "data"),
+               Integer.getInteger("bench.orders", 100000));
+      }// end open
+
+      @TearDown(Level.Trial)
+      public void close() {
+         this.ops.close();
+      }// end close
+
+      // rotates through customers and menu items between invocations
+      int next() {
+         return this.next.getAndIncrement() & Integer.MAX_VALUE;
+      }// end next
+
+   }// end Db
+
+   /**
+    * An unpaid order owned by one benchmark thread.
+    */
+   @State(Scope.Thread)
+   public static class OpenOrder {
+
+      int orderID;
+
+      @Setup(Level.Trial)
+      public void open(Db db) throws Exception {
+         this.orderID = db.ops.openOrder(db.next());
+      }// end open
+
+   }// end OpenOrder
+
+   /**
+    * The size of the orders placed by placeOrder.
+    */
+   @State(Scope.Benchmark)
+   public static class Cart {
+
+      @Param({ "1", "4", "8" })
+      int items;
+
+   }// end Cart
+
+   @Benchmark
+   public boolean logIn(Db db) throws Exception {
+      return db.ops.logIn(db.next());
+   }// end logIn
+
+   @Benchmark
+   public long menuListing(Db db) throws Exception {
+      return db.ops.menuListing();
+   }// end menuListing
+
+   @Benchmark
+   public long menuListingUncached(Db db) throws Exception {
+      return db.ops.menuListingUncached();
+   }// end menuListingUncached
+
+   @Benchmark
+   public int menuItemType(Db db) throws Exception {
+      return db.ops.menuSearch("Drinks");
+   }// end menuItemType
+
+   @Benchmark
+   public int placeOrder(Db db, Cart cart) throws Exception {
+      int n = db.next();
+      return db.ops.placeOrder(n, cart.items, n);
+   }// end placeOrder
+
+   @Benchmark
+   public BigDecimal updateOrder(Db db, OpenOrder order) throws Exception {
+      return db.ops.updateOrder(order.orderID, db.next());
+   }// end updateOrder
+
+   @Benchmark
+   public long customerHistory(Db db) throws Exception {
+      return db.ops.customerHistory(db.next());
+   }// end customerHistory
+
+   @Benchmark
+   public long managerHistory(Db db) throws Exception {
+      return db.ops.managerHistory();
+   }// end managerHistory
+
+}// end CafeBenchmark
@@ -0,0 +1,52 @@
+package bench;
+
+import java.math.BigDecimal;
+
+/**
+ * The Cafe operations measured by CafeBenchmark. JMH does not accept
+ * benchmarks in the default package while Cafe lives there, so the benchmark
+ * reaches Cafe through this interface and loads the implementation,
+ * CafeBenchOps, by name.
+ *
+ * Every method returns a value derived from what it read so the JIT can not
+ * drop the work.
+ */
+public interface CafeOps {
+
+   /**
+    * Connects to the database and seeds it with generated orders when it
+    * holds fewer than the requested number.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the database listens on
+    * @param user the database user
+    * @param dataDir the directory holding users.csv
+    * @param orders the number of orders the database should hold at least
+    */
+   void open(String dbname, String dbport, String user, String dataDir, int orders) throws Exception;
+
+   void close();
+
+   // number of customer accounts read from users.csv
+   int customers();
+
+   boolean logIn(int customer) throws Exception;
+
+   long menuListing() throws Exception;
+
+   long menuListingUncached() throws Exception;
+
+   int menuSearch(String query) throws Exception;
+
+   int placeOrder(int customer, int items, int offset) throws Exception;
+
+   // places an unpaid order for updateOrder to work on
+   int openOrder(int customer) throws Exception;
+
+   BigDecimal updateOrder(int orderID, int offset) throws Exception;
+
+   long customerHistory(int customer) throws Exception;
+
+   long managerHistory() throws Exception;
+
+}// end CafeOps
@@ -0,0 +1,26 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+LIB=$DIR/../lib
+MAVEN=https://repo1.maven.org/maven2
+
+# fetch JMH and its dependencies once
+for JAR in org/openjdk/jmh/jmh-core/1.37/jmh-core-1.37.jar \
+           org/openjdk/jmh/jmh-generator-annprocess/1.37/jmh-generator-annprocess-1.37.jar \
+           net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar \
+           org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar; do
+   [ -f $LIB/$(basename $JAR) ] || curl -sSfL -o $LIB/$(basename $JAR) $MAVEN/$JAR || exit 1
+done
+[ -f $LIB/psql-42.4.0.jar ] || curl -sSfL -o $LIB/psql-42.4.0.jar \
+   $MAVEN/org/postgresql/postgresql/42.4.0/postgresql-42.4.0.jar || exit 1
+CP=$LIB/psql-42.4.0.jar:$LIB/jmh-core-1.37.jar:$LIB/jopt-simple-5.0.4.jar:$LIB/commons-math3-3.6.1.jar
+
+# compile Cafe together with the benchmarks; the JMH annotation processor
+# generates the benchmark list into the same directory
+rm -rf $DIR/../bench/classes && mkdir -p $DIR/../bench/classes
+javac -cp $CP:$LIB/jmh-generator-annprocess-1.37.jar -d $DIR/../bench/classes \
+   $DIR/../src/*.java $DIR/../bench/src/*.java $DIR/../bench/src/bench/*.java || exit 1
+
+# run against the database created by sql/scripts/create_db.sh; extra
+# arguments go to JMH, e.g. a benchmark name or -t 4 for four threads
+java -cp $DIR/../bench/classes:$CP org.openjdk.jmh.Main \
+   -jvmArgsAppend "-Dbench.db=${USER}_DB -Dbench.port=$PGPORT -Dbench.user=$USER -Dbench.data=$DIR/../../data" "$@"
@@ -1,12 +1,27 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+LIB=$DIR/../lib
 
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# Cafe needs Java 8 or later (lambdas, String.join, computeIfAbsent); set
+# JAVA_HOME to pick a JDK other than the one on the PATH
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+VERSION=$(javac -version 2>&1 | sed -n 's/^javac \([0-9][0-9.]*\).*/\1/p')
+case "$VERSION" in
+   1.[0-7]|1.[0-7].*|"")
+      echo "compile.sh: Java 8 or later is required, found javac ${VERSION:-none}" >&2
+      exit 1 ;;
+esac
+
+# fetch the JDBC driver once
+[ -f $LIB/psql-42.4.0.jar ] || curl -sSfL -o $LIB/psql-42.4.0.jar \
+   https://repo1.maven.org/maven2/org/postgresql/postgresql/42.4.0/postgresql-42.4.0.jar || exit 1
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Cafe.java
+mkdir -p $DIR/../classes
+javac -cp $LIB/psql-42.4.0.jar -d $DIR/../classes $DIR/../src/*.java || exit 1
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/psql-42.4.0.jar Cafe $USER"_DB" $PGPORT $USER
+java -cp $DIR/../classes:$LIB/psql-42.4.0.jar Cafe $USER"_DB" $PGPORT $USER
 
@@ -0,0 +1,22 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+LIB=$DIR/../lib
+MAVEN=https://repo1.maven.org/maven2
+
+# fetch JUnit, its dependency and the JDBC driver once
+for JAR in junit/junit/4.13.2/junit-4.13.2.jar \
+           org/hamcrest/hamcrest-core/1.3/hamcrest-core-1.3.jar; do
+   [ -f $LIB/$(basename $JAR) ] || curl -sSfL -o $LIB/$(basename $JAR) $MAVEN/$JAR || exit 1
+done
+[ -f $LIB/psql-42.4.0.jar ] || curl -sSfL -o $LIB/psql-42.4.0.jar \
+   $MAVEN/org/postgresql/postgresql/42.4.0/postgresql-42.4.0.jar || exit 1
+CP=$LIB/psql-42.4.0.jar:$LIB/junit-4.13.2.jar:$LIB/hamcrest-core-1.3.jar
+
+# compile Cafe together with the tests, which need no database
+rm -rf $DIR/../test/classes && mkdir -p $DIR/../test/classes
+javac -cp $CP -d $DIR/../test/classes $DIR/../src/*.java $DIR/../test/src/*.java || exit 1
+
+# run every test class, or the ones named as arguments
+TESTS="$@"
+[ -n "$TESTS" ] || TESTS=$(cd $DIR/../test/src && ls *Test.java | sed 's/\.java$//')
+java -cp $DIR/../test/classes:$CP org.junit.runner.JUnitCore $TESTS
@@ -0,0 +1,181 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class limits how many operations reach the database at once, so that
+ * at peak the operations admitted stay fast and the rest are turned away
+ * quickly instead of everything slowing down together. Writes (orders, edits,
+ * payments) and reads (logins, browsing, reports) have separate limits.
+ *
+ * An operation over the limit waits in a bounded queue for at most
+ * -Dcafe.admission.waitMs, and never past its latency budget. When the queue
+ * is full or the wait runs out it fails at once with a BusyException.
+ *
+ * Each limit adapts to the database (AIMD): it grows by one for every limit
+ * operations that finish within -Dcafe.admission.writeTargetMs or
+ * readTargetMs, and shrinks by a quarter, at most once per target interval,
+ * when one takes longer or times out.
+ */
+public class AdmissionController {
+
+   /**
+    * Thrown when an operation is not admitted: the database is saturated
+    * and the caller should try again shortly.
+    */
+   public static class BusyException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public BusyException(String message) {
+         super(message);
+      }
+   }// end BusyException
+
+   /*
+    * The adaptive limit and wait queue of one class of operations.
+    **/
+   static class Limiter {
+      final String name;
+      final int minLimit;
+      final int maxLimit;
+      final int maxQueue;
+      final long targetNanos;
+      final ReentrantLock lock = new ReentrantLock(true);
+      final Condition released = this.lock.newCondition();
+      double limit;
+      int inFlight = 0;
+      int waiting = 0;
+      long lastDecrease;
+      final AtomicLong admitted = new AtomicLong();
+      final AtomicLong queued = new AtomicLong();
+      final AtomicLong rejected = new AtomicLong();
+
+      Limiter(String name, int initial, int minLimit, int maxLimit, int maxQueue, long targetMillis) {
+         this.name = name;
+         this.limit = initial;
+         this.minLimit = minLimit;
+         this.maxLimit = maxLimit;
+         this.maxQueue = maxQueue;
+         this.targetNanos = targetMillis * 1000000L;
+         this.lastDecrease = System.nanoTime() - this.targetNanos - 1;
+      }
+   }// end Limiter
+
+   private final boolean _enabled;
+   private final long _maxWaitNanos;
+   private final Limiter _writes;
+   private final Limiter _reads;
+
+   /**
+    * Creates the limiters from the -Dcafe.admission.* properties.
+    */
+   public AdmissionController() {
+      this._enabled = !"false".equals(System.getProperty("cafe.admission"));
+      this._maxWaitNanos = Long.getLong("cafe.admission.waitMs", 500L) * 1000000L;
+      int queue = Integer.getInteger("cafe.admission.queue", 64);
+      this._writes = new Limiter("writes", Integer.getInteger("cafe.admission.writeLimit", 8), 1,
+            Integer.getInteger("cafe.admission.writeMax", 64), queue, Long.getLong("cafe.admission.writeTargetMs", 100L));
+      this._reads = new Limiter("reads", Integer.getInteger("cafe.admission.readLimit", 16), 2,
+            Integer.getInteger("cafe.admission.readMax", 128), queue, Long.getLong("cafe.admission.readTargetMs", 200L));
+   }// end AdmissionController
+
+   /**
+    * Admits an operation, waiting in the queue when its class is at its limit.
+    *
+    * @param write true for writes, false for reads
+    * @param deadline System.nanoTime() by which the whole operation must be done
+    * @return the time the operation was admitted, to pass to release
+    * @throws BusyException when the queue is full or the wait ran out
+    */
+   public long acquire(boolean write, long deadline) {
+      if (!this._enabled)
+         return System.nanoTime();
+      Limiter l = write ? this._writes : this._reads;
+      l.lock.lock();
+      try {
+         if (l.inFlight < (int) l.limit) {
+            ++l.inFlight;
+            l.admitted.incrementAndGet();
+            return System.nanoTime();
+         } // end if
+         if (l.waiting >= l.maxQueue) {
+            l.rejected.incrementAndGet();
+            throw new BusyException("The cafe is busy, please try again in a moment.");
+         } // end if
+         l.queued.incrementAndGet();
+         ++l.waiting;
+         try {
+            long left = Math.min(this._maxWaitNanos, deadline - System.nanoTime());
+            while (l.inFlight >= (int) l.limit) {
+               if (left <= 0) {
+                  l.rejected.incrementAndGet();
+                  throw new BusyException("The cafe is busy, please try again in a moment.");
+               } // end if
+               left = l.released.awaitNanos(left);
+            } // end while
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            l.rejected.incrementAndGet();
+            throw new BusyException("Interrupted while waiting for the database");
+         } finally {
+            --l.waiting;
+         } // end try
+         ++l.inFlight;
+         l.admitted.incrementAndGet();
+         return System.nanoTime();
+      } finally {
+         l.lock.unlock();
+      } // end try
+   }// end acquire
+
+   /**
+    * Ends an admitted operation and adapts its class's limit to how long it took.
+    *
+    * @param write the class passed to acquire
+    * @param admittedAt the value acquire returned
+    * @param timedOut true when the operation failed on a timeout
+    */
+   public void release(boolean write, long admittedAt, boolean timedOut) {
+      if (!this._enabled)
+         return;
+      Limiter l = write ? this._writes : this._reads;
+      long now = System.nanoTime();
+      l.lock.lock();
+      try {
+         --l.inFlight;
+         if (timedOut || now - admittedAt > l.targetNanos) {
+            // multiplicative decrease, once per target interval so one slow
+            // burst does not collapse the limit
+            if (now - l.lastDecrease > l.targetNanos) {
+               l.limit = Math.max(l.minLimit, l.limit * 0.75);
+               l.lastDecrease = now;
+            } // end if
+         } else if (l.inFlight + 1 >= (int) l.limit) {
+            // additive increase, only while the limit is actually in use
+            l.limit = Math.min(l.maxLimit, l.limit + 1.0 / l.limit);
+         } // end if
+         l.released.signal();
+      } finally {
+         l.lock.unlock();
+      } // end try
+   }// end release
+
+   /**
+    * @return the limit, operations in flight and waiting, and the admitted,
+    *         queued and rejected counts of writes and reads
+    */
+   public String report() {
+      return "admission: " + line(this._writes) + "; " + line(this._reads);
+   }// end report
+
+   private static String line(Limiter l) {
+      l.lock.lock();
+      try {
+         return String.format("%s limit %.1f, %d in flight, %d waiting, %d admitted, %d queued, %d rejected", l.name,
+               l.limit, l.inFlight, l.waiting, l.admitted.get(), l.queued.get(), l.rejected.get());
+      } finally {
+         l.lock.unlock();
+      } // end try
+   }// end line
+
+}// end AdmissionController
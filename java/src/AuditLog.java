@@ -0,0 +1,289 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class records who changed which profile or order, without adding a
+ * round trip to the change itself. record only puts the event into a
+ * bounded, lock-free ring buffer; a background thread takes the events out
+ * and writes them in batches, one transaction or one file write per batch.
+ *
+ * -Dcafe.audit picks where events go: "table" (the default) appends them to
+ * the AuditLog table of migration 006, "file" to the tab separated file
+ * -Dcafe.audit.file, and "off" drops them. A batch is written every
+ * -Dcafe.audit.flushMs (200) or as soon as -Dcafe.audit.batch (500) events
+ * are waiting. When the buffer of -Dcafe.audit.capacity (8192) events is
+ * full, -Dcafe.audit.overflow decides: "drop" (the default) loses the event
+ * and counts it, "block" makes the caller wait for room.
+ *
+ * Events that could not be written are counted and reported on standard
+ * error; the changes they describe are already committed.
+ */
+public class AuditLog {
+
+   /*
+    * One change: when, by whom, what and to which login or order.
+    **/
+   private static class Event {
+      final long at;
+      final String actor;
+      final String action;
+      final String subject;
+      final String detail;
+
+      Event(String actor, String action, String subject, String detail) {
+         this.at = System.currentTimeMillis();
+         this.actor = actor;
+         this.action = action;
+         this.subject = subject;
+         this.detail = detail;
+      }
+   }// end Event
+
+   static final String INSERT_SQL =
+         "INSERT INTO AuditLog (at, actor, action, subject, detail) VALUES (?, ?, ?, ?, ?)";
+
+   private final Cafe _esql;
+   private final String _target;
+   private final File _file;
+   private final boolean _block;
+   private final int _batchSize;
+   private final long _flushNanos;
+
+   // the ring: slot i holds an event when _sequence[i] is one past the
+   // position it was put at, and is free for position p when it equals p
+   private final Event[] _slots;
+   private final AtomicLongArray _sequence;
+   private final int _mask;
+   private final AtomicLong _tail = new AtomicLong();
+   private volatile long _head = 0;
+
+   // the user the current thread acts for, see setActor
+   private final ThreadLocal<String> _actor = new ThreadLocal<String>();
+
+   private final AtomicLong _recorded = new AtomicLong();
+   private final AtomicLong _written = new AtomicLong();
+   private final AtomicLong _dropped = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+
+   private final Thread _writer;
+   private volatile boolean _running = true;
+   private FileOutputStream _out = null;
+
+   /**
+    * Creates the log from the -Dcafe.audit.* properties and starts its writer.
+    *
+    * @param esql the database the AuditLog table is in
+    */
+   public AuditLog(Cafe esql) {
+      this._esql = esql;
+      this._target = System.getProperty("cafe.audit", "table");
+      this._file = new File(System.getProperty("cafe.audit.file", "audit.log"));
+      this._block = "block".equals(System.getProperty("cafe.audit.overflow", "drop"));
+      this._batchSize = Math.max(1, Integer.getInteger("cafe.audit.batch", 500));
+      this._flushNanos = Math.max(1L, Long.getLong("cafe.audit.flushMs", 200L)) * 1000000L;
+
+      // round the capacity up to a power of two so a position maps to its slot with a mask
+      int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger("cafe.audit.capacity", 8192)) * 2 - 1);
+      this._slots = new Event[capacity];
+      this._sequence = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; ++i)
+         this._sequence.set(i, i);
+      this._mask = capacity - 1;
+
+      this._writer = new Thread(this::drain, "audit-writer");
+      this._writer.setDaemon(true);
+      if (!"off".equals(this._target))
+         this._writer.start();
+   }// end AuditLog
+
+   /**
+    * Sets the user the current thread's changes are recorded for.
+    *
+    * @param login the logged-in user, or null for none
+    */
+   public void setActor(String login) {
+      if (login == null)
+         this._actor.remove();
+      else
+         this._actor.set(login);
+   }// end setActor
+
+   /**
+    * Records a change. Returns at once unless the buffer is full and the
+    * overflow policy is block.
+    *
+    * @param action what was done, e.g. "order.paid"
+    * @param subject the login or orderid it was done to
+    * @param detail the new value or other details, or null
+    */
+   public void record(String action, String subject, String detail) {
+      if ("off".equals(this._target) || !this._running)
+         return;
+      Event event = new Event(this._actor.get(), action, subject, detail);
+      this._recorded.incrementAndGet();
+      while (!offer(event)) {
+         if (!this._block || !this._running) {
+            this._dropped.incrementAndGet();
+            return;
+         } // end if
+         LockSupport.unpark(this._writer);
+         LockSupport.parkNanos(100000L);
+      } // end while
+      if (this._tail.get() - this._head >= this._batchSize)
+         LockSupport.unpark(this._writer);
+   }// end record
+
+   /**
+    * @return the events recorded, written, dropped on overflow and failed to write
+    */
+   public String report() {
+      return String.format("audit: %d recorded, %d written, %d dropped, %d failed", this._recorded.get(),
+            this._written.get(), this._dropped.get(), this._failed.get());
+   }// end report
+
+   /**
+    * Writes the events still in the buffer and stops the writer.
+    */
+   public void close() {
+      if (!this._running)
+         return;
+      this._running = false;
+      LockSupport.unpark(this._writer);
+      try {
+         this._writer.join(10000L);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } // end try
+      if (this._out != null) {
+         try {
+            this._out.close();
+         } catch (IOException ignored) {
+            // every batch was already flushed.
+         } // end try
+      } // end if
+   }// end close
+
+   /*
+    * Puts an event into the ring; any number of threads may call this at once.
+    *
+    * @return false when the ring is full
+    **/
+   private boolean offer(Event event) {
+      long pos = this._tail.get();
+      while (true) {
+         int slot = (int) (pos & this._mask);
+         long diff = this._sequence.get(slot) - pos;
+         if (diff == 0) {
+            if (this._tail.compareAndSet(pos, pos + 1)) {
+               this._slots[slot] = event;
+               // publishes the event to the writer
+               this._sequence.lazySet(slot, pos + 1);
+               return true;
+            } // end if
+            pos = this._tail.get();
+         } else if (diff < 0) {
+            // the writer has not freed this slot yet
+            return false;
+         } else {
+            // another thread took this position
+            pos = this._tail.get();
+         } // end if
+      } // end while
+   }// end offer
+
+   /*
+    * Takes the oldest event out of the ring; only the writer thread calls this.
+    *
+    * @return the event, or null when the ring is empty
+    **/
+   private Event poll() {
+      long pos = this._head;
+      int slot = (int) (pos & this._mask);
+      if (this._sequence.get(slot) != pos + 1)
+         return null;
+      Event event = this._slots[slot];
+      this._slots[slot] = null;
+      // frees the slot for the position one lap ahead
+      this._sequence.lazySet(slot, pos + this._mask + 1);
+      this._head = pos + 1;
+      return event;
+   }// end poll
+
+   /*
+    * The writer thread: takes up to a batch of events out of the ring and
+    * writes them, then waits for the flush interval unless a full batch is
+    * already waiting.
+    **/
+   private void drain() {
+      // keeps the writer's commits from pinning anyone's reads to the primary
+      this._esql.getRouter().setKey("audit");
+      List<Event> batch = new ArrayList<Event>(this._batchSize);
+      while (true) {
+         Event event;
+         while (batch.size() < this._batchSize && (event = poll()) != null)
+            batch.add(event);
+         if (!batch.isEmpty()) {
+            write(batch);
+            batch.clear();
+         } // end if
+         if (this._tail.get() - this._head >= this._batchSize)
+            continue;
+         if (!this._running && this._tail.get() == this._head)
+            return;
+         LockSupport.parkNanos(this, this._flushNanos);
+      } // end while
+   }// end drain
+
+   private void write(List<Event> batch) {
+      try {
+         if ("file".equals(this._target))
+            writeFile(batch);
+         else
+            writeTable(batch);
+         this._written.addAndGet(batch.size());
+      } catch (SQLException | IOException | RuntimeException e) {
+         long failed = this._failed.addAndGet(batch.size());
+         System.err.println("Audit log: " + batch.size() + " events not written (" + failed + " in all): "
+               + e.getMessage());
+      } // end try
+   }// end write
+
+   /*
+    * Appends a batch to the AuditLog table in one transaction and one JDBC
+    * batch, so the whole batch costs a single commit.
+    **/
+   private void writeTable(final List<Event> batch) throws SQLException {
+      final List<Object[]> rows = new ArrayList<Object[]>(batch.size());
+      for (Event e : batch)
+         rows.add(new Object[] { new Timestamp(e.at), e.actor, e.action, e.subject, e.detail });
+      this._esql.inTransaction(() -> this._esql.executeBatch(INSERT_SQL, rows));
+   }// end writeTable
+
+   /*
+    * Appends a batch to the audit file in one write and forces it to disk.
+    **/
+   private void writeFile(List<Event> batch) throws IOException {
+      if (this._out == null)
+         this._out = new FileOutputStream(this._file, true);
+      StringBuilder sb = new StringBuilder(batch.size() * 80);
+      for (Event e : batch)
+         sb.append(new Timestamp(e.at)).append('\t').append(field(e.actor)).append('\t').append(field(e.action))
+               .append('\t').append(field(e.subject)).append('\t').append(field(e.detail)).append('\n');
+      this._out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+      this._out.getFD().sync();
+   }// end writeFile
+
+   private static String field(String s) {
+      return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+   }// end field
+
+}// end AuditLog
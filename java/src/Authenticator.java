@@ -0,0 +1,178 @@
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class checks logins and passwords with as little database work as
+ * possible:
+ *
+ *  - a Bloom filter of every login, loaded at startup and kept current by
+ *    the user_added trigger in create_triggers.sql, turns away unknown
+ *    logins without a round trip;
+ *  - known logins are checked with one single-column, LIMIT 1 lookup that
+ *    also reads the user's role;
+ *  - a login that fails too often is locked for a growing period, during
+ *    which attempts are rejected in memory.
+ *
+ * A listener reconnect, where added logins may have been missed, reloads the
+ * filter. Set -Dcafe.auth.filter=false to always ask the database.
+ */
+public class Authenticator implements DbListener.Handler {
+
+   // channel the Users trigger notifies on, with the new login as payload
+   public static final String CHANNEL = "user_added";
+
+   // share of unknown logins that still reach the database
+   private static final double ERROR_RATE = 0.01;
+   // failures in a row before a login is locked
+   private static final int MAX_FAILURES = Integer.getInteger("cafe.auth.maxFailures", 5);
+   // how long the first lock lasts; every further failure doubles it
+   private static final long LOCK_MILLIS = Long.getLong("cafe.auth.lockMs", 30000L);
+   private static final long MAX_LOCK_MILLIS = 15 * 60 * 1000L;
+   // failure records kept before old ones are dropped
+   private static final int MAX_TRACKED = 10000;
+
+   /*
+    * Consecutive failed attempts on one login.
+    **/
+   private static class Failures {
+      int count;
+      long last;
+      long lockedUntil;
+   }// end Failures
+
+   private final Cafe _esql;
+   private final boolean _useFilter;
+   private volatile BloomFilter _logins = null;
+   private final Map<String, Failures> _failures = new ConcurrentHashMap<String, Failures>();
+
+   /**
+    * Creates an authenticator; call load before the first authenticate.
+    *
+    * @param esql the database holding the Users table
+    */
+   public Authenticator(Cafe esql) {
+      this._esql = esql;
+      this._useFilter = !"false".equals(System.getProperty("cafe.auth.filter"));
+   }// end Authenticator
+
+   /**
+    * (Re)builds the filter of known logins from the Users table.
+    *
+    * @throws java.sql.SQLException when the logins can not be read
+    */
+   public synchronized void load() throws SQLException {
+      if (!this._useFilter)
+         return;
+      this._logins = this._esql.getRouter().primaryOnly(() -> {
+         Long count = this._esql.queryForObject("SELECT count(*) FROM USERS", row -> row.getLong(1));
+         // room to grow before the filter has to be rebuilt
+         final BloomFilter logins = new BloomFilter(2 * count + 1024, ERROR_RATE);
+         this._esql.streamQuery("SELECT login FROM USERS", row -> logins.add(Cafe.rtrim(row.getString(1))));
+         return logins;
+      });
+   }// end load
+
+   /**
+    * Makes a new or renamed login known to the filter.
+    */
+   public synchronized void added(String login) {
+      BloomFilter logins = this._logins;
+      if (logins == null)
+         return;
+      logins.add(Cafe.rtrim(login));
+      if (logins.isFull()) {
+         try {
+            load();
+         } catch (SQLException e) {
+            // the full filter still knows every login, it only lets more unknown ones through.
+         } // end try
+      } // end if
+   }// end added
+
+   /**
+    * Checks a login and password and opens a session for the user.
+    *
+    * @return the new session, or null when the login and password match no account
+    * @throws SecurityException when the login is locked after too many failures
+    * @throws java.sql.SQLException when the account can not be read
+    */
+   public Session authenticate(String login, String password) throws SQLException {
+      String key = Cafe.rtrim(login);
+      long now = System.currentTimeMillis();
+      Failures failures = this._failures.get(key);
+      if (failures != null) {
+         synchronized (failures) {
+            if (failures.lockedUntil > now)
+               throw new SecurityException("Too many failed logins, try again in "
+                     + ((failures.lockedUntil - now + 999) / 1000) + " seconds");
+         } // end synchronized
+      } // end if
+
+      BloomFilter logins = this._logins;
+      if (logins != null && !logins.mightContain(key))
+         return null;
+
+      Cafe.Work<String> lookup = () -> this._esql.queryForObject(
+            "SELECT type FROM USERS WHERE login = ? AND password = ? LIMIT 1", row -> row.getString(1), login, password);
+      String type = lookup.run();
+      // an account created a moment ago may not have reached the replica yet
+      if (type == null && !this._esql.getRouter().replicas().isEmpty())
+         type = this._esql.getRouter().primaryOnly(lookup);
+      if (type == null) {
+         fail(key, now);
+         return null;
+      } // end if
+      this._failures.remove(key);
+      return this._esql.getSessions().open(login, type);
+   }// end authenticate
+
+   private void fail(String key, long now) {
+      if (this._failures.size() >= MAX_TRACKED)
+         prune(now);
+      Failures failures = this._failures.computeIfAbsent(key, k -> new Failures());
+      synchronized (failures) {
+         failures.count++;
+         failures.last = now;
+         if (failures.count >= MAX_FAILURES) {
+            int doublings = Math.min(failures.count - MAX_FAILURES, 20);
+            failures.lockedUntil = now + Math.min(LOCK_MILLIS << doublings, MAX_LOCK_MILLIS);
+         } // end if
+      } // end synchronized
+   }// end fail
+
+   /*
+    * Drops the records of logins that are not locked and have not failed
+    * for a while.
+    **/
+   private void prune(long now) {
+      Iterator<Failures> it = this._failures.values().iterator();
+      while (it.hasNext()) {
+         Failures failures = it.next();
+         synchronized (failures) {
+            if (failures.lockedUntil <= now && now - failures.last > MAX_LOCK_MILLIS)
+               it.remove();
+         } // end synchronized
+      } // end while
+   }// end prune
+
+   /**
+    * Adds a new or renamed login, or reloads the filter after a listener
+    * reconnect.
+    */
+   public void onNotification(String channel, String payload) {
+      if (payload != null) {
+         added(payload);
+         return;
+      } // end if
+      try {
+         load();
+      } catch (SQLException e) {
+         // logins added while disconnected would be turned away, so ask the
+         // database for every login until the filter can be reloaded.
+         this._logins = null;
+      } // end try
+   }// end onNotification
+
+}// end Authenticator
@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a Bloom filter of strings: a set that may answer "maybe" for
+ * a string never added, at a rate chosen up front, but never answers "no"
+ * for one that was. Adding and testing are lock-free.
+ */
+public class BloomFilter {
+
+   private final AtomicLongArray _bits;
+   private final long _numBits;
+   private final int _hashes;
+   private final long _capacity;
+   private final AtomicLong _count = new AtomicLong();
+
+   /**
+    * Creates an empty filter
+    *
+    * @param capacity the number of strings the error rate is guaranteed for
+    * @param errorRate the share of absent strings reported as present, e.g. 0.01
+    */
+   public BloomFilter(long capacity, double errorRate) {
+      capacity = Math.max(1, capacity);
+      long bits = (long) Math.ceil(-capacity * Math.log(errorRate) / (Math.log(2) * Math.log(2)));
+      this._bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, (bits + 63) / 64));
+      this._numBits = this._bits.length() * 64L;
+      this._hashes = Math.max(1, (int) Math.round((double) this._numBits / capacity * Math.log(2)));
+      this._capacity = capacity;
+   }// end BloomFilter
+
+   public void add(String key) {
+      long h1 = mix(hash(key));
+      long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+      for (int i = 0; i < this._hashes; ++i) {
+         long bit = Math.floorMod(h1 + i * h2, this._numBits);
+         int word = (int) (bit >>> 6);
+         long mask = 1L << bit;
+         long old = this._bits.get(word);
+         while ((old & mask) == 0 && !this._bits.compareAndSet(word, old, old | mask))
+            old = this._bits.get(word);
+      } // end for
+      this._count.incrementAndGet();
+   }// end add
+
+   /**
+    * @return false when key was certainly never added
+    */
+   public boolean mightContain(String key) {
+      long h1 = mix(hash(key));
+      long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+      for (int i = 0; i < this._hashes; ++i) {
+         long bit = Math.floorMod(h1 + i * h2, this._numBits);
+         if ((this._bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+            return false;
+      } // end for
+      return true;
+   }// end mightContain
+
+   /**
+    * @return true when more strings were added than the filter was sized for
+    */
+   public boolean isFull() {
+      return this._count.get() > this._capacity;
+   }// end isFull
+
+   // FNV-1a over the UTF-16 code units
+   private static long hash(String key) {
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < key.length(); ++i) {
+         h ^= key.charAt(i);
+         h *= 0x100000001b3L;
+      } // end for
+      return h;
+   }// end hash
+
+   // the MurmurHash3 finalizer, spreads every input bit over the result
+   private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }// end mix
+
+}// end BloomFilter
@@ -0,0 +1,54 @@
+/**
+ * The latency budget of each kind of operation: how long all of its
+ * statements together may take, retries included, before it gives up. A
+ * budget is set with -Dcafe.budget.<name>Ms, e.g. -Dcafe.budget.orderMs=5000,
+ * and applied by Cafe.withBudget.
+ *
+ * Operations marked retryable run again, within what is left of their
+ * budget, when PostgreSQL aborts them with a serialization failure or a
+ * deadlock. Reads that hand rows to the caller as they arrive are not, since
+ * the caller would see the rows twice.
+ */
+public enum Budget {
+
+   ACCOUNT(2000, true, false),
+   BROWSE(3000, false, false),
+   ORDER(3000, true, true),
+   UPDATE(3000, true, true),
+   PAYMENT(3000, true, true),
+   REPORT(30000, false, false);
+
+   private final long _millis;
+   private final boolean _retryable;
+   private final boolean _write;
+
+   Budget(long millis, boolean retryable, boolean write) {
+      this._millis = Long.getLong("cafe.budget." + name().toLowerCase() + "Ms", millis);
+      this._retryable = retryable;
+      this._write = write;
+   }// end Budget
+
+   /**
+    * @return how long the operation may take in milliseconds
+    */
+   public long millis() {
+      return this._millis;
+   }// end millis
+
+   /**
+    * @return true when the operation may be run again after a serialization
+    *         failure or deadlock
+    */
+   public boolean isRetryable() {
+      return this._retryable;
+   }// end isRetryable
+
+   /**
+    * @return true when the operation changes orders, so it is admitted
+    *         under the write limit of AdmissionController
+    */
+   public boolean isWrite() {
+      return this._write;
+   }// end isWrite
+
+}// end Budget
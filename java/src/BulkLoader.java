@@ -0,0 +1,698 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class loads the semicolon separated data files into the Cafe tables
+ * from the client side, through COPY ... FROM STDIN, so the files do not have
+ * to be on the database host. Large files are split into chunks at line
+ * boundaries and the chunks are copied in parallel over several connections.
+ *
+ * The secondary indexes of the loaded tables (those not backing a primary key
+ * or unique constraint) are dropped before the load and rebuilt after it,
+ * even when the load fails. On the partitioned tables of migration 003 this
+ * drops and rebuilds the index of every partition. orders_orderid_seq is
+ * then moved past the largest loaded orderid. Each chunk commits on its own,
+ * so a failed load leaves the chunks that finished in place.
+ *
+ * When Orders is partitioned, the monthly partitions the loaded orders fall
+ * into are created first with cafe_add_partitions, since Orders has no
+ * default partition. When ItemStatus has the orderTime column of migration 003, each chunk of
+ * itemStatus.csv is copied into a temporary table and moved into ItemStatus
+ * with its order's received time as orderTime, so every item goes straight
+ * to its month's partition and the file layout stays the same.
+ *
+ * The user triggers of Orders and ItemStatus are turned off while copying,
+ * so the load neither sends a kitchen feed notification per row nor updates
+ * the sales rollups row by row. They are turned back on afterwards, even
+ * when the load fails, and the rollups of migration 004 are then rebuilt
+ * from the loaded tables in one statement each.
+ *
+ * The tables are expected to be empty, in the schema create_db.sh sets up:
+ * create_tables.sql with the migrations and triggers of migrate.sh.
+ */
+public class BulkLoader {
+
+   // smallest chunk worth a connection of its own
+   private static final long MIN_CHUNK_BYTES = 8L << 20;
+   private static final long PROGRESS_MILLIS = 2000L;
+
+   /*
+    * The data files in load order with the columns they hold; ItemStatus
+    * references Orders and Menu so it is loaded after them.
+    **/
+   private static final String[][] FILES = {
+      { "menu.csv", "Menu", "(itemName, type, price, description, imageURL)" },
+      { "users.csv", "Users", "(login, phoneNum, password, favItems, type)" },
+      { "orders.csv", "Orders", "(orderid, login, paid, timeStampRecieved, total)" },
+      { "itemStatus.csv", "ItemStatus", "(orderid, itemName, lastUpdated, status, comments)" },
+   };
+   private static final int FIRST_PHASE = 3;
+
+   // the tables whose per-row triggers are off while loading
+   private static final String[] QUIET_TABLES = { "orders", "itemstatus" };
+
+   // the sales rollups recomputed from the loaded tables, as migration 004 does
+   private static final String[] ROLLUP_SQL = {
+      "DELETE FROM sales_hourly",
+      "INSERT INTO sales_hourly (hour, slot, orders, revenue, paidOrders, paidRevenue, items) "
+            + "SELECT date_trunc('hour', o.timeStampRecieved), o.orderid % 8, count(*), SUM(o.total), "
+            + "count(*) FILTER (WHERE o.paid), COALESCE(SUM(o.total) FILTER (WHERE o.paid), 0), COALESCE(SUM(i.n), 0) "
+            + "FROM Orders o LEFT JOIN (SELECT orderid, count(*) AS n FROM ItemStatus GROUP BY orderid) i "
+            + "ON i.orderid = o.orderid GROUP BY 1, 2",
+      "DELETE FROM item_sales_daily",
+      "INSERT INTO item_sales_daily (day, itemName, slot, sold) "
+            + "SELECT o.timeStampRecieved::date, i.itemName, i.orderid % 8, count(*) "
+            + "FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid GROUP BY 1, 2, 3",
+   };
+
+   // the items of a chunk, copied before they get their orderTime
+   private static final String STAGE_SQL =
+         "CREATE TEMP TABLE IF NOT EXISTS bulk_itemstatus (LIKE ItemStatus) ON COMMIT DELETE ROWS";
+   private static final String MOVE_ITEMS_SQL =
+         "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, orderTime) "
+               + "SELECT s.orderid, s.itemName, s.lastUpdated, s.status, s.comments, o.timeStampRecieved "
+               + "FROM bulk_itemstatus s JOIN Orders o ON o.orderid = s.orderid";
+
+   /*
+    * A byte range of a data file, copied by one COPY statement.
+    **/
+   private static class Chunk {
+      final File file;
+      final String table;
+      final long start;
+      final long end;
+      // true for ItemStatus rows that get their orderTime from Orders
+      final boolean staged;
+
+      Chunk(File file, String table, long start, long end, boolean staged) {
+         this.file = file;
+         this.table = table;
+         this.start = start;
+         this.end = end;
+         this.staged = staged;
+      }
+   }// end Chunk
+
+   private final BlockingQueue<Connection> _connections;
+   private final ExecutorService _workers;
+   private final Map<File, AtomicLong> _progress = new LinkedHashMap<File, AtomicLong>();
+   private final AtomicLong _rows = new AtomicLong();
+
+   /**
+    * Opens the connections the load runs on
+    *
+    * @param url the JDBC connection URL
+    * @param props the connection properties (user, password, ...)
+    * @param threads the number of chunks copied at once
+    * @throws java.sql.SQLException when a connection can not be opened
+    */
+   public BulkLoader(String url, Properties props, int threads) throws SQLException {
+      this._connections = new ArrayBlockingQueue<Connection>(threads);
+      this._workers = Executors.newFixedThreadPool(threads);
+      try {
+         for (int i = 0; i < threads; ++i)
+            this._connections.add(DriverManager.getConnection(url, props));
+      } catch (SQLException e) {
+         close();
+         throw e;
+      } // end try
+   }// end BulkLoader
+
+   /**
+    * Loads every data file found in a directory.
+    *
+    * @param dir the directory holding menu.csv, users.csv, orders.csv and itemStatus.csv
+    * @return the number of rows loaded
+    */
+   public long load(File dir) throws SQLException, IOException, InterruptedException {
+      List<Chunk> first = new ArrayList<Chunk>();
+      List<Chunk> second = new ArrayList<Chunk>();
+      List<String> tables = new ArrayList<String>();
+      boolean orderTime = hasOrderTime();
+      for (int i = 0; i < FILES.length; ++i) {
+         File file = new File(dir, FILES[i][0]);
+         if (!file.isFile()) {
+            System.out.println("Skipping " + file + ", not found");
+            continue;
+         } // end if
+         tables.add(FILES[i][1].toLowerCase());
+         (i < FIRST_PHASE ? first : second).addAll(split(file, FILES[i][1] + " " + FILES[i][2],
+               orderTime && FILES[i][1].equals("ItemStatus")));
+      } // end for
+
+      if (tables.contains("orders"))
+         addPartitions(first);
+      Map<String, String> indexes = dropIndexes(tables);
+      List<String> quiet = new ArrayList<String>();
+      Thread reporter = startReporter();
+      try {
+         disableTriggers(tables, quiet);
+         run(first);
+         if (orderTime && !second.isEmpty() && tables.contains("orders"))
+            analyze("orders");
+         run(second);
+      } finally {
+         reporter.interrupt();
+         try {
+            if (!quiet.isEmpty()) {
+               enableTriggers(quiet);
+               rebuildRollups();
+            } // end if
+         } finally {
+            rebuildIndexes(indexes);
+         } // end try
+      } // end try
+      finish(tables);
+      return this._rows.get();
+   }// end load
+
+   /*
+    * Splits a file into one chunk per worker, each ending after a newline.
+    *
+    * @param table the table and column list the file is copied into
+    **/
+   private List<Chunk> split(File file, String table, boolean staged) throws IOException {
+      long size = file.length();
+      int count = (int) Math.max(1, Math.min(this._connections.size(), size / MIN_CHUNK_BYTES));
+      List<Chunk> chunks = new ArrayList<Chunk>(count);
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         long start = 0;
+         for (int i = 1; i <= count && start < size; ++i) {
+            long end = i == count ? size : lineEnd(raf, size * i / count);
+            if (end > start)
+               chunks.add(new Chunk(file, table, start, end, staged));
+            start = end;
+         } // end for
+      } finally {
+         raf.close();
+      } // end try
+      this._progress.put(file, new AtomicLong());
+      return chunks;
+   }// end split
+
+   // the offset just past the first newline at or after pos
+   private static long lineEnd(RandomAccessFile raf, long pos) throws IOException {
+      raf.seek(pos);
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = raf.read(buffer)) > 0) {
+         for (int i = 0; i < n; ++i)
+            if (buffer[i] == '\n')
+               return pos + i + 1;
+         pos += n;
+      } // end while
+      return pos;
+   }// end lineEnd
+
+   /*
+    * Copies the chunks in parallel and waits for all of them.
+    **/
+   private void run(List<Chunk> chunks) throws SQLException, IOException, InterruptedException {
+      List<Future<Long>> done = new ArrayList<Future<Long>>();
+      for (final Chunk chunk : chunks)
+         done.add(this._workers.submit(() -> copy(chunk)));
+      for (Future<Long> f : done) {
+         try {
+            this._rows.addAndGet(f.get());
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+               throw (SQLException) cause;
+            if (cause instanceof IOException)
+               throw (IOException) cause;
+            throw new IllegalStateException(cause);
+         } // end try
+      } // end for
+   }// end run
+
+   private long copy(Chunk chunk) throws SQLException, IOException, InterruptedException {
+      Connection conn = this._connections.take();
+      InputStream in = new RangeStream(chunk.file, chunk.start, chunk.end, this._progress.get(chunk.file));
+      try {
+         CopyManager copier = conn.unwrap(PGConnection.class).getCopyAPI();
+         if (chunk.staged)
+            return copyItems(conn, copier, chunk, in);
+         return copier.copyIn("COPY " + chunk.table + " FROM STDIN WITH (DELIMITER ';')", in);
+      } finally {
+         in.close();
+         this._connections.put(conn);
+      } // end try
+   }// end copy
+
+   /*
+    * Copies a chunk of items into the connection's temporary table and moves
+    * them into ItemStatus with their order's received time, in one
+    * transaction. Items of orders that were not loaded fail the chunk.
+    **/
+   private static long copyItems(Connection conn, CopyManager copier, Chunk chunk, InputStream in)
+         throws SQLException, IOException {
+      Statement stmt = conn.createStatement();
+      conn.setAutoCommit(false);
+      try {
+         stmt.execute(STAGE_SQL);
+         long copied = copier.copyIn("COPY bulk_itemstatus " + chunk.table.substring(chunk.table.indexOf('('))
+               + " FROM STDIN WITH (DELIMITER ';')", in);
+         stmt.execute("ANALYZE bulk_itemstatus");
+         long moved = stmt.executeLargeUpdate(MOVE_ITEMS_SQL);
+         if (moved != copied)
+            throw new SQLException((copied - moved) + " items in " + chunk.file.getName() + " between bytes "
+                  + chunk.start + " and " + chunk.end + " belong to orders not in Orders");
+         conn.commit();
+         return copied;
+      } catch (SQLException | IOException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+         conn.setAutoCommit(true);
+      } // end try
+   }// end copyItems
+
+   /*
+    * Creates the partitions for the received times of the orders about to be
+    * loaded, when the database has cafe_add_partitions (migration 003). The
+    * chunks of orders.csv are scanned in parallel for their earliest and
+    * latest time.
+    **/
+   private void addPartitions(List<Chunk> chunks) throws SQLException, IOException, InterruptedException {
+      Connection conn = this._connections.take();
+      try {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT to_regprocedure('cafe_add_partitions(timestamp, timestamp)') IS NOT NULL");
+         rs.next();
+         boolean partitioned = rs.getBoolean(1);
+         rs.close();
+         stmt.close();
+         if (!partitioned)
+            return;
+      } finally {
+         this._connections.put(conn);
+      } // end try
+
+      List<Future<String[]>> scans = new ArrayList<Future<String[]>>();
+      for (final Chunk chunk : chunks)
+         if (chunk.table.startsWith("Orders "))
+            scans.add(this._workers.submit(() -> timeRange(chunk)));
+      String[] range = { null, null };
+      for (Future<String[]> f : scans) {
+         try {
+            String[] scanned = f.get();
+            widen(range, scanned[0]);
+            widen(range, scanned[1]);
+         } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+         } // end try
+      } // end for
+      if (range[0] == null)
+         return;
+
+      conn = this._connections.take();
+      try {
+         PreparedStatement stmt = conn.prepareStatement("SELECT cafe_add_partitions(?::timestamp, ?::timestamp)");
+         stmt.setString(1, range[0]);
+         stmt.setString(2, range[1]);
+         ResultSet rs = stmt.executeQuery();
+         rs.next();
+         System.out.println("Orders from " + range[0] + " to " + range[1] + ", created " + rs.getInt(1)
+               + " monthly partitions");
+         rs.close();
+         stmt.close();
+      } finally {
+         this._connections.put(conn);
+      } // end try
+   }// end addPartitions
+
+   /*
+    * The earliest and latest timeStampRecieved of a chunk of orders.csv, the
+    * fourth field. They are compared as text, which orders the timestamps
+    * COPY reads by time.
+    **/
+   private static String[] timeRange(Chunk chunk) throws IOException {
+      String[] range = { null, null };
+      StringBuilder time = new StringBuilder(32);
+      byte[] buffer = new byte[1 << 16];
+      int field = 0;
+      boolean escaped = false;
+      InputStream in = new RangeStream(chunk.file, chunk.start, chunk.end, new AtomicLong());
+      try {
+         int n;
+         while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < n; ++i) {
+               char c = (char) (buffer[i] & 0xff);
+               if (escaped)
+                  escaped = false;
+               else if (c == '\\')
+                  escaped = true;
+               else if (c == ';') {
+                  ++field;
+                  continue;
+               } else if (c == '\n') {
+                  widen(range, time.toString().trim());
+                  time.setLength(0);
+                  field = 0;
+                  continue;
+               } // end if
+               if (field == 3)
+                  time.append(c);
+            } // end for
+         } // end while
+      } finally {
+         in.close();
+      } // end try
+      widen(range, time.toString().trim());
+      return range;
+   }// end timeRange
+
+   private static void widen(String[] range, String time) {
+      if (time == null || time.isEmpty())
+         return;
+      if (range[0] == null || time.compareTo(range[0]) < 0)
+         range[0] = time;
+      if (range[1] == null || time.compareTo(range[1]) > 0)
+         range[1] = time;
+   }// end widen
+
+   /*
+    * True when ItemStatus has the orderTime column of migration 003.
+    **/
+   private boolean hasOrderTime() throws SQLException, InterruptedException {
+      Connection conn = this._connections.take();
+      try {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT 1 FROM information_schema.columns WHERE table_schema = current_schema() "
+               + "AND table_name = 'itemstatus' AND column_name = 'ordertime'");
+         boolean orderTime = rs.next();
+         rs.close();
+         stmt.close();
+         return orderTime;
+      } finally {
+         this._connections.put(conn);
+      } // end try
+   }// end hasOrderTime
+
+   private void analyze(String table) throws SQLException, InterruptedException {
+      Connection conn = this._connections.take();
+      try {
+         Statement stmt = conn.createStatement();
+         stmt.execute("ANALYZE " + table);
+         stmt.close();
+      } finally {
+         this._connections.put(conn);
+      } // end try
+   }// end analyze
+
+   /*
+    * Turns off the user triggers of the loaded tables in QUIET_TABLES,
+    * adding each table to disabled once its triggers are off. The triggers
+    * backing foreign keys are system triggers and stay on.
+    **/
+   private void disableTriggers(List<String> tables, List<String> disabled) throws SQLException, InterruptedException {
+      Connection conn = this._connections.take();
+      try {
+         Statement stmt = conn.createStatement();
+         for (String table : QUIET_TABLES) {
+            if (!tables.contains(table))
+               continue;
+            System.out.println("Disabling triggers on " + table);
+            stmt.execute("ALTER TABLE " + table + " DISABLE TRIGGER USER");
+            disabled.add(table);
+         } // end for
+         stmt.close();
+      } finally {
+         this._connections.put(conn);
+      } // end try
+   }// end disableTriggers
+
+   private void enableTriggers(List<String> tables) throws SQLException, InterruptedException {
+      Connection conn = this._connections.take();
+      try {
+         Statement stmt = conn.createStatement();
+         for (String table : tables) {
+            System.out.println("Enabling triggers on " + table);
+            stmt.execute("ALTER TABLE " + table + " ENABLE TRIGGER USER");
+         } // end for
+         stmt.close();
+      } finally {
+         this._connections.put(conn);
+      } // end try
+   }// end enableTriggers
+
+   /*
+    * Recomputes the sales rollups of migration 004, when the database has
+    * them, in one transaction so reports never see them half built.
+    **/
+   private void rebuildRollups() throws SQLException, InterruptedException {
+      Connection conn = this._connections.take();
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT to_regclass('sales_hourly') IS NOT NULL");
+         rs.next();
+         boolean rollups = rs.getBoolean(1);
+         rs.close();
+         if (!rollups)
+            return;
+         System.out.println("Rebuilding the sales rollups");
+         conn.setAutoCommit(false);
+         for (String sql : ROLLUP_SQL)
+            stmt.execute(sql);
+         conn.commit();
+      } catch (SQLException e) {
+         if (!conn.getAutoCommit())
+            conn.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+         conn.setAutoCommit(true);
+         this._connections.put(conn);
+      } // end try
+   }// end rebuildRollups
+
+   /*
+    * Drops the indexes of the tables that are not backing a constraint.
+    *
+    * @return the dropped indexes' names and definitions
+    **/
+   private Map<String, String> dropIndexes(List<String> tables) throws SQLException, InterruptedException {
+      Map<String, String> indexes = new LinkedHashMap<String, String>();
+      Connection conn = this._connections.take();
+      try {
+         PreparedStatement stmt = conn.prepareStatement(
+               "SELECT i.indexname, i.indexdef FROM pg_indexes i WHERE i.schemaname = current_schema() "
+                     + "AND i.tablename = ANY(?) "
+                     + "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conname = i.indexname)");
+         stmt.setArray(1, conn.createArrayOf("varchar", tables.toArray()));
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            indexes.put(rs.getString(1), rs.getString(2));
+         rs.close();
+         stmt.close();
+
+         Statement drop = conn.createStatement();
+         for (String name : indexes.keySet()) {
+            System.out.println("Dropping index " + name);
+            drop.execute("DROP INDEX " + quoteIdentifier(name));
+         } // end for
+         drop.close();
+      } finally {
+         this._connections.put(conn);
+      } // end try
+      return indexes;
+   }// end dropIndexes
+
+   /*
+    * Recreates the dropped indexes, several at once. pg_indexes shows the
+    * index of a partitioned table as CREATE INDEX ... ON ONLY, which would
+    * build an invalid index on the parent alone; without ONLY it is built on
+    * every partition too.
+    **/
+   private void rebuildIndexes(Map<String, String> indexes) throws SQLException, IOException, InterruptedException {
+      List<Future<Long>> done = new ArrayList<Future<Long>>();
+      for (final Map.Entry<String, String> index : indexes.entrySet()) {
+         done.add(this._workers.submit(() -> {
+            Connection conn = this._connections.take();
+            try {
+               System.out.println("Rebuilding index " + index.getKey());
+               Statement stmt = conn.createStatement();
+               stmt.execute(index.getValue().replaceFirst(" ON ONLY ", " ON "));
+               stmt.close();
+               return 0L;
+            } finally {
+               this._connections.put(conn);
+            } // end try
+         }));
+      } // end for
+      SQLException failed = null;
+      for (Future<Long> f : done) {
+         try {
+            f.get();
+         } catch (ExecutionException e) {
+            // keep going so the other indexes still get rebuilt
+            System.err.println("Index rebuild failed: " + e.getCause().getMessage());
+            if (failed == null)
+               failed = new SQLException("Not every index could be rebuilt", e.getCause());
+         } // end try
+      } // end for
+      if (failed != null)
+         throw failed;
+   }// end rebuildIndexes
+
+   /*
+    * Moves the orderid sequence past the loaded orders and refreshes the
+    * planner statistics of the loaded tables.
+    **/
+   private void finish(List<String> tables) throws SQLException, InterruptedException {
+      Connection conn = this._connections.take();
+      try {
+         Statement stmt = conn.createStatement();
+         if (tables.contains("orders"))
+            stmt.execute("SELECT setval('orders_orderid_seq', COALESCE(MAX(orderid), 0) + 1, false) FROM ORDERS");
+         for (String table : tables)
+            stmt.execute("ANALYZE " + table);
+         stmt.close();
+      } finally {
+         this._connections.put(conn);
+      } // end try
+   }// end finish
+
+   private Thread startReporter() {
+      Thread reporter = new Thread(() -> {
+         try {
+            while (true) {
+               Thread.sleep(PROGRESS_MILLIS);
+               report();
+            } // end while
+         } catch (InterruptedException e) {
+            report();
+         } // end try
+      }, "cafe-bulk-progress");
+      reporter.setDaemon(true);
+      reporter.start();
+      return reporter;
+   }// end startReporter
+
+   private void report() {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<File, AtomicLong> entry : this._progress.entrySet()) {
+         long size = Math.max(1, entry.getKey().length());
+         if (sb.length() > 0)
+            sb.append(", ");
+         sb.append(entry.getKey().getName()).append(' ').append(100 * entry.getValue().get() / size).append('%');
+      } // end for
+      System.out.println(sb);
+   }// end report
+
+   public void close() {
+      this._workers.shutdownNow();
+      for (Connection conn : this._connections) {
+         try {
+            conn.close();
+         } catch (SQLException ignored) {
+            // closing anyway.
+         } // end try
+      } // end for
+   }// end close
+
+   private static String quoteIdentifier(String name) {
+      return "\"" + name.replace("\"", "\"\"") + "\"";
+   }// end quoteIdentifier
+
+   /*
+    * Reads the bytes from start to end of a file and counts them as read.
+    **/
+   private static class RangeStream extends InputStream {
+      private final FileInputStream _in;
+      private final AtomicLong _progress;
+      private long _remaining;
+
+      RangeStream(File file, long start, long end, AtomicLong progress) throws IOException {
+         this._in = new FileInputStream(file);
+         this._in.getChannel().position(start);
+         this._remaining = end - start;
+         this._progress = progress;
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] one = new byte[1];
+         return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (this._remaining <= 0)
+            return -1;
+         int n = this._in.read(b, off, (int) Math.min(len, this._remaining));
+         if (n > 0) {
+            this._remaining -= n;
+            this._progress.addAndGet(n);
+         } // end if
+         return n;
+      }
+
+      @Override
+      public void close() throws IOException {
+         this._in.close();
+      }
+   }// end RangeStream
+
+   /**
+    * The bulk loader entry point
+    *
+    * @param args <dbname> <port> <user> <data dir> [threads]
+    */
+   public static void main(String[] args) {
+      if (args.length != 4 && args.length != 5) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     BulkLoader.class.getName() +
+                     " <dbname> <port> <user> <data dir> [threads]");
+         return;
+      } // end if
+
+      BulkLoader loader = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         Properties props = new Properties();
+         props.setProperty("user", args[2]);
+         props.setProperty("password", "");
+         int threads = args.length == 5 ? Integer.parseInt(args[4]) : 4;
+         loader = new BulkLoader("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], props, threads);
+         long started = System.currentTimeMillis();
+         long rows = loader.load(new File(args[3]));
+         System.out.println("Loaded " + rows + " rows in " + (System.currentTimeMillis() - started) + " ms");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      } finally {
+         if (loader != null)
+            loader.close();
+      } // end try
+   }// end main
+
+}// end BulkLoader
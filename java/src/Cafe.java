@@ -10,18 +10,28 @@
  *
  */
 
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -30,8 +40,66 @@ import java.util.ArrayList;
  */
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   /**
+    * Thrown when an order can not be changed because it has been paid.
+    */
+   public static class OrderPaidException extends IllegalStateException {
+      private static final long serialVersionUID = 1L;
+
+      public OrderPaidException() {
+         super("Order has been paid, changes cannot be made at this time.");
+      }
+   }// end OrderPaidException
+
+   // pool of physical database connections.
+   private ConnectionPool _pool = null;
+
+   // connection pinned to the current thread by inTransaction, if any.
+   private final ThreadLocal<ConnectionPool.Entry> _bound = new ThreadLocal<ConnectionPool.Entry>();
+
+   // dedicated connection receiving NOTIFY events, e.g. menu changes.
+   private DbListener _listener = null;
+
+   // in-memory copy of the Menu table.
+   private MenuCache _menu = null;
+
+   // sessions of the users logged in through this process.
+   private final SessionRegistry _sessions = new SessionRegistry();
+
+   // checks logins and passwords.
+   private Authenticator _auth = null;
+
+   // sends reads to the replicas and writes to the primary pool.
+   private ReplicaRouter _router = null;
+
+   // the databases Orders and ItemStatus are split over, if any.
+   private ShardRouter _shards = null;
+
+   // one listener per shard, for the kitchen channels.
+   private final List<DbListener> _shardListeners = new ArrayList<DbListener>();
+
+   // limits how many operations reach the database at once, see withBudget.
+   private final AdmissionController _admission = new AdmissionController();
+
+   // profile and order changes, written in the background.
+   private AuditLog _audit = null;
+
+   // audit events of the transaction pinned to this thread, recorded once it commits.
+   private final ThreadLocal<List<String[]>> _heldAudit = new ThreadLocal<List<String[]>>();
+
+   // open orders and their items, kept current by NOTIFY.
+   private KitchenQueue _kitchen = null;
+
+   // System.nanoTime() by which the current thread's operation must be done, see withBudget.
+   private final ThreadLocal<Long> _deadline = new ThreadLocal<Long>();
+
+   // longest wait for a row lock, and the retry policy of withBudget.
+   private final long _lockTimeoutMillis = Long.getLong("cafe.lockTimeoutMs", 1000L);
+   private final int _maxAttempts = Integer.getInteger("cafe.retry.attempts", 3);
+   private final long _backoffMillis = Long.getLong("cafe.retry.backoffMs", 20L);
+
+   // latency, row and round-trip counts per SQL template.
+   private final QueryMetrics _metrics = new QueryMetrics(Long.getLong("cafe.slowQueryMs", 1000L), System.err);
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -55,8 +123,92 @@ public class Cafe {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // use server-side prepared statements from the first execution, the
+         // statement cache below makes sure templates are actually reused.
+         Properties props = new Properties();
+         props.setProperty("user", user);
+         props.setProperty("password", passwd);
+         props.setProperty("prepareThreshold", "1");
+         props.setProperty("reWriteBatchedInserts", "true");
+
+         // no statement waits forever, even outside withBudget: every
+         // connection starts with -Dcafe.statementTimeoutMs and
+         // -Dcafe.lockTimeoutMs, which budgets only ever lower
+         props.setProperty("options", "-c statement_timeout=" + Long.getLong("cafe.statementTimeoutMs", 30000L)
+               + " -c lock_timeout=" + this._lockTimeoutMillis);
+
+         // publish query metrics over JMX, and print them every
+         // -Dcafe.metrics.dumpMs when set
+         this._metrics.register();
+         long dumpMillis = Long.getLong("cafe.metrics.dumpMs", 0L);
+         if (dumpMillis > 0)
+            this._metrics.dumpEvery(dumpMillis, System.err);
+
+         // open the connection pool, sized through -Dcafe.pool.* properties
+         this._pool = new ConnectionPool(url, props,
+               Integer.getInteger("cafe.pool.min", 1),
+               Integer.getInteger("cafe.pool.max", 10),
+               Long.getLong("cafe.pool.idleTimeoutMs", 60000L),
+               Long.getLong("cafe.pool.borrowTimeoutMs", 5000L),
+               Long.getLong("cafe.pool.validationIntervalMs", 5000L));
+
+         // read replicas from -Dcafe.replicas (comma separated JDBC URLs);
+         // their pools open connections on demand so a replica that is down
+         // does not stop the start
+         List<ConnectionPool> replicas = new ArrayList<ConnectionPool>();
+         for (String replica : System.getProperty("cafe.replicas", "").split(","))
+            if (!replica.trim().isEmpty())
+               replicas.add(new ConnectionPool(replica.trim(), props, 0,
+                     Integer.getInteger("cafe.pool.max", 10),
+                     Long.getLong("cafe.pool.idleTimeoutMs", 60000L),
+                     Long.getLong("cafe.pool.borrowTimeoutMs", 5000L),
+                     Long.getLong("cafe.pool.validationIntervalMs", 5000L)));
+         this._router = new ReplicaRouter(this._pool, replicas,
+               Long.getLong("cafe.replica.stickyMs", 5000L),
+               Long.getLong("cafe.replica.retryMs", 10000L));
+
+         // shards from -Dcafe.shards (comma separated JDBC URLs in the order
+         // of their index) hold Orders and ItemStatus; this database keeps
+         // the users and the menu
+         List<ConnectionPool> shards = new ArrayList<ConnectionPool>();
+         for (String shard : System.getProperty("cafe.shards", "").split(","))
+            if (!shard.trim().isEmpty())
+               shards.add(new ConnectionPool(shard.trim(), props,
+                     Integer.getInteger("cafe.pool.min", 1),
+                     Integer.getInteger("cafe.pool.max", 10),
+                     Long.getLong("cafe.pool.idleTimeoutMs", 60000L),
+                     Long.getLong("cafe.pool.borrowTimeoutMs", 5000L),
+                     Long.getLong("cafe.pool.validationIntervalMs", 5000L)));
+         this._shards = new ShardRouter(shards, Integer.getInteger("cafe.shard.threads", 4 * shards.size()));
+
+         // record profile and order changes in the background
+         this._audit = new AuditLog(this);
+
+         // keep the menu in memory, reloading it on menu_changed or after the TTL
+         this._menu = new MenuCache(this, Long.getLong("cafe.menu.ttlMs", 300000L));
+         this._listener = new DbListener(url, props);
+         this._listener.listen(MenuCache.CHANNEL, this._menu);
+         this._listener.listen(SessionRegistry.CHANNEL, this._sessions);
+
+         // load the filter of known logins so unknown ones are turned away in memory
+         this._auth = new Authenticator(this);
+         this._listener.listen(Authenticator.CHANNEL, this._auth);
+         this._auth.load();
+
+         // follow order and item changes for the kitchen feed; loaded on first use
+         this._kitchen = new KitchenQueue(this);
+         if (this._shards.isEnabled()) {
+            // orders change on the shards, so their triggers notify there
+            for (ConnectionPool shard : shards) {
+               DbListener listener = new DbListener(shard.getUrl(), props);
+               this._shardListeners.add(listener);
+               listener.listen(KitchenQueue.ORDER_CHANNEL, this._kitchen);
+               listener.listen(KitchenQueue.ITEM_CHANNEL, this._kitchen);
+            } // end for
+         } else {
+            this._listener.listen(KitchenQueue.ORDER_CHANNEL, this._kitchen);
+            this._listener.listen(KitchenQueue.ITEM_CHANNEL, this._kitchen);
+         } // end if
          System.out.println("Done");
       } catch (Exception e) {
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -65,65 +217,586 @@ public class Cafe {
       } // end catch
    }// end Cafe
 
+   /**
+    * A unit of database work that must run on a single connection.
+    */
+   public interface Work<T> {
+      T run() throws SQLException;
+   }// end Work
+
+   /**
+    * Consumes the rows of a streamed query one at a time.
+    */
+   public interface RowHandler {
+      void handle(Row row) throws SQLException;
+   }// end RowHandler
+
+   /**
+    * Turns one row of a query into a value.
+    */
+   public interface RowMapper<T> {
+      T map(Row row) throws SQLException;
+   }// end RowMapper
+
+   // ItemStatus.status of an item that was just ordered
+   public static final String STATUS_STARTED = "Started";
+
+   // status staff move items to when they are ready to pick up
+   public static final String STATUS_READY = "Ready";
+
+   // lowers the timeouts of the current transaction, see withBudget
+   private static final String BUDGET_SQL =
+         "SELECT set_config('statement_timeout', ?, true), set_config('lock_timeout', ?, true)";
+
+   // rows fetched per round trip by streamed queries, see streamQuery
+   public static final int DEFAULT_FETCH_SIZE = Integer.getInteger("cafe.fetchSize", 1000);
+
+   /**
+    * Runs work inside one database transaction. Every execute* call the work
+    * makes on this thread uses the same pooled connection; the transaction
+    * commits when the work returns and rolls back when it throws. Nested
+    * calls join the outer transaction.
+    *
+    * @param work the statements to run
+    * @return the value returned by the work
+    * @throws java.sql.SQLException when the work or the commit failed
+    */
+   public <T> T inTransaction(Work<T> work) throws SQLException {
+      return inTransaction(work, null);
+   }// end inTransaction
+
+   /**
+    * Runs work within the latency budget of an operation. Every statement
+    * the work sends is cancelled by the driver once the budget is used up,
+    * transactions get what is left of it as their statement_timeout, and
+    * no lock is waited for longer than -Dcafe.lockTimeoutMs. When the
+    * operation is retryable and PostgreSQL aborts it with a serialization
+    * failure or a deadlock, the work runs again after a random backoff, at
+    * most -Dcafe.retry.attempts times in all and only while the backoff fits
+    * in the budget. Nested calls run within the outer budget, and work
+    * called inside inTransaction is never retried since the transaction is
+    * already aborted.
+    *
+    * Before it starts the work is admitted by the AdmissionController under
+    * the write or read limit, waiting in its queue for at most part of the
+    * budget; work inside a caller's transaction already holds a connection
+    * and is not held up.
+    *
+    * @param budget the kind of operation the work is
+    * @param work the statements to run
+    * @return the value returned by the work
+    * @throws java.sql.SQLException when the work failed, timed out, or ran out of retries
+    * @throws AdmissionController.BusyException when the database is saturated
+    */
+   public <T> T withBudget(Budget budget, Work<T> work) throws SQLException {
+      if (this._deadline.get() != null)
+         return work.run();
+
+      long deadline = System.nanoTime() + budget.millis() * 1000000L;
+      boolean retryable = budget.isRetryable() && this._bound.get() == null;
+      boolean admitted = this._bound.get() == null;
+      long admittedAt = admitted ? this._admission.acquire(budget.isWrite(), deadline) : 0;
+      boolean timedOut = false;
+      this._deadline.set(deadline);
+      try {
+         for (int attempt = 1;; ++attempt) {
+            try {
+               return work.run();
+            } catch (SQLException e) {
+               if (!retryable || !isRetryable(e))
+                  throw e;
+               // full jitter: a random wait up to an exponentially growing
+               // cap, so the transactions that collided do not collide again
+               long backoff = 1 + ThreadLocalRandom.current().nextLong(this._backoffMillis << (attempt - 1));
+               if (attempt >= this._maxAttempts || System.nanoTime() + backoff * 1000000L >= deadline) {
+                  this._metrics.gaveUp();
+                  throw e;
+               } // end if
+               this._metrics.retried();
+               try {
+                  Thread.sleep(backoff);
+               } catch (InterruptedException interrupted) {
+                  Thread.currentThread().interrupt();
+                  throw e;
+               } // end try
+            } // end try
+         } // end for
+      } catch (SQLException e) {
+         timedOut = isTimeout(e);
+         throw e;
+      } finally {
+         this._deadline.remove();
+         if (admitted)
+            this._admission.release(budget.isWrite(), admittedAt, timedOut);
+      } // end try
+   }// end withBudget
+
+   /**
+    * Runs work against one shard: its statements on Orders, ItemStatus and
+    * the rollups, and the transactions it opens, go to that shard. Without
+    * shards the work simply runs.
+    *
+    * @param shard the index of the shard, see ShardRouter
+    * @param work the statements to run
+    * @return the value returned by the work
+    * @throws java.sql.SQLException when the work failed
+    * @throws IllegalStateException when called inside a transaction on another database
+    */
+   public <T> T onShard(int shard, Work<T> work) throws SQLException {
+      Integer current = this._shards.current();
+      if (!this._shards.isEnabled() || (current != null && current == shard))
+         return work.run();
+      if (this._bound.get() != null)
+         throw new IllegalStateException("A transaction can not span shards");
+      this._shards.routed();
+      this._shards.setCurrent(shard);
+      try {
+         return work.run();
+      } finally {
+         this._shards.setCurrent(current);
+      } // end try
+   }// end onShard
+
+   /**
+    * Same as onShard, on the shard holding the orders of a login.
+    */
+   public <T> T onShardOf(String login, Work<T> work) throws SQLException {
+      return this._shards.isEnabled() ? onShard(this._shards.shardOf(login), work) : work.run();
+   }// end onShardOf
+
+   /**
+    * Same as onShard, on the shard holding an order.
+    */
+   public <T> T onShardOfOrder(int orderID, Work<T> work) throws SQLException {
+      return this._shards.isEnabled() ? onShard(this._shards.shardOfOrder(orderID), work) : work.run();
+   }// end onShardOfOrder
+
+   /**
+    * Runs work on every shard at once, within the caller's budget, and
+    * returns what it returned on each in the order of the shards. Without
+    * shards the work runs once, on this thread.
+    *
+    * @param work the statements to run on each shard
+    * @return the values returned by the work
+    * @throws java.sql.SQLException when the work failed on any shard
+    */
+   public <T> List<T> onEveryShard(final Work<T> work) throws SQLException {
+      List<T> results = new ArrayList<T>();
+      if (!this._shards.isEnabled()) {
+         results.add(work.run());
+         return results;
+      } // end if
+      if (this._bound.get() != null)
+         throw new IllegalStateException("A transaction can not span shards");
+      this._shards.gathered();
+      final Long deadline = this._deadline.get();
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for (int i = 0; i < this._shards.size(); ++i) {
+         final int shard = i;
+         futures.add(this._shards.executor().submit(() -> {
+            // the work counts against the caller's budget
+            if (deadline != null)
+               this._deadline.set(deadline);
+            try {
+               return onShard(shard, work);
+            } finally {
+               this._deadline.remove();
+            } // end try
+         }));
+      } // end for
+      try {
+         for (Future<T> future : futures)
+            results.add(future.get());
+         return results;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the shards", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+         throw new SQLException(e.getCause());
+      } finally {
+         for (Future<T> future : futures)
+            future.cancel(true);
+      } // end try
+   }// end onEveryShard
+
+   /*
+    * True when a statement names a sharded table but runs outside a
+    * transaction and onShard, so it has to run on every shard.
+    **/
+   private boolean everyShard(String sql) {
+      return this._bound.get() == null && this._shards.current() == null && this._shards.touches(sql);
+   }// end everyShard
+
+   /*
+    * The error for writes to sharded tables that did not pick a shard.
+    **/
+   private static IllegalStateException noShard(String sql) {
+      return new IllegalStateException("Orders are split over shards, pick one with onShard for: " + sql);
+   }// end noShard
+
+   /*
+    * True for the errors a transaction can simply be run again after:
+    * serialization failures and deadlocks.
+    **/
+   static boolean isRetryable(SQLException e) {
+      return "40001".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
+   }// end isRetryable
+
+   /*
+    * True for statements stopped by statement_timeout, lock_timeout, the
+    * query timeout or an exhausted budget.
+    **/
+   static boolean isTimeout(SQLException e) {
+      return e instanceof SQLTimeoutException || "57014".equals(e.getSQLState()) || "55P03".equals(e.getSQLState());
+   }// end isTimeout
+
+   /*
+    * Strips the blank padding Postgres adds to char(n) values, such as
+    * logins, item names and statuses; null becomes the empty string.
+    **/
+   static String rtrim(String value) {
+      if (value == null)
+         return "";
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      return value.substring(0, end);
+   }// end rtrim
+
+   /*
+    * Milliseconds left in the current thread's budget, or -1 without one.
+    *
+    * @throws SQLTimeoutException when the budget is used up
+    **/
+   private long budgetLeft() throws SQLException {
+      Long deadline = this._deadline.get();
+      if (deadline == null)
+         return -1;
+      long left = (deadline - System.nanoTime()) / 1000000L;
+      if (left <= 0)
+         throw new SQLTimeoutException("The operation ran out of time, please try again", "57014");
+      return left;
+   }// end budgetLeft
+
+   /*
+    * Sets a statement's query timeout to what is left of the budget, rounded
+    * up to the driver's whole seconds, or clears it.
+    **/
+   private void limit(PreparedStatement stmt) throws SQLException {
+      long left = budgetLeft();
+      stmt.setQueryTimeout(left < 0 ? 0 : (int) ((left + 999) / 1000));
+   }// end limit
+
+   /*
+    * Same as inTransaction, on the connection the router picks for a single
+    * read-only statement, or on the primary when sql is null.
+    **/
+   private <T> T inTransaction(Work<T> work, String sql) throws SQLException {
+      if (this._bound.get() != null)
+         return work.run();
+
+      Integer shard = this._shards.current();
+      ConnectionPool.Entry conn = shard != null ? this._shards.pool(shard).borrow()
+            : sql == null ? this._pool.borrow() : this._router.borrow(sql);
+      this._bound.set(conn);
+      try {
+         conn.getConnection().setAutoCommit(false);
+         // SET LOCAL, so the connection goes back to the pool with its defaults
+         Long deadline = this._deadline.get();
+         if (deadline != null) {
+            long left = Math.max(1, (deadline - System.nanoTime()) / 1000000L);
+            queryForObject(BUDGET_SQL, row -> null, String.valueOf(left),
+                  String.valueOf(Math.min(left, this._lockTimeoutMillis)));
+         } // end if
+         T result = work.run();
+         conn.getConnection().commit();
+         if (sql == null && shard == null)
+            this._router.wrote();
+         List<String[]> held = this._heldAudit.get();
+         if (held != null)
+            for (String[] event : held)
+               this._audit.record(event[0], event[1], event[2]);
+         return result;
+      } catch (SQLException e) {
+         try {
+            conn.getConnection().rollback();
+         } catch (SQLException ignored) {
+            // the connection is dropped by release if it is broken.
+         } // end try
+         throw e;
+      } catch (RuntimeException e) {
+         try {
+            conn.getConnection().rollback();
+         } catch (SQLException ignored) {
+            // the connection is dropped by release if it is broken.
+         } // end try
+         throw e;
+      } finally {
+         // events of a rolled back transaction describe changes that never happened
+         this._heldAudit.remove();
+         this._bound.remove();
+         this._router.release(conn);
+      } // end try
+   }// end inTransaction
+
+   /**
+    * Returns the connection pinned to this thread by inTransaction, or
+    * borrows one for a single statement from the current shard when it
+    * names a sharded table, else from the pool the router picks.
+    */
+   private ConnectionPool.Entry borrow(String sql) throws SQLException {
+      ConnectionPool.Entry conn = this._bound.get();
+      Integer shard = this._shards.current();
+      if (conn != null) {
+         if (shard == null && this._shards.touches(sql))
+            throw noShard(sql);
+         return conn;
+      } // end if
+      if (shard != null && this._shards.touches(sql))
+         return this._shards.pool(shard).borrow();
+      return this._router.borrow(sql);
+   }// end borrow
+
+   /**
+    * Gives a connection obtained through borrow back to its pool unless it
+    * is pinned to the current transaction.
+    */
+   private void release(ConnectionPool.Entry conn) {
+      if (conn != this._bound.get())
+         this._router.release(conn);
+   }// end release
+
+   /**
+    * Looks up the cached PreparedStatement for a SQL template and binds the
+    * given parameters to its '?' placeholders in order.
+    *
+    * @param conn the connection the statement runs on
+    * @param sql the SQL template
+    * @param params the values bound to the template's placeholders
+    * @return the bound statement
+    * @throws java.sql.SQLException when the statement can not be prepared or bound
+    */
+   private PreparedStatement prepare(ConnectionPool.Entry conn, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = conn.getStatements().prepare(sql);
+      limit(stmt);
+      bind(conn, stmt, params);
+      return stmt;
+   }// end prepare
+
+   /**
+    * Binds parameters to a statement. String[] and Integer[] values are sent
+    * as Postgres arrays, e.g. for "itemName = ANY(?)".
+    */
+   private static void bind(ConnectionPool.Entry conn, PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         Object param = params[i];
+         if (param instanceof String[])
+            param = conn.getConnection().createArrayOf("varchar", (String[]) param);
+         else if (param instanceof Integer[])
+            param = conn.getConnection().createArrayOf("integer", (Integer[]) param);
+         stmt.setObject(i + 1, param);
+      } // end for
+   }// end bind
+
+   /**
+    * Method to execute one update SQL template once per row of parameters,
+    * sending all rows to the DBMS in a single JDBC batch.
+    *
+    * @param sql the input SQL template
+    * @param rows the values bound to the template's placeholders, one array per execution
+    * @return the number of rows affected by each execution
+    * @throws java.sql.SQLException when the batch failed
+    */
+   public int[] executeBatch(String sql, List<Object[]> rows) throws SQLException {
+      if (everyShard(sql))
+         throw noShard(sql);
+      long start = System.nanoTime();
+      long affected = 0;
+      boolean failed = true;
+      ConnectionPool.Entry conn = borrow(sql);
+      PreparedStatement stmt = null;
+      try {
+         stmt = conn.getStatements().prepare(sql);
+         limit(stmt);
+         for (Object[] row : rows) {
+            bind(conn, stmt, row);
+            stmt.addBatch();
+         } // end for
+         int[] counts = stmt.executeBatch();
+         for (int n : counts)
+            affected += Math.max(n, 0);
+         failed = false;
+         return counts;
+      } catch (SQLException e) {
+         throw this._metrics.failed(e);
+      } finally {
+         if (stmt != null)
+            stmt.clearBatch();
+         release(conn);
+         this._metrics.record(sql, start, affected, 1, failed);
+      } // end try
+   }// end executeBatch
+
    /**
     * Method to execute an update SQL statement. Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL template
+    * @param params the values bound to the template's placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate(String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the update instruction
-      stmt.executeUpdate(sql);
-
-      // close the instruction
-      stmt.close();
+   public int executeUpdate(String sql, Object... params) throws SQLException {
+      if (everyShard(sql))
+         throw noShard(sql);
+      long start = System.nanoTime();
+      int affected = -1;
+      ConnectionPool.Entry conn = borrow(sql);
+      try {
+         // looks up the prepared statement and issues the update instruction
+         affected = prepare(conn, sql, params).executeUpdate();
+         return affected;
+      } catch (SQLException e) {
+         throw this._metrics.failed(e);
+      } finally {
+         release(conn);
+         this._metrics.record(sql, start, Math.max(affected, 0), 1, affected < 0);
+      } // end try
    }// end executeUpdate
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT). This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each row to a handler as it arrives. With a positive fetch size the rows
+    * are read through a server-side cursor, fetchSize rows per round trip, so
+    * memory use does not depend on the size of the result; this needs a
+    * transaction, which is opened here unless the caller already has one.
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param fetchSize rows per round trip, or 0 to read the whole result at once
+    * @param handler called once per row
+    * @param params the values bound to the template's placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+   public long streamQuery(final String query, final int fetchSize, final RowHandler handler, final Object... params)
+         throws SQLException {
+      if (everyShard(query)) {
+         // one shard after the other, so the handler sees one row at a time
+         this._shards.broadcast();
+         long rows = 0;
+         for (int i = 0; i < this._shards.size(); ++i)
+            rows += onShard(i, () -> streamQuery(query, fetchSize, handler, params));
+         return rows;
+      } // end if
+      if (fetchSize > 0 && this._bound.get() == null)
+         return inTransaction(() -> streamQuery(query, fetchSize, handler, params), query);
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+      long start = System.nanoTime();
+      long rowCount = 0;
+      boolean failed = true;
+      ConnectionPool.Entry conn = borrow(query);
+      try {
+         PreparedStatement stmt = prepare(conn, query, params);
+         stmt.setFetchSize(fetchSize);
+         ResultSet rs = stmt.executeQuery();
+         try {
+            Row row = new Row(rs);
+            while (rs.next()) {
+               handler.handle(row);
+               ++rowCount;
+            } // end while
+            failed = false;
+            return rowCount;
+         } finally {
+            rs.close();
+         } // end try
+      } catch (SQLException e) {
+         throw this._metrics.failed(e);
+      } finally {
+         release(conn);
+         // a cursor costs one more round trip per fetchSize rows
+         this._metrics.record(query, start, rowCount, fetchSize > 0 ? 1 + rowCount / fetchSize : 1, failed);
+      } // end try
+   }// end streamQuery
 
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
+   /**
+    * Same as streamQuery with the default fetch size (-Dcafe.fetchSize).
+    */
+   public long streamQuery(String query, RowHandler handler, Object... params) throws SQLException {
+      return streamQuery(query, DEFAULT_FETCH_SIZE, handler, params);
+   }// end streamQuery
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) that
+    * returns at most one interesting row, e.g. a lookup by key or an INSERT
+    * ... RETURNING, and map that row to a value.
+    *
+    * @param query the input query template
+    * @param mapper turns the first row into the result
+    * @param params the values bound to the template's placeholders
+    * @return the mapped first row, or null when the query returned no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryForObject(String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      if (everyShard(query)) {
+         if (!this._router.readOnly(query))
+            throw noShard(query);
+         // the first shard that has the row
+         this._shards.broadcast();
+         for (int i = 0; i < this._shards.size(); ++i) {
+            T result = onShard(i, () -> queryForObject(query, mapper, params));
+            if (result != null)
+               return result;
+         } // end for
+         return null;
+      } // end if
+      long start = System.nanoTime();
       int rowCount = 0;
+      boolean failed = true;
+      ConnectionPool.Entry conn = borrow(query);
+      try {
+         ResultSet rs = prepare(conn, query, params).executeQuery();
+         try {
+            T result = null;
+            if (rs.next()) {
+               rowCount = 1;
+               result = mapper.map(new Row(rs));
+            } // end if
+            failed = false;
+            return result;
+         } finally {
+            rs.close();
+         } // end try
+      } catch (SQLException e) {
+         throw this._metrics.failed(e);
+      } finally {
+         release(conn);
+         this._metrics.record(query, start, rowCount, 1, failed);
+      } // end try
+   }// end queryForObject
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()) {
-         if (outputHeader) {
-            for (int i = 1; i <= numCol; i++) {
-               System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
-            outputHeader = false;
-         }
-         for (int i = 1; i <= numCol; ++i)
-            System.out.print(rs.getString(i) + "\t");
-         System.out.println();
-         ++rowCount;
-      } // end while
-      stmt.close();
-      return rowCount;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT). This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out.
+    *
+    * @param query the input query template
+    * @param params the values bound to the template's placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult(String query, Object... params) throws SQLException {
+      // streams the result set through an aligned, buffered table printer.
+      ResultPrinter printer = new ResultPrinter();
+      try {
+         return (int) streamQuery(query, printer, params);
+      } finally {
+         printer.finish();
+      } // end try
    }// end executeQuery
 
    /**
@@ -131,92 +804,248 @@ public class Cafe {
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param params the values bound to the template's placeholders
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result = new ArrayList<List<String>>();
-      while (rs.next()) {
-         List<String> record = new ArrayList<String>();
-         for (int i = 1; i <= numCol; ++i)
-            record.add(rs.getString(i));
-         result.add(record);
-      } // end while
-      stmt.close();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws SQLException {
+      if (everyShard(query)) {
+         this._shards.broadcast();
+         List<List<String>> records = new ArrayList<List<String>>();
+         for (int i = 0; i < this._shards.size(); ++i)
+            records.addAll(onShard(i, () -> executeQueryAndReturnResult(query, params)));
+         return records;
+      } // end if
+      long start = System.nanoTime();
+      List<List<String>> result = null;
+      ConnectionPool.Entry conn = borrow(query);
+      try {
+         // issues the query instruction
+         ResultSet rs = prepare(conn, query, params).executeQuery();
+
+         /*
+          ** obtains the metadata object for the returned result set. The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData();
+         int numCol = rsmd.getColumnCount();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> records = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>();
+            for (int i = 1; i <= numCol; ++i)
+               record.add(rs.getString(i));
+            records.add(record);
+         } // end while
+         rs.close();
+         result = records;
+         return result;
+      } catch (SQLException e) {
+         throw this._metrics.failed(e);
+      } finally {
+         release(conn);
+         this._metrics.record(query, start, result == null ? 0 : result.size(), 1, result == null);
+      } // end try
    }// end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT). This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param params the values bound to the template's placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
+   public int executeQuery(String query, Object... params) throws SQLException {
+      if (everyShard(query)) {
+         this._shards.broadcast();
+         int rowCount = 0;
+         for (int i = 0; i < this._shards.size(); ++i)
+            rowCount += onShard(i, () -> executeQuery(query, params));
+         return rowCount;
+      } // end if
+      long start = System.nanoTime();
       int rowCount = 0;
+      boolean failed = true;
+      ConnectionPool.Entry conn = borrow(query);
+      try {
+         // issues the query instruction
+         ResultSet rs = prepare(conn, query, params).executeQuery();
 
-      // iterates through the result set and count nuber of results.
-      while (rs.next()) {
-         rowCount++;
-      } // end while
-      stmt.close();
-      return rowCount;
+         // iterates through the result set and count nuber of results.
+         while (rs.next()) {
+            rowCount++;
+         } // end while
+         rs.close();
+         failed = false;
+         return rowCount;
+      } catch (SQLException e) {
+         throw this._metrics.failed(e);
+      } finally {
+         release(conn);
+         this._metrics.record(query, start, rowCount, 1, failed);
+      } // end try
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys. currval is per
+    * connection, so call this inside the inTransaction that used the
+    * sequence.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement();
-
-      ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+      long start = System.nanoTime();
+      boolean failed = true;
+      ConnectionPool.Entry conn = borrow("Select currval(?::regclass)");
+      try {
+         ResultSet rs = prepare(conn, "Select currval(?::regclass)", sequence).executeQuery();
+         int value = -1;
+         if (rs.next())
+            value = rs.getInt(1);
+         rs.close();
+         failed = false;
+         return value;
+      } catch (SQLException e) {
+         throw this._metrics.failed(e);
+      } finally {
+         release(conn);
+         this._metrics.record("Select currval(?::regclass)", start, 1, 1, failed);
+      } // end try
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Returns the current in-memory copy of the Menu table.
+    *
+    * @return the menu snapshot
+    * @throws java.sql.SQLException when the menu had to be reloaded and failed
+    */
+   public MenuSnapshot getMenu() throws SQLException {
+      return this._menu.get();
+   }// end getMenu
+
+   /**
+    * @return the login and password checker
+    */
+   public Authenticator getAuthenticator() {
+      return this._auth;
+   }// end getAuthenticator
+
+   /**
+    * @return the open orders of the last 24 hours, kept current by NOTIFY
+    */
+   public KitchenQueue getKitchen() {
+      return this._kitchen;
+   }// end getKitchen
+
+   /**
+    * @return the sessions of the users logged in through this process
+    */
+   public SessionRegistry getSessions() {
+      return this._sessions;
+   }// end getSessions
+
+   /**
+    * @return the router that picks the primary or a replica per statement
+    */
+   public ReplicaRouter getRouter() {
+      return this._router;
+   }// end getRouter
+
+   /**
+    * @return the shards Orders and ItemStatus are split over, if any
+    */
+   public ShardRouter getShards() {
+      return this._shards;
+   }// end getShards
+
+   /**
+    * @return the limits on concurrent operations
+    */
+   public AdmissionController getAdmission() {
+      return this._admission;
+   }// end getAdmission
+
+   /**
+    * @return the log of profile and order changes
+    */
+   public AuditLog getAudit() {
+      return this._audit;
+   }// end getAudit
+
+   /**
+    * Names the user the current thread works for: their reads stay on the
+    * primary for a while after they write, and their changes are audited
+    * under their login.
+    *
+    * @param login the logged-in user, or null for none
+    */
+   public void actAs(String login) {
+      this._router.setKey(login);
+      this._audit.setActor(login);
+   }// end actAs
+
+   /*
+    * Records a change in the audit log, or inside a transaction holds it
+    * until the transaction commits.
+    **/
+   private void audit(String action, Object subject, String detail) {
+      if (this._bound.get() == null) {
+         this._audit.record(action, String.valueOf(subject), detail);
+         return;
+      } // end if
+      List<String[]> held = this._heldAudit.get();
+      if (held == null) {
+         held = new ArrayList<String[]>();
+         this._heldAudit.set(held);
+      } // end if
+      held.add(new String[] { action, String.valueOf(subject), detail });
+   }// end audit
+
+   /**
+    * @return the per-template query metrics
+    */
+   public QueryMetrics getMetrics() {
+      return this._metrics;
+   }// end getMetrics
+
+   /**
+    * @return the listener other components register NOTIFY handlers with
+    */
+   public DbListener getListener() {
+      return this._listener;
+   }// end getListener
+
+   /**
+    * Method to close the pooled physical connections.
     */
    public void cleanup() {
-      try {
-         if (this._connection != null) {
-            this._connection.close();
-         } // end if
-      } catch (SQLException e) {
-         // ignored.
-      } // end try
+      // the last audit events still need the pools
+      if (this._audit != null) {
+         this._audit.close();
+      } // end if
+      this._metrics.close();
+      if (this._listener != null) {
+         this._listener.close();
+      } // end if
+      for (DbListener listener : this._shardListeners)
+         listener.close();
+      if (this._router != null) {
+         this._router.close();
+      } // end if
+      if (this._shards != null) {
+         this._shards.close();
+      } // end if
+      if (this._pool != null) {
+         this._pool.close();
+      } // end if
    }// end cleanup
 
    /**
@@ -246,7 +1075,7 @@ public class Cafe {
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         String authorisedUser = null;
+         Session session = null;
          esql = new Cafe(dbname, dbport, user, "");
 
          boolean keepon = true;
@@ -262,7 +1091,7 @@ public class Cafe {
                   CreateUser(esql);
                   break;
                case 2:
-                  authorisedUser = LogIn(esql);
+                  session = LogIn(esql);
                   break;
                case 9:
                   keepon = false;
@@ -271,9 +1100,14 @@ public class Cafe {
                   System.out.println("Unrecognized choice!");
                   break;
             }// end switch
-            if (authorisedUser != null) {
+            if (session != null) {
+               esql.actAs(session.login());
                boolean usermenu = true;
                while (usermenu) {
+                  if (!session.isValid()) {
+                     System.out.println("Your login or user type was changed, please log in again.");
+                     break;
+                  }
                   System.out.println("MAIN MENU");
                   System.out.println("---------");
                   System.out.println("1. Goto Menu");
@@ -282,6 +1116,11 @@ public class Cafe {
                   System.out.println("3. Place a Order");
                   System.out.println("4. Update a Order");
                   System.out.println("5. View Order History");
+                  if (session.isStaff())
+                     System.out.println("6. Kitchen Feed");
+                  if (session.isManager())
+                     System.out.println("7. Sales Reports");
+                  System.out.println("8. Reorder Favorites");
                   System.out.println(".........................");
                   System.out.println("9. Log out");
                   switch (readChoice()) {
@@ -292,18 +1131,28 @@ public class Cafe {
                         MenuItemType(esql);
                         break;
                      case 2:
-                        UpdateProfile(esql);
+                        UpdateProfile(esql, session);
                         break;
                      case 3:
-                        PlaceOrder(esql, authorisedUser);
+                        PlaceOrder(esql, session.login());
                         break;
                      case 4:
-                        UpdateOrder(esql, authorisedUser);
+                        UpdateOrder(esql, session);
                         break;
                      case 5:
-                        viewOrderHistory(esql, authorisedUser);
+                        viewOrderHistory(esql, session);
+                        break;
+                     case 6:
+                        KitchenFeed(esql, session);
+                        break;
+                     case 7:
+                        SalesReport(esql, session);
+                        break;
+                     case 8:
+                        ReorderFavorites(esql, session.login());
                         break;
                      case 9:
+                        esql.getSessions().close(session);
                         usermenu = false;
                         break;
                      default:
@@ -311,10 +1160,12 @@ public class Cafe {
                         break;
                   }
                }
+               session = null;
+               esql.actAs(null);
             }
          } // end while
       } catch (Exception e) {
-         System.err.println(e.getMessage());
+         System.err.println(failure(e));
       } finally {
          // make sure to cleanup the created table and close the connection.
          try {
@@ -329,6 +1180,20 @@ public class Cafe {
       } // end try
    }// end main
 
+   /*
+    * The message shown when a menu action fails. Timeouts and collisions
+    * with other users get a hint to try again instead of the server's wording.
+    **/
+   static String failure(Exception e) {
+      if (e instanceof AdmissionController.BusyException)
+         return e.getMessage();
+      if (e instanceof SQLException && isTimeout((SQLException) e))
+         return "The cafe is busy and the request took too long, please try again.";
+      if (e instanceof SQLException && isRetryable((SQLException) e))
+         return "The request collided with another one, please try again.";
+      return e.getMessage();
+   }// end failure
+
    public static void Greeting() {
       System.out.println(
             "\n\n*******************************************************\n" +
@@ -369,39 +1234,31 @@ public class Cafe {
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
 
-         String type = "Customer";
-         String favItems = "";
-
-         String query = String.format(
-               "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone,
-               login, password, favItems, type);
-
-         esql.executeUpdate(query);
+         createUser(esql, login, password, phone);
          System.out.println("User successfully created!");
       } catch (Exception e) {
-         System.err.println(e.getMessage());
+         System.err.println(failure(e));
       }
    }// end CreateUser
 
    /*
     * Check log in credentials for an existing user
     * 
-    * @return User login or null is the user does not exist
+    * @return the user's session or null is the user does not exist
     **/
-   public static String LogIn(Cafe esql) {
+   public static Session LogIn(Cafe esql) {
       try {
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
-            return login;
-         return null;
+         Session session = logIn(esql, login, password);
+         if (session == null)
+            System.out.println("Invalid login or password.");
+         return session;
       } catch (Exception e) {
-         System.err.println(e.getMessage());
+         System.err.println(failure(e));
          return null;
       }
    }// end
@@ -410,10 +1267,15 @@ public class Cafe {
 
    public static void Menu(Cafe esql){
       try{
-          String query = String.format("SELECT * FROM MENU");
-          int menuItems = esql.executeQueryAndPrintResult(query);
+          MenuSnapshot menu = esql.getMenu();
+          ResultPrinter printer = new ResultPrinter();
+          printer.header(new String[] { "itemname", "type", "price", "description", "imageurl" });
+          for (int i = 0; i < menu.size(); ++i)
+             printer.add(new String[] { menu.name(i), menu.type(i), String.valueOf(menu.price(i)),
+                   menu.description(i), menu.imageURL(i) });
+          printer.finish();
        }catch(Exception e){
-          System.err.println (e.getMessage ());
+          System.err.println(failure(e));
        }
    }
  
@@ -421,43 +1283,33 @@ public class Cafe {
       try{
     System.out.println("MENU ITEM TYPE");
          System.out.println("---------------");
-         System.out.println("Enter Item Type (Drinks, Sweets, or Soup) or Name: ");
+         System.out.println("Enter Item Type (Drinks, Sweets, or Soup), Name or part of either: ");
          String item = in.readLine();
-         
-         // create sql statment
-         String query = String.format("SELECT itemname FROM MENU WHERE type = '%s' OR itemname = '%s'", item, item);
-          
+         MenuSnapshot menu = esql.getMenu();
+         int[] found = menu.search().search(item, menu.size());
+
     System.out.println("---------------");
-    esql.executeQueryAndPrintResult(query);
+    System.out.println("itemname\ttype\tprice");
+    for (int i : found)
+       System.out.println(menu.name(i) + "\t" + menu.type(i) + "\t" + menu.price(i));
+    if (found.length == 0)
+       System.out.println("No menu item matches.");
          System.out.println("---------------");
        }catch(Exception e){
-          System.err.println(e.getMessage());
+          System.err.println(failure(e));
        }  
    }
 
-   public static void UpdateProfile(Cafe esql) {
+   public static void UpdateProfile(Cafe esql, Session session) {
       try {
-         String login = null;
-         String query = null;
-         String managerQuery = null;
-         List<List<String>> result;
-         List<List<String>> managerAuthString;
-         login = LogIn(esql);
-
-         if (login != null) {
-            query = String.format("SELECT type FROM USERS WHERE login = '%s'", login);
-            result = esql.executeQueryAndReturnResult(query);
-            String resultString = result.get(0).get(0);
-
-            String managerQ = String.format("SELECT type FROM USERS WHERE login = '%s'", login);
-            managerAuthString = esql.executeQueryAndReturnResult(managerQ);
-            String managerAuth = managerAuthString.get(0).get(0);
+         String login = session.login();
 
-            if (resultString.equals("Manager ")) {
+         if (session.isValid()) {
+            if (session.isManager()) {
                System.out.println("Enter login of user to modify: ");
                String userLogin = in.readLine();
-               managerQuery = String.format("SELECT * FROM USERS WHERE login = '%s'", userLogin);
-               int success = esql.executeQueryAndPrintResult(managerQuery);
+               int success = esql.withBudget(Budget.ACCOUNT,
+                     () -> esql.executeQueryAndPrintResult("SELECT * FROM USERS WHERE login = ?", userLogin));
                if (success != 0) {
                   System.out.println("Enter which field you would like to edit: ");
                   System.out.println("1. Username");
@@ -468,38 +1320,58 @@ public class Cafe {
                      case 1:
                         System.out.println("Enter new user login: ");
                         String newLogin = in.readLine();
-                        String change = String.format("UPDATE USERS SET login = '%s' WHERE login = '%s'", newLogin, userLogin);
-                        esql.executeUpdate(change);
-                        String changed = String.format("SELECT * FROM USERS WHERE login = '%s'", newLogin);
+                        if (esql.getShards().isEnabled()) {
+                           // the orders of a login live on the shard its name hashes to
+                           System.out.println("Logins can not be changed while orders are split over shards.");
+                           break;
+                        }
+                        String change = "UPDATE USERS SET login = ? WHERE login = ?";
+                        esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(change, newLogin, userLogin));
+                        esql.audit("user.login", userLogin, newLogin);
+                        esql.getSessions().invalidate(userLogin);
+                        esql.getAuthenticator().added(newLogin);
+                        String changed = "SELECT * FROM USERS WHERE login = ?";
                         System.out.println("Username changed! Updated information as follows: ");
-                        int querySuc2 = esql.executeQueryAndPrintResult(changed);
+                        int querySuc2 = esql.withBudget(Budget.ACCOUNT,
+                              () -> esql.executeQueryAndPrintResult(changed, newLogin));
                         break;
                      case 2:
                      System.out.println("Enter new password: ");
                      String newPassword = in.readLine();
-                     String changeP = String.format("UPDATE USERS SET password = '%s' WHERE login = '%s'", newPassword, userLogin);
-                     esql.executeUpdate(changeP);
-                     String changedP = String.format("SELECT * FROM USERS WHERE login = '%s'", userLogin);
+                     String changeP = "UPDATE USERS SET password = ? WHERE login = ?";
+                     esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(changeP, newPassword, userLogin));
+                     esql.audit("user.password", userLogin, null);
+                     String changedP = "SELECT * FROM USERS WHERE login = ?";
                      System.out.println("Password changed! Updated information as follows: ");
-                     int querySucP = esql.executeQueryAndPrintResult(changedP);
+                     int querySucP = esql.withBudget(Budget.ACCOUNT,
+                           () -> esql.executeQueryAndPrintResult(changedP, userLogin));
                      break;
                      case 3:
                      System.out.println("Enter new user phone number: ");
                         String newNum = in.readLine();
-                        String changeN = String.format("UPDATE USERS SET phoneNum = '%s' WHERE login = '%s'", newNum, userLogin);
-                        esql.executeUpdate(changeN);
-                        String changedN = String.format("SELECT * FROM USERS WHERE login = '%s'", userLogin);
+                        String changeN = "UPDATE USERS SET phoneNum = ? WHERE login = ?";
+                        esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(changeN, newNum, userLogin));
+                        esql.audit("user.phone", userLogin, newNum);
+                        String changedN = "SELECT * FROM USERS WHERE login = ?";
                         System.out.println("User phone number changed! Updated information as follows: ");
-                        int querySucN = esql.executeQueryAndPrintResult(changedN);
+                        int querySucN = esql.withBudget(Budget.ACCOUNT,
+                              () -> esql.executeQueryAndPrintResult(changedN, userLogin));
                         break;
                         case 4:
                         System.out.println("Enter new user type: ");
-                        String newType = in.readLine();
-                        String changeT = String.format("UPDATE USERS SET type = '%s' WHERE login = '%s'", newType, userLogin);
-                        esql.executeUpdate(changeT);
-                        String changedT = String.format("SELECT * FROM USERS WHERE login = '%s'", userLogin);
+                        Session.Role newRole = Session.Role.lookup(in.readLine());
+                        if (newRole == null) {
+                           System.out.println("User type must be Customer, Employee or Manager.");
+                           break;
+                        }
+                        String changeT = "UPDATE USERS SET type = ? WHERE login = ?";
+                        esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(changeT, newRole.type(), userLogin));
+                        esql.audit("user.type", userLogin, newRole.type());
+                        esql.getSessions().invalidate(userLogin);
+                        String changedT = "SELECT * FROM USERS WHERE login = ?";
                         System.out.println("User type changed! Updated information as follows: ");
-                        int querySucT = esql.executeQueryAndPrintResult(changedT);
+                        int querySucT = esql.withBudget(Budget.ACCOUNT,
+                              () -> esql.executeQueryAndPrintResult(changedT, userLogin));
                         break;
                   }
                }
@@ -507,6 +1379,8 @@ public class Cafe {
                   System.out.println("No users found with that login. Exiting...");
                   return;
                }
+               if (!session.isValid())
+                  return;
             }
 
             System.out.println("Enter which field you would like to edit: ");
@@ -518,164 +1392,275 @@ public class Cafe {
                      case 1:
                         System.out.println("Enter new user login: ");
                         String newLogin = in.readLine();
-                        String change = String.format("UPDATE USERS SET login = '%s' WHERE login = '%s'", newLogin, login);
-                        esql.executeUpdate(change);
-                        String changed = String.format("SELECT * FROM USERS WHERE login = '%s'", newLogin);
+                        if (esql.getShards().isEnabled()) {
+                           // the orders of a login live on the shard its name hashes to
+                           System.out.println("Logins can not be changed while orders are split over shards.");
+                           break;
+                        }
+                        String change = "UPDATE USERS SET login = ? WHERE login = ?";
+                        esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(change, newLogin, login));
+                        esql.audit("user.login", login, newLogin);
+                        esql.getSessions().invalidate(login);
+                        esql.getAuthenticator().added(newLogin);
+                        String changed = "SELECT * FROM USERS WHERE login = ?";
                         System.out.println("Username changed! Updated information as follows: ");
-                        int querySuc2 = esql.executeQueryAndPrintResult(changed);
+                        int querySuc2 = esql.withBudget(Budget.ACCOUNT,
+                              () -> esql.executeQueryAndPrintResult(changed, newLogin));
                         break;
                      case 2:
                      System.out.println("Enter new password: ");
                      String newPassword = in.readLine();
-                     String changeP = String.format("UPDATE USERS SET password = '%s' WHERE login = '%s'", newPassword, login);
-                     esql.executeUpdate(changeP);
-                     String changedP = String.format("SELECT * FROM USERS WHERE login = '%s'", login);
+                     String changeP = "UPDATE USERS SET password = ? WHERE login = ?";
+                     esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(changeP, newPassword, login));
+                     esql.audit("user.password", login, null);
+                     String changedP = "SELECT * FROM USERS WHERE login = ?";
                      System.out.println("Password changed! Updated information as follows: ");
-                     int querySucP = esql.executeQueryAndPrintResult(changedP);
+                     int querySucP = esql.withBudget(Budget.ACCOUNT,
+                           () -> esql.executeQueryAndPrintResult(changedP, login));
                      break;
                      case 3:
                      System.out.println("Enter new user phone number: ");
                         String newNum = in.readLine();
-                        String changeN = String.format("UPDATE USERS SET phoneNum = '%s' WHERE login = '%s'", newNum, login);
-                        esql.executeUpdate(changeN);
-                        String changedN = String.format("SELECT * FROM USERS WHERE login = '%s'", login);
+                        String changeN = "UPDATE USERS SET phoneNum = ? WHERE login = ?";
+                        esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(changeN, newNum, login));
+                        esql.audit("user.phone", login, newNum);
+                        String changedN = "SELECT * FROM USERS WHERE login = ?";
                         System.out.println("User phone number changed! Updated information as follows: ");
-                        int querySucN = esql.executeQueryAndPrintResult(changedN);
+                        int querySucN = esql.withBudget(Budget.ACCOUNT,
+                              () -> esql.executeQueryAndPrintResult(changedN, login));
                         break;
                         case 4:
                         System.out.println("Enter new user type: ");
-                        String newType = in.readLine();
-                        String changeT = String.format("UPDATE USERS SET type = '%s' WHERE login = '%s'", newType, login);
-                        esql.executeUpdate(changeT);
-                        String changedT = String.format("SELECT * FROM USERS WHERE login = '%s'", login);
+                        Session.Role newRole = Session.Role.lookup(in.readLine());
+                        if (newRole == null) {
+                           System.out.println("User type must be Customer, Employee or Manager.");
+                           break;
+                        }
+                        String changeT = "UPDATE USERS SET type = ? WHERE login = ?";
+                        esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(changeT, newRole.type(), login));
+                        esql.audit("user.type", login, newRole.type());
+                        esql.getSessions().invalidate(login);
+                        String changedT = "SELECT * FROM USERS WHERE login = ?";
                         System.out.println("User type changed! Updated information as follows: ");
-                        int querySucT = esql.executeQueryAndPrintResult(changedT);
+                        int querySucT = esql.withBudget(Budget.ACCOUNT,
+                              () -> esql.executeQueryAndPrintResult(changedT, login));
                         break;
                   }
 
          } else {
-            System.out.println("login failed. please try again");
-            UpdateProfile(esql);
+            System.out.println("Your session has ended, please log in again.");
          }
       } catch (Exception e) {
-         System.err.println(e.getMessage());
+         System.err.println(failure(e));
       }
 
    }
 
+   /*
+    * Shows the orders matching a filter one page at a time, newest first
+    *
+    * @return the number of orders on the first page
+    **/
+   public static int browseOrders(Cafe esql, String filter, Object... params) throws SQLException, IOException {
+      return orderPager(esql, filter, params).browse(in, KeysetPager.DEFAULT_PAGE_SIZE);
+   }// end browseOrders
+
    public static void PlaceOrder(Cafe esql, String login) {
       try {
-         String query = null;
-         List<List<String>> result;
-         String orderID;
-         float price = 0.0f;
-
          Menu(esql);
 
-         String item = "";
+         // collect the whole cart before touching the database
          System.out.println("What would you like to order? (Enter 'q' to complete order)");
+         List<String> cart = readItems(esql.getMenu());
+         if (cart.isEmpty()) {
+            System.out.println("No items ordered.");
+            return;
+         }
 
-         //query = String.format(        "ALTER TABLE ORDERS AUTO_INCREMENT=2"      );
-         //2esql.executeUpdate(query);
-
-         //orderID = result.get(0).get(0);
-         //int ID = Integer.parseInt(orderID);
-         //ID++;
+         int orderID = placeOrder(esql, login, cart);
+         System.out.println("Order has been placed with orderID: " + orderID);
+         esql.executeQueryAndPrintResult("SELECT * FROM ORDERS WHERE orderID = ?", orderID);
+      } catch (Exception e) {
+         System.err.println(failure(e));
+      }
+   }
 
-         query = String.format("INSERT INTO ORDERS VALUES (DEFAULT,'%s','%s', CURRENT_TIMESTAMP,'%s' )", login, false, 666.666);
-         esql.executeUpdate(query);
+   /*
+    * Reads menu item names, one per line, until q, and returns them spelled
+    * as on the menu without duplicates.
+    **/
+   private static List<String> readItems(MenuSnapshot menu) throws IOException {
+      List<String> items = new ArrayList<String>();
+      String item = in.readLine();
+      while (item != null && !item.equals("q")) {
+         int valid = menu.indexOf(item);
+         if (valid < 0)
+            valid = menu.search().find(item);
+         if (valid < 0) {
+            System.out.println("Item by that name does not exist in the menu."
+                  + menu.search().didYouMean(item) + " Please try again.");
+         } else if (items.contains(menu.name(valid))) {
+            System.out.println(menu.name(valid) + " is already in this order.");
+         } else {
+            items.add(menu.name(valid));
+         }
+         item = in.readLine();
+      }
+      return items;
+   }// end readItems
 
-         query = String.format("SELECT orderID FROM ORDERS WHERE total = '%s'",666.666);
-         result = esql.executeQueryAndReturnResult(query);
-         orderID = result.get(0).get(0);
+   /*
+    * Reads a comma separated list of orderIDs.
+    **/
+   private static Integer[] readOrderIDs() throws IOException {
+      List<Integer> orderIDs = new ArrayList<Integer>();
+      for (String id : in.readLine().split(",")) {
+         if (!id.trim().isEmpty())
+            orderIDs.add(Integer.parseInt(id.trim()));
+      }
+      return orderIDs.toArray(new Integer[orderIDs.size()]);
+   }// end readOrderIDs
 
-         while (!item.equals("q")) {
-            item = in.readLine();
-            if (item.equals("q")) {
-               break;
-            }
-            query = String.format("SELECT * FROM MENU WHERE itemName = '%s'", item);
-            int valid = esql.executeQuery(query);
-            while (valid == 0) {
-               System.out.println("Item by that name does not exist in the menu. Please try again.");
-               item = in.readLine();
-               if (item.equals("q")) {
+   /*
+    * Shows the user's favorites and either orders all of them at once or
+    * replaces them.
+    **/
+   public static void ReorderFavorites(Cafe esql, String login) {
+      try {
+         List<String> favorites = favorites(esql, login);
+         System.out.println(favorites.isEmpty() ? "You have no favorites yet."
+               : "Your favorites: " + String.join(", ", favorites));
+         System.out.println("1. Order my favorites");
+         System.out.println("2. Change my favorites");
+         switch (readChoice()) {
+            case 1:
+               Integer orderID = reorderFavorites(esql, login);
+               if (orderID == null) {
+                  System.out.println("Choose your favorites first.");
                   break;
                }
-               query = String.format("SELECT * FROM MENU WHERE itemName = '%s'", item);
-               valid = esql.executeQuery(query);
-            }
-
-            query = String.format("INSERT INTO ITEMSTATUS VALUES ('%s', '%s', CURRENT_TIMESTAMP, '%s')", orderID, item, "Started");
-            esql.executeUpdate(query);
-
-            query = String.format("SELECT price FROM MENU WHERE itemName = '%s'", item);
-            result = esql.executeQueryAndReturnResult(query);
-
-            price += Float.parseFloat(result.get(0).get(0));
-
-            
+               System.out.println("Order has been placed with orderID: " + orderID);
+               esql.executeQueryAndPrintResult("SELECT * FROM ORDERS WHERE orderID = ?", orderID);
+               break;
+            case 2:
+               Menu(esql);
+               System.out.println("Enter your favorite items (Enter 'q' when done)");
+               List<String> chosen = readItems(esql.getMenu());
+               setFavorites(esql, login, chosen);
+               System.out.println(chosen.isEmpty() ? "Favorites cleared." : "Favorites saved: " + String.join(", ", chosen));
+               break;
+            default:
+               System.out.println("Unrecognized choice!");
+               break;
          }
-
-         query = String.format("UPDATE ORDERS SET total = '%s' WHERE orderID = '%s'", price, orderID);
-         esql.executeUpdate(query);
-         System.out.println("Order has been placed with orderID: " + orderID);
-         query = String.format("SELECT * FROM ORDERS WHERE orderID = '%s'",orderID);
-         esql.executeQueryAndPrintResult(query);
-            
-
       } catch (Exception e) {
-         System.err.println(e.getMessage());
+         System.err.println(failure(e));
       }
-   }
+   }// end ReorderFavorites
+
+   /*
+    * Places an order for the given menu items in one transaction: the order
+    * row is inserted with its total computed from Menu prices, and the
+    * ItemStatus rows are written in a single batch. This costs the same three
+    * round trips however many items are ordered.
+    *
+    * @return the new orderID
+    **/
+   public static int placeOrder(final Cafe esql, final String login, final List<String> items) throws SQLException {
+      int orderID = esql.withBudget(Budget.ORDER, () -> insertOrder(esql, login, items));
+      esql.audit("order.placed", orderID, String.join(",", items));
+      return orderID;
+   }// end placeOrder
 
-   public static void UpdateOrder(Cafe esql, String login) {
+   /*
+    * The transaction of placeOrder, on the shard of the login.
+    **/
+   private static int insertOrder(final Cafe esql, final String login, final List<String> items) throws SQLException {
+      return esql.onShardOf(login, () -> esql.inTransaction(new Work<Integer>() {
+         public Integer run() throws SQLException {
+            int orderID = esql.queryForObject(PLACE_ORDER_SQL,
+                  row -> row.getInt(1), login, items.toArray(new String[items.size()]));
+
+            List<Object[]> rows = new ArrayList<Object[]>(items.size());
+            for (String item : items)
+               rows.add(new Object[] { orderID, item, STATUS_STARTED });
+            esql.executeBatch(ORDER_ITEM_SQL, rows);
+            return orderID;
+         }
+      }));
+   }// end insertOrder
+
+   public static void UpdateOrder(Cafe esql, Session session) {
       try {
-         //String login = null;
+         String login = session.login();
          String query = null;
-         String orderID = null;
-         //login = LogIn(esql);
+         int orderID;
 
          String managerQuery = null;
-         List<List<String>> result;
-         List<List<String>> managerAuthString;
-
-         if (login != null) {
-            query = String.format("SELECT type FROM USERS WHERE login = '%s'", login);
-            result = esql.executeQueryAndReturnResult(query);
-            String resultString = result.get(0).get(0);
-
-            String managerQ = String.format("SELECT type FROM USERS WHERE login = '%s'", login);
-            managerAuthString = esql.executeQueryAndReturnResult(managerQ);
-            String managerAuth = managerAuthString.get(0).get(0);
-
-            if (resultString.equals("Manager ") || resultString.equals("Employee ")) {
-               System.out.println("Enter login of user of order to update: ");
-               login = in.readLine();
-               query = String.format("SELECT * from ORDERS where login = '%s'", login);
-               esql.executeQueryAndPrintResult(query);
-               System.out.println("Enter orderID of order to change to paid: ");
-               orderID = in.readLine();
-               query = String.format("UPDATE ORDERS set paid = '%s' where orderID = '%s'", true, orderID);
-               esql.executeUpdate(query);
-               query = String.format("UPDATE ITEMSTATUS set lastUpdated = CURRENT_TIMESTAMP where orderID = '%s'", orderID);
-               esql.executeUpdate(query);
-               System.out.println("Updated paid order status.");
-               query = String.format("SELECT * FROM ORDERS where orderID = '%s'", orderID);
-               esql.executeQueryAndPrintResult(query);
+
+         if (session.isValid()) {
+            if (session.isStaff()) {
+               System.out.println("1. Mark orders paid");
+               System.out.println("2. Mark all unpaid orders of a user paid");
+               System.out.println("3. Change the status of order items");
+               int[] counts;
+               Integer[] orderIDs;
+               switch (readChoice()) {
+                  case 1:
+                     System.out.println("Enter orderIDs of orders to change to paid, separated by commas: ");
+                     orderIDs = readOrderIDs();
+                     counts = markOrdersPaid(esql, orderIDs);
+                     System.out.println("Marked " + counts[0] + " of " + orderIDs.length + " orders paid, "
+                           + counts[1] + " items updated.");
+                     break;
+                  case 2:
+                     System.out.println("Enter login of user of orders to change to paid: ");
+                     String customer = in.readLine().trim();
+                     browseOrders(esql, "login = ?", customer);
+                     Object[] unpaid = unpaidOrders(esql, customer);
+                     if ((Long) unpaid[0] == 0) {
+                        System.out.println("No unpaid orders found for " + customer + ".");
+                        break;
+                     }
+                     System.out.println("Mark " + unpaid[0] + " unpaid orders of " + customer + " totaling $"
+                           + unpaid[1] + " paid? (y/n): ");
+                     String answer = in.readLine();
+                     if (answer == null || !answer.trim().equalsIgnoreCase("y")) {
+                        System.out.println("No orders were changed.");
+                        break;
+                     }
+                     counts = markUserOrdersPaid(esql, customer);
+                     System.out.println("Marked " + counts[0] + " orders paid, " + counts[1] + " items updated.");
+                     break;
+                  case 3:
+                     System.out.println("Enter orderIDs of orders whose items changed, separated by commas: ");
+                     orderIDs = readOrderIDs();
+                     System.out.println("Enter current status (blank for " + STATUS_STARTED + "): ");
+                     String from = in.readLine().trim();
+                     System.out.println("Enter new status (blank for " + STATUS_READY + "): ");
+                     String to = in.readLine().trim();
+                     int items = advanceItems(esql, orderIDs, from.isEmpty() ? STATUS_STARTED : from,
+                           to.isEmpty() ? STATUS_READY : to);
+                     System.out.println("Changed the status of " + items + " items.");
+                     break;
+                  default:
+                     System.out.println("Unrecognized choice!");
+                     break;
+               }
             }
             else {
 
-               query = String.format("SELECT * from ORDERS where login = '%s'", login);
-               esql.executeQueryAndPrintResult(query);
+               browseOrders(esql, "login = ?", login);
                System.out.println("Enter orderID of order to update: ");
-               orderID = in.readLine();
-               query = String.format("SELECT paid FROM ORDERS WHERE orderID = '%s'", orderID);
-               result = esql.executeQueryAndReturnResult(query);
-               String isPaid = result.get(0).get(0);
-               if (isPaid.equals("f")) {
-                  query = String.format("SELECT * FROM ITEMSTATUS WHERE orderID = '%s'", orderID);
-                  int numOrders = esql.executeQueryAndPrintResult(query);
+               orderID = Integer.parseInt(in.readLine().trim());
+               query = "SELECT paid FROM ORDERS WHERE orderID = ? AND login = ?";
+               Boolean isPaid = esql.queryForObject(query, row -> row.getBoolean(1), orderID, login);
+               if (isPaid == null) {
+                  System.out.println("No order found with that orderID.");
+                  return;
+               }
+               if (!isPaid) {
+                  int numOrders = esql.executeQueryAndPrintResult(ORDER_ITEMS_SQL, orderID);
 
                   System.out.println("Would you like to remove or add items to this order? (0 for remove, 1 for add): ");
 
@@ -684,17 +1669,7 @@ public class Cafe {
 
                         System.out.println("Enter the name of the item you want removed from your order: ");
                         String choice = in.readLine();
-                        query = String.format("DELETE FROM ITEMSTATUS WHERE orderid = '%s' AND itemName = '%s'", orderID, choice);
-                        esql.executeUpdate(query);
-                        query = String.format("SELECT price FROM MENU WHERE itemName = '%s'", choice);
-                        result = esql.executeQueryAndReturnResult(query);
-                        float itemPrice = Float.parseFloat(result.get(0).get(0));
-                        query = String.format("SELECT total FROM ORDERS WHERE orderID = '%s'", orderID);
-                        result = esql.executeQueryAndReturnResult(query);
-                        float totalPrice = Float.parseFloat(result.get(0).get(0));
-                        totalPrice -= itemPrice;
-                        query = String.format("UPDATE ORDERS SET total = '%s' WHERE orderID = '%s'", totalPrice, orderID);
-                        esql.executeUpdate(query);
+                        BigDecimal totalPrice = removeItemFromOrder(esql, orderID, choice);
                         System.out.println("Removed " + choice + " from orderID " + orderID);
                         System.out.println("New order total: $" + totalPrice);
                         break;
@@ -705,15 +1680,7 @@ public class Cafe {
                      String choice1 = in.readLine();
                      //query = String.format("DELETE FROM ITEMSTATUS WHERE itemName = '%s'", choice1);
                      //esql.executeUpdate(query);
-                     query = String.format("SELECT price FROM MENU WHERE itemName = '%s'", choice1);
-                     result = esql.executeQueryAndReturnResult(query);
-                     float itemPrice1 = Float.parseFloat(result.get(0).get(0));
-                     query = String.format("SELECT total FROM ORDERS WHERE orderID = '%s'", orderID);
-                     result = esql.executeQueryAndReturnResult(query);
-                     float totalPrice1 = Float.parseFloat(result.get(0).get(0));
-                     totalPrice1 += itemPrice1;
-                     query = String.format("UPDATE ORDERS SET total = '%s' WHERE orderID = '%s'", totalPrice1, orderID);
-                     esql.executeUpdate(query);
+                     BigDecimal totalPrice1 = addItemToOrder(esql, orderID, choice1);
                      System.out.println("Added " + choice1 + " to orderID " + orderID);
                      System.out.println("New order total: $" + totalPrice1);
 
@@ -725,69 +1692,646 @@ public class Cafe {
             
                
                else {
-                  query = String.format("SELECT * FROM ORDERS WHERE orderID = '%s'", orderID);
-                  esql.executeQueryAndPrintResult(query);
+                  query = "SELECT * FROM ORDERS WHERE orderID = ?";
+                  esql.executeQueryAndPrintResult(query, orderID);
                   System.out.println("Order has been paid, changes cannot be made at this time.");
                   return;
                }
          }}         
          else {
-            System.out.println("login failed. please try again");
-            UpdateProfile(esql);
+            System.out.println("Your session has ended, please log in again.");
          }
       
    } catch (Exception e) {
-      System.err.println(e.getMessage());
+      System.err.println(failure(e));
    }
 }
 
-public static void viewOrderHistory(Cafe esql, String login) { 
+public static void viewOrderHistory(Cafe esql, Session session) { 
 
    try {
-      String query = null;
-         String orderID = null;
+         String login = session.login();
          int orders;
-         //login = LogIn(esql);
 
-         String managerQuery = null;
-         List<List<String>> result;
-         List<List<String>> managerAuthString;
-
-         if (login != null) {
-            query = String.format("SELECT type FROM USERS WHERE login = '%s'", login);
-            result = esql.executeQueryAndReturnResult(query);
-            String resultString = result.get(0).get(0);
-
-            String managerQ = String.format("SELECT type FROM USERS WHERE login = '%s'", login);
-            managerAuthString = esql.executeQueryAndReturnResult(managerQ);
-            String managerAuth = managerAuthString.get(0).get(0);
-
-            if (resultString.equals("Manager ") || resultString.equals("Employee ")) {
-               query = String.format("SELECT * FROM ORDERS WHERE paid = '%s' AND timeStampRecieved >= NOW() - '1 day'::INTERVAL ", false);
-               orders = esql.executeQueryAndPrintResult(query);
+         if (session.isValid()) {
+            if (session.isStaff()) {
+               orders = browseOrders(esql, RECENT_UNPAID);
             }
             else {
-               query = String.format("SELECT * FROM ORDERS WHERE login = '%s' ORDER BY timeStampRecieved DESC LIMIT 5", login);
-               orders = esql.executeQueryAndPrintResult(query);
+               ResultPrinter printer = new ResultPrinter();
+               orders = (int) orderHistory(esql, login, false, printer);
+               printer.finish();
             }
             if (orders == 0) {
                System.out.println("No orders within 24 hours found.");
             }
          }          else {
-            System.out.println("login failed. please try again");
-            UpdateProfile(esql);
+            System.out.println("Your session has ended, please log in again.");
          }
 
 
 
    } catch (Exception e) {
-      System.err.println(e.getMessage());
+      System.err.println(failure(e));
    }
 
 }
 
+   /*
+    * Shows the open items of the last 24 hours, oldest order first, and
+    * redraws them whenever an order or item changes until the user enters q.
+    * The view is rendered from the KitchenQueue, so watching it sends no
+    * queries.
+    **/
+   public static void KitchenFeed(Cafe esql, Session session) {
+      if (!session.isStaff()) {
+         System.out.println("Only employees and managers can watch the kitchen feed.");
+         return;
+      }
+      try {
+         KitchenQueue kitchen = esql.getKitchen();
+         while (session.isValid()) {
+            long version = kitchen.version();
+            ResultPrinter printer = new ResultPrinter();
+            printer.header(new String[] { "orderid", "login", "received", "item", "status", "lastupdated" });
+            for (KitchenQueue.Order order : kitchen.orders()) {
+               for (KitchenQueue.Item item : order.items())
+                  printer.add(new String[] { String.valueOf(order.orderID), order.login,
+                        String.valueOf(order.received), item.name, item.status, String.valueOf(item.lastUpdated) });
+            }
+            printer.finish();
+            System.out.println("Watching for changes, enter q to leave.");
+            while (!in.ready() && kitchen.awaitChange(version, 500) == version)
+               ;
+            if (in.ready()) {
+               String line = in.readLine();
+               if (line == null || line.trim().equals("q"))
+                  return;
+            }
+         }
+      } catch (Exception e) {
+         System.err.println(failure(e));
+      }
+   }// end KitchenFeed
+
+   /*
+    * Prints one of the sales reports. They read the rollup tables of
+    * migration 004, which triggers keep current, so a report costs the same
+    * however long the order history is.
+    **/
+   public static void SalesReport(Cafe esql, Session session) {
+      if (!session.isManager()) {
+         System.out.println("Only managers can view sales reports.");
+         return;
+      }
+      try {
+         System.out.println("1. Sales by hour, last 24 hours");
+         System.out.println("2. Sales by day, last 30 days");
+         System.out.println("3. Items sold, last 7 days");
+         switch (readChoice()) {
+            case 1:
+               printReport(esql, SALES_BY_HOUR_SQL, 24);
+               break;
+            case 2:
+               printReport(esql, SALES_BY_DAY_SQL, 30);
+               break;
+            case 3:
+               printReport(esql, ITEM_SALES_SQL, 7);
+               break;
+            default:
+               System.out.println("Unrecognized choice!");
+               break;
+         }
+      } catch (Exception e) {
+         System.err.println(failure(e));
+      }
+   }// end SalesReport
+
+   private static void printReport(Cafe esql, String sql, int span) throws SQLException {
+      ResultPrinter printer = new ResultPrinter();
+      try {
+         salesReport(esql, sql, span, printer);
+      } finally {
+         printer.finish();
+      } // end try
+   }// end printReport
+
+   // Non-interactive operations, shared by the menus above and by CafeServer
+
+   // The templates below are also explained by PlanChecker. Filters on paid
+   // use a literal so the partial index on unpaid orders matches every plan.
+
+   // unpaid orders of the last 24 hours
+   static final String RECENT_UNPAID = "paid = false AND timeStampRecieved >= NOW() - '1 day'::INTERVAL";
+
+   static final String CUSTOMER_HISTORY_SQL =
+         "SELECT * FROM ORDERS WHERE login = ? ORDER BY timeStampRecieved DESC LIMIT 5";
+
+   static final String STAFF_HISTORY_SQL =
+         "SELECT * FROM ORDERS WHERE " + RECENT_UNPAID + " ORDER BY timeStampRecieved DESC, orderid DESC";
+
+   static final String OPEN_ORDER_SQL = "SELECT paid FROM ORDERS WHERE orderID = ? AND login = ?";
+
+   static final String ORDER_ITEMS_SQL = "SELECT * FROM ITEMSTATUS WHERE orderID = ?";
+
+   static final String PLACE_ORDER_SQL =
+         "INSERT INTO ORDERS (login, paid, timeStampRecieved, total) "
+               + "SELECT ?, false, CURRENT_TIMESTAMP, COALESCE(SUM(price), 0) FROM MENU WHERE itemName = ANY(?) "
+               + "RETURNING orderid";
+
+   // run in the transaction that inserted the order, so CURRENT_TIMESTAMP is
+   // the order's timeStampRecieved and the item lands in the order's partition
+   static final String ORDER_ITEM_SQL =
+         "INSERT INTO ITEMSTATUS (orderid, itemName, lastUpdated, status, orderTime) "
+               + "VALUES (?, ?, CURRENT_TIMESTAMP, ?, CURRENT_TIMESTAMP)";
+
+   // sales reports over the rollups; the parameter is the number of hours or days
+   static final String SALES_BY_HOUR_SQL =
+         "SELECT h.hour, COALESCE(SUM(s.orders), 0) AS orders, COALESCE(SUM(s.revenue), 0) AS revenue, "
+               + "COALESCE(SUM(s.paidRevenue), 0) AS paid, round(SUM(s.items)::numeric / NULLIF(SUM(s.orders), 0), 2) AS basket "
+               + "FROM generate_series(date_trunc('hour', now()::timestamp) - (? - 1) * '1 hour'::INTERVAL, "
+               + "date_trunc('hour', now()::timestamp), '1 hour') h(hour) "
+               + "LEFT JOIN sales_hourly s ON s.hour = h.hour GROUP BY h.hour ORDER BY h.hour";
+
+   static final String SALES_BY_DAY_SQL =
+         "SELECT d.day::date AS day, COALESCE(SUM(s.orders), 0) AS orders, COALESCE(SUM(s.revenue), 0) AS revenue, "
+               + "COALESCE(SUM(s.paidRevenue), 0) AS paid, round(SUM(s.items)::numeric / NULLIF(SUM(s.orders), 0), 2) AS basket "
+               + "FROM generate_series(date_trunc('day', now()::timestamp) - (? - 1) * '1 day'::INTERVAL, "
+               + "date_trunc('day', now()::timestamp), '1 day') d(day) "
+               + "LEFT JOIN sales_hourly s ON s.hour >= d.day AND s.hour < d.day + '1 day'::INTERVAL "
+               + "GROUP BY d.day ORDER BY d.day";
+
+   static final String ITEM_SALES_SQL =
+         "SELECT itemName, SUM(sold) AS sold FROM item_sales_daily WHERE day > CURRENT_DATE - ? "
+               + "GROUP BY itemName HAVING SUM(sold) > 0 ORDER BY sold DESC, itemName";
+
+   static final String FAVORITES_SQL =
+         "SELECT itemName FROM UserFavorites WHERE login = ? ORDER BY position";
+
+   // places the order and writes its items in one statement; no row when
+   // the user has no favorites
+   static final String REORDER_FAVORITES_SQL =
+         "WITH o AS ("
+               + "INSERT INTO ORDERS (login, paid, timeStampRecieved, total) "
+               + "SELECT ?, false, CURRENT_TIMESTAMP, SUM(m.price) "
+               + "FROM UserFavorites f JOIN MENU m ON m.itemName = f.itemName WHERE f.login = ? "
+               + "HAVING count(*) > 0 RETURNING orderid, timeStampRecieved), "
+               + "i AS (INSERT INTO ITEMSTATUS (orderid, itemName, lastUpdated, status, orderTime) "
+               + "SELECT o.orderid, f.itemName, CURRENT_TIMESTAMP, ?, o.timeStampRecieved "
+               + "FROM o, UserFavorites f WHERE f.login = ? RETURNING itemName) "
+               + "SELECT o.orderid, (SELECT count(*) FROM i) AS items FROM o";
+
+   // mark the unpaid orders among an array of orderIDs, or all unpaid
+   // orders of a login, paid and touch the lastUpdated time of their items;
+   // return the number of orders and items changed and the orders' ids
+   static final String MARK_PAID_SQL = markPaid("orderid = ANY(?)");
+
+   static final String MARK_USER_PAID_SQL = markPaid("login = ?");
+
+   private static String markPaid(String filter) {
+      return "WITH paid AS (UPDATE ORDERS SET paid = true WHERE " + filter + " AND paid = false RETURNING orderid), "
+            + "touched AS (UPDATE ITEMSTATUS i SET lastUpdated = CURRENT_TIMESTAMP FROM paid p "
+            + "WHERE i.orderid = p.orderid RETURNING 1) "
+            + "SELECT (SELECT count(*) FROM paid), (SELECT count(*) FROM touched), "
+            + "(SELECT string_agg(orderid::text, ',') FROM paid)";
+   }// end markPaid
+
+   // moves the items of an array of orderIDs from one status to another;
+   // returns the number of items changed and the ids of their orders
+   static final String ADVANCE_ITEMS_SQL =
+         "WITH changed AS (UPDATE ITEMSTATUS SET status = ?, lastUpdated = CURRENT_TIMESTAMP "
+               + "WHERE orderid = ANY(?) AND status = ? RETURNING orderid) "
+               + "SELECT count(*), string_agg(DISTINCT orderid::text, ',') FROM changed";
+
+   // inserts the item unless the order has it or is paid, and raises the
+   // total by the price of what was inserted
+   static final String ADD_ITEM_SQL = editItem("INSERT INTO ITEMSTATUS (orderid, itemName, lastUpdated, status, orderTime) "
+         + "SELECT o.orderid, m.itemName, CURRENT_TIMESTAMP, ?, o.timeStampRecieved FROM ORDERS o, MENU m "
+         + "WHERE o.orderid = ? AND NOT o.paid AND m.itemName = ? "
+         + "ON CONFLICT DO NOTHING RETURNING itemName", "+");
+
+   // deletes the item unless the order is paid, and lowers the total by the
+   // price of what was deleted
+   static final String REMOVE_ITEM_SQL = editItem("DELETE FROM ITEMSTATUS i USING ORDERS o "
+         + "WHERE i.orderid = ? AND i.itemName = ? AND o.orderid = i.orderid AND NOT o.paid "
+         + "RETURNING i.itemName", "-");
+
+   /*
+    * Wraps an insert or delete of items in a statement that changes the
+    * order total by their prices, and returns the total, paid and the
+    * number of items changed. When no item changed the order is only read,
+    * so the row is not rewritten and no order_changed notification is sent.
+    * Takes the orderid twice after the parameters of edit.
+    **/
+   private static String editItem(String edit, String sign) {
+      return "WITH edited AS (" + edit + "), "
+            + "c AS (SELECT count(*) AS n, COALESCE(SUM(m.price), 0) AS price "
+            + "FROM edited e JOIN MENU m ON m.itemName = e.itemName), "
+            + "updated AS (UPDATE ORDERS o SET total = o.total " + sign + " c.price FROM c "
+            + "WHERE o.orderid = ? AND c.n > 0 RETURNING o.total, o.paid, c.n) "
+            + "SELECT total, paid, n FROM updated "
+            + "UNION ALL SELECT o.total, o.paid, 0 FROM ORDERS o "
+            + "WHERE o.orderid = ? AND NOT EXISTS (SELECT 1 FROM updated)";
+   }// end editItem
+
+   /*
+    * A pager over the orders matching filter, newest first
+    **/
+   static KeysetPager orderPager(Cafe esql, String filter, Object... params) {
+      return new KeysetPager(esql, "SELECT * FROM ORDERS", filter,
+            new String[] { "timeStampRecieved", "orderid" }, params);
+   }// end orderPager
+
+   /*
+    * Creates a new Customer account
+    **/
+   public static void createUser(Cafe esql, String login, String password, String phone) throws SQLException {
+      esql.withBudget(Budget.ACCOUNT, () -> esql.executeUpdate(
+            "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES (?,?,?,?,?)", phone,
+            login, password, "", "Customer"));
+      esql.getAuthenticator().added(login);
+      esql.audit("user.created", login, null);
+   }// end createUser
+
+   /*
+    * Checks a login and password and opens a session holding the user's
+    * role, see Authenticator.
+    *
+    * @return the new session, or null when the login and password match no account
+    * @throws SecurityException when the login is locked after too many failures
+    **/
+   public static Session logIn(Cafe esql, String login, String password) throws SQLException {
+      return esql.withBudget(Budget.ACCOUNT, () -> esql.getAuthenticator().authenticate(login, password));
+   }// end logIn
+
+   /*
+    * Throws unless the order exists, belongs to login and is still unpaid
+    **/
+   public static void checkOpenOrder(Cafe esql, String login, int orderID) throws SQLException {
+      Boolean paid = esql.withBudget(Budget.UPDATE,
+            () -> esql.onShardOfOrder(orderID,
+                  () -> esql.queryForObject(OPEN_ORDER_SQL, row -> row.getBoolean(1), orderID, login)));
+      if (paid == null)
+         throw new IllegalArgumentException("No order found with orderID " + orderID);
+      if (paid)
+         throw new OrderPaidException();
+   }// end checkOpenOrder
+
+   /*
+    * Takes an item off an order and lowers the order total by its price, in
+    * one statement so concurrent edits of the order can not lose an update.
+    *
+    * @return the new order total
+    **/
+   public static BigDecimal removeItemFromOrder(Cafe esql, int orderID, String item) throws SQLException {
+      BigDecimal total = editOrder(esql, REMOVE_ITEM_SQL, orderID, item, "is not part of this order.",
+            orderID, menuName(esql, item), orderID, orderID);
+      esql.audit("order.item.removed", orderID, item + ", total " + total);
+      return total;
+   }// end removeItemFromOrder
+
+   /*
+    * Adds an item to an order and raises the order total by its price, in
+    * one statement so concurrent edits of the order can not lose an update.
+    *
+    * @return the new order total
+    **/
+   public static BigDecimal addItemToOrder(Cafe esql, int orderID, String item) throws SQLException {
+      BigDecimal total = editOrder(esql, ADD_ITEM_SQL, orderID, item, "is already in this order.",
+            STATUS_STARTED, orderID, menuName(esql, item), orderID, orderID);
+      esql.audit("order.item.added", orderID, item + ", total " + total);
+      return total;
+   }// end addItemToOrder
+
+   /*
+    * Runs ADD_ITEM_SQL or REMOVE_ITEM_SQL and turns an edit that changed
+    * nothing into an exception.
+    **/
+   private static BigDecimal editOrder(Cafe esql, String sql, int orderID, String item, String unchanged,
+         Object... params) throws SQLException {
+      Object[] result = esql.withBudget(Budget.UPDATE, () -> esql.onShardOfOrder(orderID, () -> esql.queryForObject(sql,
+            row -> new Object[] { row.getBigDecimal(1), row.getBoolean(2), row.getInt(3) }, params)));
+      if (result == null)
+         throw new IllegalArgumentException("No order found with orderID " + orderID);
+      if ((Boolean) result[1])
+         throw new OrderPaidException();
+      if ((Integer) result[2] == 0)
+         throw new IllegalArgumentException(item + " " + unchanged);
+      return (BigDecimal) result[0];
+   }// end editOrder
+
+   /*
+    * @return the menu's spelling of an item name
+    **/
+   private static String menuName(Cafe esql, String item) throws SQLException {
+      MenuSnapshot menu = esql.getMenu();
+      int i = menu.indexOf(item);
+      if (i < 0)
+         i = menu.search().find(item);
+      if (i < 0)
+         throw new IllegalArgumentException("Item by that name does not exist in the menu."
+               + menu.search().didYouMean(item));
+      return MenuSnapshot.key(menu.name(i));
+   }// end menuName
+
+   /*
+    * @return the user's favorite items in the order they were chosen
+    **/
+   public static List<String> favorites(Cafe esql, String login) throws SQLException {
+      final List<String> favorites = new ArrayList<String>();
+      esql.withBudget(Budget.BROWSE,
+            () -> esql.streamQuery(FAVORITES_SQL, 0, row -> favorites.add(row.getString(1)), login));
+      return favorites;
+   }// end favorites
+
+   /*
+    * Replaces the user's favorites with the given menu items.
+    **/
+   public static void setFavorites(final Cafe esql, final String login, final List<String> items) throws SQLException {
+      esql.withBudget(Budget.ORDER, () -> esql.inTransaction(new Work<Void>() {
+         public Void run() throws SQLException {
+            esql.executeUpdate("DELETE FROM UserFavorites WHERE login = ?", login);
+            List<Object[]> rows = new ArrayList<Object[]>(items.size());
+            for (int i = 0; i < items.size(); ++i)
+               rows.add(new Object[] { login, items.get(i), i + 1 });
+            if (!rows.isEmpty())
+               esql.executeBatch("INSERT INTO UserFavorites (login, itemName, position) VALUES (?, ?, ?)", rows);
+            return null;
+         }
+      }));
+      esql.audit("user.favorites", login, String.join(",", items));
+   }// end setFavorites
+
+   /*
+    * Orders all of the user's favorites in a single round trip, or in two
+    * when the favorites and the orders are on different databases.
+    *
+    * @return the new orderID, or null when the user has no favorites
+    **/
+   public static Integer reorderFavorites(Cafe esql, String login) throws SQLException {
+      Integer orderID = esql.withBudget(Budget.ORDER, () -> {
+         if (!esql.getShards().isEnabled())
+            return esql.queryForObject(REORDER_FAVORITES_SQL, row -> row.getInt(1), login, login, STATUS_STARTED,
+                  login);
+         List<String> items = new ArrayList<String>();
+         esql.streamQuery(FAVORITES_SQL, 0, row -> items.add(row.getString(1)), login);
+         return items.isEmpty() ? null : insertOrder(esql, login, items);
+      });
+      if (orderID != null)
+         esql.audit("order.placed", orderID, "favorites");
+      return orderID;
+   }// end reorderFavorites
+
+   /*
+    * Marks an order paid and touches the lastUpdated time of its items
+    **/
+   public static void markOrderPaid(Cafe esql, int orderID) throws SQLException {
+      markOrdersPaid(esql, new Integer[] { orderID });
+   }// end markOrderPaid
+
+   /*
+    * Marks the unpaid orders among the given ones paid and touches their
+    * items, in one statement per shard. Each shard commits on its own, so
+    * each is retried on its own, and the orders of the shards that
+    * committed are audited even when a later shard fails.
+    *
+    * @return the number of orders marked paid and of items touched
+    **/
+   public static int[] markOrdersPaid(Cafe esql, Integer[] orderIDs) throws SQLException {
+      List<String> paid = new ArrayList<String>();
+      int[] counts = new int[2];
+      try {
+         for (Map.Entry<Integer, Integer[]> shard : byShard(esql, orderIDs).entrySet())
+            add(counts, paid, esql.withBudget(Budget.PAYMENT, () -> esql.onShard(shard.getKey(),
+                  () -> esql.queryForObject(MARK_PAID_SQL, Cafe::changed, (Object) shard.getValue()))));
+      } finally {
+         for (String orderID : paid)
+            esql.audit("order.paid", orderID, null);
+      } // end try
+      return counts;
+   }// end markOrdersPaid
+
+   /*
+    * @return the number and total of a user's unpaid orders
+    **/
+   static Object[] unpaidOrders(Cafe esql, String login) throws SQLException {
+      return esql.withBudget(Budget.BROWSE, () -> esql.onShardOf(login,
+            () -> esql.queryForObject("SELECT count(*), COALESCE(SUM(total), 0) FROM ORDERS WHERE login = ? AND paid = false",
+                  row -> new Object[] { row.getLong(1), row.getBigDecimal(2) }, login)));
+   }// end unpaidOrders
+
+   /*
+    * Marks every unpaid order of a user paid and touches their items, in
+    * one statement.
+    *
+    * @return the number of orders marked paid and of items touched
+    **/
+   public static int[] markUserOrdersPaid(Cafe esql, String login) throws SQLException {
+      Object[] result = esql.withBudget(Budget.PAYMENT,
+            () -> esql.onShardOf(login, () -> esql.queryForObject(MARK_USER_PAID_SQL, Cafe::changed, login)));
+      int[] counts = new int[2];
+      List<String> paid = new ArrayList<String>();
+      add(counts, paid, result);
+      for (String orderID : paid)
+         esql.audit("order.paid", orderID, login);
+      return counts;
+   }// end markUserOrdersPaid
 
+   /*
+    * Moves the items of the given orders that are in one status to another,
+    * in one statement per shard, each retried and audited on its own as in
+    * markOrdersPaid.
+    *
+    * @return the number of items changed
+    **/
+   public static int advanceItems(Cafe esql, Integer[] orderIDs, String from, String to) throws SQLException {
+      List<String> changed = new ArrayList<String>();
+      int[] counts = new int[1];
+      try {
+         for (Map.Entry<Integer, Integer[]> shard : byShard(esql, orderIDs).entrySet())
+            add(counts, changed, esql.withBudget(Budget.UPDATE, () -> esql.onShard(shard.getKey(),
+                  () -> esql.queryForObject(ADVANCE_ITEMS_SQL, Cafe::changed, to, shard.getValue(), from))));
+      } finally {
+         for (String orderID : changed)
+            esql.audit("order.items", orderID, from + " -> " + to);
+      } // end try
+      return counts[0];
+   }// end advanceItems
 
+   /*
+    * Reads a row of counts followed by a comma separated list of orderids.
+    **/
+   private static Object[] changed(Row row) throws SQLException {
+      Object[] values = row.values();
+      for (int i = 0; i < values.length - 1; ++i)
+         values[i] = ((Number) values[i]).intValue();
+      return values;
+   }// end changed
+
+   /*
+    * Adds the counts of a changed row to totals and its orderids to ids.
+    **/
+   private static void add(int[] totals, List<String> ids, Object[] changed) {
+      for (int i = 0; i < totals.length; ++i)
+         totals[i] += (Integer) changed[i];
+      if (changed[changed.length - 1] != null)
+         for (String id : ((String) changed[changed.length - 1]).split(","))
+            ids.add(id);
+   }// end add
+
+   /*
+    * Splits orderIDs by the shard that holds them; all go to shard 0
+    * without shards.
+    **/
+   private static Map<Integer, Integer[]> byShard(Cafe esql, Integer[] orderIDs) {
+      if (!esql.getShards().isEnabled()) {
+         Map<Integer, Integer[]> all = new TreeMap<Integer, Integer[]>();
+         all.put(0, orderIDs);
+         return all;
+      } // end if
+      Map<Integer, List<Integer>> lists = new TreeMap<Integer, List<Integer>>();
+      for (Integer orderID : orderIDs) {
+         int shard = esql.getShards().shardOfOrder(orderID);
+         if (!lists.containsKey(shard))
+            lists.put(shard, new ArrayList<Integer>());
+         lists.get(shard).add(orderID);
+      } // end for
+      Map<Integer, Integer[]> shards = new TreeMap<Integer, Integer[]>();
+      for (Map.Entry<Integer, List<Integer>> shard : lists.entrySet())
+         shards.put(shard.getKey(), shard.getValue().toArray(new Integer[0]));
+      return shards;
+   }// end byShard
+
+   /*
+    * Streams the order history a user is allowed to see: staff get every
+    * unpaid order of the last 24 hours, customers their five latest orders.
+    *
+    * @return the number of orders
+    **/
+   public static long orderHistory(Cafe esql, String login, boolean staff, RowHandler handler) throws SQLException {
+      if (staff && esql.getShards().isEnabled())
+         return esql.withBudget(Budget.BROWSE,
+               () -> handleAll(esql.onEveryShard(() -> gather(esql, STAFF_HISTORY_SQL)), NEWEST_FIRST, handler));
+      if (staff)
+         return esql.withBudget(Budget.BROWSE, () -> esql.streamQuery(STAFF_HISTORY_SQL, handler));
+      return esql.withBudget(Budget.BROWSE,
+            () -> esql.onShardOf(login, () -> esql.streamQuery(CUSTOMER_HISTORY_SQL, 0, handler, login)));
+   }// end orderHistory
+
+   /*
+    * Streams one of the sales reports, SALES_BY_HOUR_SQL, SALES_BY_DAY_SQL or
+    * ITEM_SALES_SQL, over the last span hours or days. With shards every
+    * shard reports at once and their rows are added up.
+    *
+    * @return the number of rows
+    **/
+   public static long salesReport(Cafe esql, String sql, int span, RowHandler handler) throws SQLException {
+      if (!esql.getShards().isEnabled())
+         return esql.withBudget(Budget.REPORT, () -> esql.streamQuery(sql, handler, span));
+      return esql.withBudget(Budget.REPORT, () -> handleAll(sumByFirstColumn(esql.onEveryShard(() -> gather(esql, sql, span))),
+            sql.equals(ITEM_SALES_SQL) ? MOST_SOLD_FIRST : null, handler));
+   }// end salesReport
+
+   // the orders of STAFF_HISTORY_SQL: newest first
+   private static final Comparator<Row> NEWEST_FIRST = (a, b) -> {
+      int c = compare(b.value("timeStampRecieved"), a.value("timeStampRecieved"));
+      return c != 0 ? c : compare(b.value("orderid"), a.value("orderid"));
+   };
+
+   // the order of ITEM_SALES_SQL: most sold first, then by name
+   private static final Comparator<Row> MOST_SOLD_FIRST = (a, b) -> {
+      int c = compare(b.value("sold"), a.value("sold"));
+      return c != 0 ? c : compare(a.value("itemName"), b.value("itemName"));
+   };
+
+   @SuppressWarnings("unchecked")
+   private static int compare(Object a, Object b) {
+      if (a == null || b == null)
+         return a == null ? (b == null ? 0 : -1) : 1;
+      return ((Comparable<Object>) a).compareTo(b);
+   }// end compare
+
+   /*
+    * Reads a whole result into copies of its rows, e.g. one shard's part
+    * of a scatter-gather query.
+    **/
+   private static List<Row> gather(Cafe esql, String sql, Object... params) throws SQLException {
+      final List<Row> rows = new ArrayList<Row>();
+      final String[][] names = new String[1][];
+      esql.streamQuery(sql, 0, row -> {
+         if (names[0] == null)
+            names[0] = row.names();
+         rows.add(new Row(names[0], row.values()));
+      }, params);
+      return rows;
+   }// end gather
+
+   /*
+    * Hands the rows gathered from every shard to a handler, in the given
+    * order or else as they came.
+    *
+    * @return the number of rows
+    **/
+   private static long handleAll(List<List<Row>> shards, Comparator<Row> order, RowHandler handler)
+         throws SQLException {
+      List<Row> rows = new ArrayList<Row>();
+      for (List<Row> shard : shards)
+         rows.addAll(shard);
+      if (order != null)
+         rows.sort(order);
+      for (Row row : rows)
+         handler.handle(row);
+      return rows.size();
+   }// end handleAll
+
+   /*
+    * Adds up the report rows of every shard that have the same first
+    * column. The basket column, an average per order, is weighted by the
+    * orders column instead.
+    **/
+   private static List<List<Row>> sumByFirstColumn(List<List<Row>> shards) throws SQLException {
+      Map<Object, BigDecimal[]> sums = new LinkedHashMap<Object, BigDecimal[]>();
+      String[] names = null;
+      for (List<Row> shard : shards) {
+         for (Row row : shard) {
+            names = row.names();
+            BigDecimal[] sum = sums.get(row.getObject(1));
+            if (sum == null)
+               sums.put(row.getObject(1), sum = new BigDecimal[names.length]);
+            for (int i = 2; i <= names.length; ++i) {
+               Object value = row.getObject(i);
+               if (value == null)
+                  continue;
+               BigDecimal n = new BigDecimal(value.toString());
+               if (names[i - 1].equalsIgnoreCase("basket"))
+                  n = n.multiply(new BigDecimal(row.value("orders").toString()));
+               sum[i - 1] = sum[i - 1] == null ? n : sum[i - 1].add(n);
+            } // end for
+         } // end for
+      } // end for
+      List<Row> rows = new ArrayList<Row>();
+      for (Map.Entry<Object, BigDecimal[]> entry : sums.entrySet()) {
+         Object[] values = new Object[names.length];
+         values[0] = entry.getKey();
+         for (int i = 1; i < names.length; ++i) {
+            values[i] = entry.getValue()[i];
+            if (names[i].equalsIgnoreCase("basket") && values[i] != null)
+               values[i] = ((BigDecimal) values[i]).divide(column(names, entry.getValue(), "orders"), 2,
+                     RoundingMode.HALF_UP);
+         } // end for
+         rows.add(new Row(names, values));
+      } // end for
+      List<List<Row>> merged = new ArrayList<List<Row>>();
+      merged.add(rows);
+      return merged;
+   }// end sumByFirstColumn
+
+   private static BigDecimal column(String[] names, BigDecimal[] values, String name) {
+      for (int i = 0; i < names.length; ++i)
+         if (names[i].equalsIgnoreCase(name))
+            return values[i];
+      throw new IllegalArgumentException("No column " + name);
+   }// end column
 
 }// end Cafe
 
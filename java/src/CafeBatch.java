@@ -0,0 +1,329 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs Cafe operations from a script instead of the interactive
+ * menus, e.g. for seeding, migrations and nightly jobs. It reads one command
+ * per line, words separated by blanks and lists by commas, where the last
+ * argument runs to the end of the line so item names may contain blanks.
+ * Blank lines and lines starting with # are skipped:
+ *
+ *    create-user     login password phone
+ *    place-order     login item,item,...        prints the orderid
+ *    reorder-favorites login                    prints the orderid, or none
+ *    add-item        orderid item               prints the new total
+ *    remove-item     orderid item               prints the new total
+ *    set-favorites   login item,item,...
+ *    mark-paid       orderid,orderid,...        prints orders paid and items touched
+ *    mark-user-paid  login                      prints orders paid and items touched
+ *    advance-items   orderid,... from to        prints the items changed
+ *    history         login                      prints the latest orderids
+ *    favorites       login                      prints the favorite items
+ *
+ * For every command it prints one line "line<TAB>ok<TAB>result" or
+ * "line<TAB>error<TAB>message", in input order. Consecutive writes, up to
+ * -Dbatch.groupSize (100 by default), run in one transaction so they share a
+ * connection and a single commit. When one of them fails the group is rolled
+ * back and its commands run again one by one, so each gets its own result.
+A group is admitted by the AdmissionController as one write and must finish
+within the ORDER budget; a group that is refused or runs out of time also
+falls back to running its commands one by one.
+ * With shards (-Dcafe.shards) a transaction can not hold writes to several
+ * of them, so every command runs on its own.
+ *
+ * Commands act for the logins they name without a password; the script has
+ * the rights of the database user it connects as.
+ */
+public class CafeBatch {
+
+   /*
+    * One parsed line of the script.
+    **/
+   private static class Command {
+      final int line;
+      final Cafe.Work<String> work;
+
+      Command(int line, Cafe.Work<String> work) {
+         this.line = line;
+         this.work = work;
+      }
+   }// end Command
+
+   // commands that change data, and so may be grouped into one transaction
+   private static final List<String> WRITES = Arrays.asList("create-user", "place-order", "reorder-favorites",
+         "add-item", "remove-item", "set-favorites", "mark-paid", "mark-user-paid", "advance-items");
+
+   // number of words each command takes after its name
+   private static final Map<String, Integer> ARGS = new LinkedHashMap<String, Integer>();
+   static {
+      ARGS.put("create-user", 3);
+      ARGS.put("place-order", 2);
+      ARGS.put("reorder-favorites", 1);
+      ARGS.put("add-item", 2);
+      ARGS.put("remove-item", 2);
+      ARGS.put("set-favorites", 2);
+      ARGS.put("mark-paid", 1);
+      ARGS.put("mark-user-paid", 1);
+      ARGS.put("advance-items", 3);
+      ARGS.put("history", 1);
+      ARGS.put("favorites", 1);
+   }
+
+   private final Cafe _esql;
+   private final PrintStream _out;
+   private final int _groupSize;
+   private final List<Command> _group = new ArrayList<Command>();
+   private long _commands = 0;
+   private long _failed = 0;
+
+   /**
+    * @param esql the database the commands run against
+    * @param out where the result lines go
+    * @param groupSize the most consecutive writes run in one transaction
+    */
+   public CafeBatch(Cafe esql, PrintStream out, int groupSize) {
+      this._esql = esql;
+      this._out = out;
+      this._groupSize = esql.getShards().isEnabled() ? 1 : Math.max(1, groupSize);
+   }// end CafeBatch
+
+   /**
+    * Runs every command of a script.
+    *
+    * @param input the script
+    * @return the number of commands that failed
+    * @throws java.io.IOException when the script can not be read
+    */
+   public long run(BufferedReader input) throws IOException {
+      int lineNo = 0;
+      String line;
+      while ((line = input.readLine()) != null) {
+         ++lineNo;
+         line = line.trim();
+         if (line.isEmpty() || line.startsWith("#"))
+            continue;
+         ++this._commands;
+         String name = line.split("\\s+", 2)[0];
+         Command command;
+         try {
+            command = parse(lineNo, name, line);
+         } catch (IllegalArgumentException e) {
+            flush();
+            error(lineNo, e);
+            continue;
+         } // end try
+         if (WRITES.contains(name)) {
+            this._group.add(command);
+            // don't hold results back while waiting for more input
+            if (this._group.size() >= this._groupSize || !input.ready())
+               flush();
+         } else {
+            flush();
+            runAlone(command);
+         } // end if
+         if (!input.ready())
+            this._out.flush();
+      } // end while
+      flush();
+      return this._failed;
+   }// end run
+
+   /**
+    * @return the number of commands run so far
+    */
+   public long commands() {
+      return this._commands;
+   }// end commands
+
+   /*
+    * Runs the pending writes in one transaction, or one by one when the
+    * transaction fails. The transaction is admitted as one write under the
+    * ORDER budget, since the commands inside it are not admitted on their
+    * own.
+    **/
+   private void flush() {
+      if (this._group.size() == 1)
+         runAlone(this._group.get(0));
+      if (this._group.size() <= 1) {
+         this._group.clear();
+         return;
+      } // end if
+      final List<String> results = new ArrayList<String>(this._group.size());
+      try {
+         this._esql.withBudget(Budget.ORDER, () -> this._esql.inTransaction(() -> {
+            results.clear();
+            for (Command command : this._group)
+               results.add(command.work.run());
+            return null;
+         }));
+         for (int i = 0; i < results.size(); ++i)
+            ok(this._group.get(i).line, results.get(i));
+      } catch (Exception e) {
+         // rolled back: find out which commands fail on their own
+         for (Command command : this._group)
+            runAlone(command);
+      } // end try
+      this._group.clear();
+   }// end flush
+
+   private void runAlone(Command command) {
+      try {
+         ok(command.line, command.work.run());
+      } catch (SQLException | RuntimeException e) {
+         error(command.line, e);
+      } // end try
+   }// end runAlone
+
+   private void ok(int line, String result) {
+      this._out.println(line + "\tok\t" + oneLine(result));
+   }// end ok
+
+   private void error(int line, Exception e) {
+      ++this._failed;
+      String message = String.valueOf(e.getMessage());
+      if (e instanceof SQLException && ((SQLException) e).getSQLState() != null)
+         message = ((SQLException) e).getSQLState() + " " + message;
+      this._out.println(line + "\terror\t" + oneLine(message));
+   }// end error
+
+   private static String oneLine(String s) {
+      return s == null ? "" : s.replaceAll("\\s+", " ").trim();
+   }// end oneLine
+
+   /*
+    * Turns the words of a line into the work that runs it.
+    *
+    * @throws IllegalArgumentException for unknown commands and wrong arguments
+    **/
+   private Command parse(int line, String name, String text) {
+      final Cafe esql = this._esql;
+      Integer count = ARGS.get(name);
+      if (count == null)
+         throw new IllegalArgumentException("Unknown command " + name + ", expected one of " + ARGS.keySet());
+      final String[] w = text.split("\\s+", count + 1);
+      if (w.length != count + 1)
+         throw new IllegalArgumentException(name + " takes " + count + " arguments, got " + (w.length - 1));
+      switch (w[0]) {
+         case "create-user":
+            return new Command(line, () -> {
+               Cafe.createUser(esql, w[1], w[2], w[3]);
+               return w[1];
+            });
+         case "place-order":
+            return new Command(line, () -> String.valueOf(Cafe.placeOrder(esql, w[1], list(w[2]))));
+         case "reorder-favorites":
+            return new Command(line, () -> {
+               Integer orderID = Cafe.reorderFavorites(esql, w[1]);
+               return orderID == null ? "none" : orderID.toString();
+            });
+         case "add-item":
+            return new Command(line, () -> String.valueOf(Cafe.addItemToOrder(esql, orderID(w[1]), w[2])));
+         case "remove-item":
+            return new Command(line, () -> String.valueOf(Cafe.removeItemFromOrder(esql, orderID(w[1]), w[2])));
+         case "set-favorites":
+            return new Command(line, () -> {
+               Cafe.setFavorites(esql, w[1], list(w[2]));
+               return String.valueOf(list(w[2]).size());
+            });
+         case "mark-paid":
+            return new Command(line, () -> counts(Cafe.markOrdersPaid(esql, orderIDs(w[1]))));
+         case "mark-user-paid":
+            return new Command(line, () -> counts(Cafe.markUserOrdersPaid(esql, w[1])));
+         case "advance-items":
+            return new Command(line, () -> String.valueOf(Cafe.advanceItems(esql, orderIDs(w[1]), w[2], w[3])));
+         case "history":
+            return new Command(line, () -> {
+               final StringBuilder sb = new StringBuilder();
+               Cafe.orderHistory(esql, w[1], false, row -> sb.append(sb.length() == 0 ? "" : ",").append(row.getInt(1)));
+               return sb.toString();
+            });
+         default:
+            return new Command(line, () -> String.join(",", Cafe.favorites(esql, w[1])));
+      } // end switch
+   }// end parse
+
+   private static List<String> list(String csv) {
+      List<String> items = new ArrayList<String>();
+      for (String item : csv.split(","))
+         if (!item.trim().isEmpty())
+            items.add(item.trim());
+      return items;
+   }// end list
+
+   private static int orderID(String s) {
+      try {
+         return Integer.parseInt(s);
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Not an orderid: " + s);
+      } // end try
+   }// end orderID
+
+   private static Integer[] orderIDs(String csv) {
+      List<String> ids = list(csv);
+      Integer[] orderIDs = new Integer[ids.size()];
+      for (int i = 0; i < orderIDs.length; ++i)
+         orderIDs[i] = orderID(ids.get(i));
+      return orderIDs;
+   }// end orderIDs
+
+   private static String counts(int[] counts) {
+      return counts[0] + " " + counts[1];
+   }// end counts
+
+   /**
+    * The batch entry point
+    *
+    * @param args <dbname> <port> <user> [script, - or none for standard input]
+    */
+   public static void main(String[] args) {
+      if (args.length != 3 && args.length != 4) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     CafeBatch.class.getName() +
+                     " <dbname> <port> <user> [script]");
+         return;
+      } // end if
+
+      int status = 0;
+      Cafe esql = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         // Cafe reports its progress on standard output, which carries the results here
+         PrintStream out = new PrintStream(System.out, false, "UTF-8");
+         System.setOut(System.err);
+         esql = new Cafe(args[0], args[1], args[2], "");
+         InputStream script = args.length == 4 && !"-".equals(args[3]) ? new FileInputStream(args[3]) : System.in;
+         BufferedReader input = new BufferedReader(new InputStreamReader(script, StandardCharsets.UTF_8));
+         CafeBatch batch = new CafeBatch(esql, out, Integer.getInteger("batch.groupSize", 100));
+         long start = System.nanoTime();
+         long failed = batch.run(input);
+         out.flush();
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.err.println(String.format("%d commands, %d failed, in %.1f s (%.0f per second)", batch.commands(),
+               failed, seconds, batch.commands() / Math.max(seconds, 1e-9)));
+         if (failed > 0)
+            status = 1;
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = 1;
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      } // end try
+      System.exit(status);
+   }// end main
+
+}// end CafeBatch
@@ -0,0 +1,514 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the Cafe operations over HTTP so they can be used without
+ * the interactive menus. Requests take form-encoded parameters (in the query
+ * string or the body) and answer with JSON. Each request runs on its own
+ * virtual thread when the JVM supports them (Java 21+), or on a cached
+ * thread pool otherwise; database access goes through Cafe's connection pool.
+ *
+ *    POST /users          login, password, phone    create a customer
+ *    POST /login          login, password           returns a session token
+ *    POST /logout                                   ends the session
+ *    GET  /menu                                     the whole menu
+ *    GET  /menu/search    q                         items matching q, best first
+ *    POST /orders         items (comma separated)   place an order
+ *    POST /orders/favorites                         order the user's favorites
+ *    POST /orders/items   orderid, item, action     add or remove an item
+ *    POST /orders/paid    orderids or login         staff: mark orders paid
+ *    POST /orders/status  orderids, from, to        staff: change item statuses
+ *    GET  /orders                                   order history
+ *
+ * All endpoints but /users, /login and /menu need the session token, sent as
+ * "Authorization: Bearer token" or as a token parameter. A session not used
+ * for -Dserver.sessionIdleMs (default 30 minutes) ends as if logged out.
+ */
+public class CafeServer {
+
+   /*
+    * A JSON reply with its HTTP status.
+    **/
+   private static class Reply {
+      final int status;
+      final String json;
+
+      Reply(int status, String json) {
+         this.status = status;
+         this.json = json;
+      }
+   }// end Reply
+
+   /*
+    * Thrown when a logged-in user may not use an endpoint.
+    **/
+   private static class ForbiddenException extends SecurityException {
+      private static final long serialVersionUID = 1L;
+
+      ForbiddenException(String message) {
+         super(message);
+      }
+   }// end ForbiddenException
+
+   private final Cafe _esql;
+   private final HttpServer _server;
+   private final ExecutorService _executor;
+   private final SecureRandom _random = new SecureRandom();
+
+   // session token -> session
+   private final Map<String, Session> _sessions = new ConcurrentHashMap<String, Session>();
+
+   // ends the sessions idle for longer than _sessionIdleMs
+   private final long _sessionIdleMs;
+   private final ScheduledExecutorService _sweeper;
+
+   // the menu rendered as JSON, rebuilt when the snapshot changes
+   private volatile MenuSnapshot _menuFor = null;
+   private volatile String _menuJson = null;
+
+   /**
+    * Creates a new server; call start to accept requests
+    *
+    * @param esql the database the operations run against
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port can not be bound
+    */
+   public CafeServer(Cafe esql, int port) throws IOException {
+      this._esql = esql;
+      this._executor = newExecutor();
+      this._server = HttpServer.create(new InetSocketAddress(port), 1024);
+      this._server.setExecutor(this._executor);
+      this._server.createContext("/", this::dispatch);
+      this._sessionIdleMs = Math.max(1000L, Long.getLong("server.sessionIdleMs", 30L * 60L * 1000L));
+      this._sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "session-sweeper");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }// end CafeServer
+
+   /**
+    * @return a virtual-thread-per-task executor on Java 21+, else a cached pool
+    */
+   static ExecutorService newExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return Executors.newCachedThreadPool();
+      } // end try
+   }// end newExecutor
+
+   public void start() {
+      long period = Math.max(1000L, this._sessionIdleMs / 4);
+      this._sweeper.scheduleWithFixedDelay(this::sweepSessions, period, period, TimeUnit.MILLISECONDS);
+      this._server.start();
+   }// end start
+
+   public void stop() {
+      this._server.stop(1);
+      this._executor.shutdown();
+      this._sweeper.shutdownNow();
+   }// end stop
+
+   /*
+    * Ends the sessions that were not used for the idle time, and drops the
+    * ones invalidated since they were last used.
+    **/
+   private void sweepSessions() {
+      long idleBefore = System.currentTimeMillis() - this._sessionIdleMs;
+      for (Map.Entry<String, Session> entry : this._sessions.entrySet()) {
+         Session session = entry.getValue();
+         if ((session.lastUsedAt() < idleBefore || !session.isValid())
+               && this._sessions.remove(entry.getKey(), session))
+            this._esql.getSessions().close(session);
+      } // end for
+   }// end sweepSessions
+
+   private void dispatch(HttpExchange exchange) throws IOException {
+      Reply reply;
+      try {
+         Map<String, String> params = params(exchange);
+         String route = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+         switch (route) {
+            case "POST /users":
+               reply = createUser(params);
+               break;
+            case "POST /login":
+               reply = logIn(params);
+               break;
+            case "POST /logout":
+               logOut(token(exchange, params));
+               reply = new Reply(200, "{}");
+               break;
+            case "GET /menu":
+               reply = menu();
+               break;
+            case "GET /menu/search":
+               reply = search(params);
+               break;
+            case "POST /orders":
+               reply = placeOrder(session(exchange, params), params);
+               break;
+            case "POST /orders/favorites":
+               reply = reorderFavorites(session(exchange, params));
+               break;
+            case "POST /orders/items":
+               reply = updateOrder(session(exchange, params), params);
+               break;
+            case "POST /orders/paid":
+               reply = markPaid(staff(exchange, params), params);
+               break;
+            case "POST /orders/status":
+               reply = advanceItems(staff(exchange, params), params);
+               break;
+            case "GET /orders":
+               reply = orderHistory(session(exchange, params));
+               break;
+            default:
+               reply = error(404, "No such endpoint: " + route);
+               break;
+         } // end switch
+      } catch (ForbiddenException e) {
+         reply = error(403, e.getMessage());
+      } catch (SecurityException e) {
+         reply = error(401, e.getMessage());
+      } catch (IllegalArgumentException e) {
+         reply = error(400, e.getMessage());
+      } catch (Cafe.OrderPaidException e) {
+         reply = error(409, e.getMessage());
+      } catch (AdmissionController.BusyException e) {
+         // turned away before reaching the database
+         reply = error(503, e.getMessage());
+      } catch (SQLException e) {
+         // out of time or collided: nothing changed, the client may try again
+         if (Cafe.isTimeout(e) || Cafe.isRetryable(e))
+            reply = error(503, Cafe.failure(e));
+         else
+            reply = internalError(exchange, e);
+      } catch (RuntimeException e) {
+         reply = internalError(exchange, e);
+      } finally {
+         this._esql.actAs(null);
+      } // end try
+
+      byte[] body = reply.json.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(reply.status, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+   }// end dispatch
+
+   /*
+    * Logs what went wrong and answers without the SQL or driver message,
+    * which may show statements, table names or data.
+    **/
+   private static Reply internalError(HttpExchange exchange, Exception e) {
+      System.err.println("CafeServer: " + exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath()
+            + " failed: " + e);
+      return error(500, "The request failed, please try again later.");
+   }// end internalError
+
+   private Reply createUser(Map<String, String> params) throws SQLException {
+      String login = required(params, "login");
+      Cafe.createUser(this._esql, login, required(params, "password"), required(params, "phone"));
+      return new Reply(201, "{\"login\":" + quote(login) + "}");
+   }// end createUser
+
+   private Reply logIn(Map<String, String> params) throws SQLException {
+      String login = required(params, "login");
+      Session session = Cafe.logIn(this._esql, login, required(params, "password"));
+      if (session == null)
+         throw new SecurityException("Invalid login or password");
+      byte[] bytes = new byte[24];
+      this._random.nextBytes(bytes);
+      StringBuilder token = new StringBuilder();
+      for (byte b : bytes)
+         token.append(String.format("%02x", b));
+      this._sessions.put(token.toString(), session);
+      return new Reply(200, "{\"token\":" + quote(token.toString()) + "}");
+   }// end logIn
+
+   private Reply menu() throws SQLException {
+      MenuSnapshot menu = this._esql.getMenu();
+      String json = this._menuJson;
+      if (menu != this._menuFor) {
+         int[] all = new int[menu.size()];
+         for (int i = 0; i < all.length; ++i)
+            all[i] = i;
+         json = items(menu, all);
+         this._menuJson = json;
+         this._menuFor = menu;
+      } // end if
+      return new Reply(200, json);
+   }// end menu
+
+   private Reply search(Map<String, String> params) throws SQLException {
+      MenuSnapshot menu = this._esql.getMenu();
+      return new Reply(200, items(menu, menu.search().search(required(params, "q"), menu.size())));
+   }// end search
+
+   private Reply placeOrder(Session session, Map<String, String> params) throws SQLException {
+      MenuSnapshot menu = this._esql.getMenu();
+      List<String> cart = new ArrayList<String>();
+      for (String item : required(params, "items").split(",")) {
+         int i = menu.indexOf(item.trim());
+         if (i < 0)
+            i = menu.search().find(item);
+         if (i < 0)
+            throw new IllegalArgumentException("Item by that name does not exist in the menu: " + item.trim() + "."
+                  + menu.search().didYouMean(item));
+         if (!cart.contains(menu.name(i)))
+            cart.add(menu.name(i));
+      } // end for
+      int orderID = Cafe.placeOrder(this._esql, session.login(), cart);
+      return new Reply(201, "{\"orderid\":" + orderID + "}");
+   }// end placeOrder
+
+   private Reply reorderFavorites(Session session) throws SQLException {
+      Integer orderID = Cafe.reorderFavorites(this._esql, session.login());
+      if (orderID == null)
+         throw new IllegalArgumentException("No favorites to order");
+      return new Reply(201, "{\"orderid\":" + orderID + "}");
+   }// end reorderFavorites
+
+   private Reply updateOrder(Session session, Map<String, String> params) throws SQLException {
+      int orderID = parseInt(required(params, "orderid"), "orderid");
+      String item = required(params, "item");
+      String action = required(params, "action");
+      Cafe.checkOpenOrder(this._esql, session.login(), orderID);
+      BigDecimal total;
+      if (action.equals("add"))
+         total = Cafe.addItemToOrder(this._esql, orderID, item);
+      else if (action.equals("remove"))
+         total = Cafe.removeItemFromOrder(this._esql, orderID, item);
+      else
+         throw new IllegalArgumentException("action must be add or remove");
+      return new Reply(200, "{\"orderid\":" + orderID + ",\"total\":" + total + "}");
+   }// end updateOrder
+
+   private Reply markPaid(Session session, Map<String, String> params) throws SQLException {
+      int[] counts = params.containsKey("login") ? Cafe.markUserOrdersPaid(this._esql, params.get("login"))
+            : Cafe.markOrdersPaid(this._esql, orderIDs(required(params, "orderids")));
+      return new Reply(200, "{\"orders\":" + counts[0] + ",\"items\":" + counts[1] + "}");
+   }// end markPaid
+
+   private Reply advanceItems(Session session, Map<String, String> params) throws SQLException {
+      String from = params.containsKey("from") ? params.get("from") : Cafe.STATUS_STARTED;
+      String to = params.containsKey("to") ? params.get("to") : Cafe.STATUS_READY;
+      int items = Cafe.advanceItems(this._esql, orderIDs(required(params, "orderids")), from, to);
+      return new Reply(200, "{\"items\":" + items + "}");
+   }// end advanceItems
+
+   private static Integer[] orderIDs(String value) {
+      List<Integer> orderIDs = new ArrayList<Integer>();
+      for (String id : value.split(","))
+         if (!id.trim().isEmpty())
+            orderIDs.add(parseInt(id.trim(), "orderids"));
+      return orderIDs.toArray(new Integer[orderIDs.size()]);
+   }// end orderIDs
+
+   private Reply orderHistory(Session session) throws SQLException {
+      final StringBuilder json = new StringBuilder("[");
+      Cafe.orderHistory(this._esql, session.login(), session.isStaff(), row -> {
+         if (json.length() > 1)
+            json.append(',');
+         json.append('{');
+         for (int i = 1; i <= row.getColumnCount(); ++i) {
+            if (i > 1)
+               json.append(',');
+            json.append(quote(row.getColumnName(i))).append(':');
+            Object value = row.getObject(i);
+            if (value == null || value instanceof Number || value instanceof Boolean)
+               json.append(value);
+            else
+               json.append(quote(Cafe.rtrim(value.toString())));
+         } // end for
+         json.append('}');
+      });
+      return new Reply(200, json.append(']').toString());
+   }// end orderHistory
+
+   private static String items(MenuSnapshot menu, int[] positions) {
+      StringBuilder json = new StringBuilder("[");
+      for (int n = 0; n < positions.length; ++n) {
+         int i = positions[n];
+         if (n > 0)
+            json.append(',');
+         json.append("{\"itemName\":").append(quote(menu.name(i)))
+               .append(",\"type\":").append(quote(menu.type(i)))
+               .append(",\"price\":").append(menu.price(i))
+               .append(",\"description\":").append(quote(menu.description(i)))
+               .append(",\"imageURL\":").append(quote(menu.imageURL(i)))
+               .append('}');
+      } // end for
+      return json.append(']').toString();
+   }// end items
+
+   private Session session(HttpExchange exchange, Map<String, String> params) {
+      String token = token(exchange, params);
+      Session session = token == null ? null : this._sessions.get(token);
+      if (session == null)
+         throw new SecurityException("Log in first");
+      if (!session.isValid()) {
+         // the user's login or type changed since they logged in
+         this._sessions.remove(token);
+         throw new SecurityException("Session ended, log in again");
+      } // end if
+      session.touch();
+      // the user's reads stay on the primary for a while after they write
+      this._esql.actAs(session.login());
+      return session;
+   }// end session
+
+   // the session of an employee or manager
+   private Session staff(HttpExchange exchange, Map<String, String> params) {
+      Session session = session(exchange, params);
+      if (!session.isStaff())
+         throw new ForbiddenException("Only employees and managers can do this");
+      return session;
+   }// end staff
+
+   private void logOut(String token) {
+      Session session = token == null ? null : this._sessions.remove(token);
+      if (session != null)
+         this._esql.getSessions().close(session);
+   }// end logOut
+
+   private static String token(HttpExchange exchange, Map<String, String> params) {
+      String auth = exchange.getRequestHeaders().getFirst("Authorization");
+      if (auth != null && auth.startsWith("Bearer "))
+         return auth.substring(7).trim();
+      return params.get("token");
+   }// end token
+
+   private static Map<String, String> params(HttpExchange exchange) throws IOException {
+      Map<String, String> params = new HashMap<String, String>();
+      decode(exchange.getRequestURI().getRawQuery(), params);
+      InputStream body = exchange.getRequestBody();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = body.read(buffer)) > 0)
+         bytes.write(buffer, 0, n);
+      body.close();
+      decode(new String(bytes.toByteArray(), StandardCharsets.UTF_8), params);
+      return params;
+   }// end params
+
+   private static void decode(String form, Map<String, String> params) throws UnsupportedEncodingException {
+      if (form == null || form.isEmpty())
+         return;
+      for (String pair : form.split("&")) {
+         int eq = pair.indexOf('=');
+         String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+         String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+         params.put(name, value);
+      } // end for
+   }// end decode
+
+   private static String required(Map<String, String> params, String name) {
+      String value = params.get(name);
+      if (value == null || value.isEmpty())
+         throw new IllegalArgumentException("Missing parameter: " + name);
+      return value;
+   }// end required
+
+   private static int parseInt(String value, String name) {
+      try {
+         return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException(name + " must be a number");
+      } // end try
+   }// end parseInt
+
+   private static Reply error(int status, String message) {
+      return new Reply(status, "{\"error\":" + quote(message) + "}");
+   }// end error
+
+   static String quote(String value) {
+      if (value == null)
+         return "null";
+      StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"':
+               sb.append("\\\"");
+               break;
+            case '\\':
+               sb.append("\\\\");
+               break;
+            case '\n':
+               sb.append("\\n");
+               break;
+            case '\r':
+               sb.append("\\r");
+               break;
+            case '\t':
+               sb.append("\\t");
+               break;
+            default:
+               if (c < 0x20)
+                  sb.append(String.format("\\u%04x", (int) c));
+               else
+                  sb.append(c);
+         } // end switch
+      } // end for
+      return sb.append('"').toString();
+   }// end quote
+
+   /**
+    * The server entry point
+    *
+    * @param args <dbname> <port> <user> [http port]
+    */
+   public static void main(String[] args) {
+      if (args.length != 3 && args.length != 4) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     CafeServer.class.getName() +
+                     " <dbname> <port> <user> [http port]");
+         return;
+      } // end if
+
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         final Cafe esql = new Cafe(args[0], args[1], args[2], "");
+         int httpPort = args.length == 4 ? Integer.parseInt(args[3]) : 8080;
+         final CafeServer server = new CafeServer(esql, httpPort);
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            esql.cleanup();
+         }));
+         server.start();
+         System.out.println("Cafe server listening on port " + httpPort);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      } // end try
+   }// end main
+
+}// end CafeServer
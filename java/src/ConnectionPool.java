@@ -0,0 +1,326 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * This class is a small bounded pool of physical database connections. It
+ * keeps at least minSize connections open, never opens more than maxSize,
+ * closes connections that sat idle longer than the idle timeout and makes
+ * borrowers wait at most the borrow timeout for a free connection.
+ *
+ * Each pooled connection carries its own StatementCache, so prepared
+ * statements survive between borrows of the same connection.
+ */
+public class ConnectionPool {
+
+   /**
+    * A pooled physical connection together with its prepared statements.
+    */
+   public static class Entry {
+      final ConnectionPool pool;
+      final Connection connection;
+      final StatementCache statements;
+      long lastUsed;
+
+      Entry(ConnectionPool pool, Connection connection) {
+         this.pool = pool;
+         this.connection = connection;
+         this.statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY);
+         this.lastUsed = System.currentTimeMillis();
+      }
+
+      public Connection getConnection() {
+         return this.connection;
+      }
+
+      public StatementCache getStatements() {
+         return this.statements;
+      }
+
+      // the pool the connection is released to
+      public ConnectionPool getPool() {
+         return this.pool;
+      }
+   }// end Entry
+
+   // seconds a validation round trip may take before the connection is dropped
+   private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+   private final String _url;
+   private final Properties _props;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _idleTimeoutMillis;
+   private final long _borrowTimeoutMillis;
+   private final long _validationIntervalMillis;
+
+   // idle connections, most recently used first. Guarded by itself.
+   private final ArrayDeque<Entry> _idle = new ArrayDeque<Entry>();
+   private int _total = 0;
+   private boolean _closed = false;
+   private final Thread _evictor;
+
+   /**
+    * Creates a new pool and opens minSize connections right away
+    *
+    * @param url the JDBC connection URL
+    * @param props the connection properties (user, password, ...)
+    * @param minSize the number of connections kept open even when idle
+    * @param maxSize the maximum number of open connections
+    * @param idleTimeoutMillis how long a connection above minSize may sit idle
+    * @param borrowTimeoutMillis how long borrow waits for a free connection
+    * @param validationIntervalMillis connections idle for longer than this are
+    *        validated before they are handed out
+    * @throws java.sql.SQLException when the initial connections can not be opened
+    */
+   public ConnectionPool(String url, Properties props, int minSize, int maxSize,
+         long idleTimeoutMillis, long borrowTimeoutMillis, long validationIntervalMillis) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+         throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+      this._url = url;
+      this._props = props;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._borrowTimeoutMillis = borrowTimeoutMillis;
+      this._validationIntervalMillis = validationIntervalMillis;
+
+      try {
+         for (int i = 0; i < minSize; ++i) {
+            Entry entry = open();
+            synchronized (this._idle) {
+               this._total++;
+               this._idle.addFirst(entry);
+            } // end synchronized
+         } // end for
+      } catch (SQLException e) {
+         close();
+         throw e;
+      } // end try
+
+      this._evictor = new Thread(new Runnable() {
+         public void run() {
+            evictLoop();
+         }
+      }, "cafe-pool-evictor");
+      this._evictor.setDaemon(true);
+      this._evictor.start();
+   }// end ConnectionPool
+
+   /**
+    * Takes a connection out of the pool, opening a new one if the pool is
+    * below maxSize. Connections that were idle for a while are validated
+    * first; broken ones are dropped and replaced.
+    *
+    * @return a connection owned by the caller until release is called
+    * @throws java.sql.SQLException when no connection became free within the
+    *         borrow timeout or a new connection can not be opened
+    */
+   public Entry borrow() throws SQLException {
+      long deadline = System.currentTimeMillis() + this._borrowTimeoutMillis;
+      while (true) {
+         Entry entry = null;
+         synchronized (this._idle) {
+            while (true) {
+               if (this._closed)
+                  throw new SQLException("Connection pool is closed");
+               entry = this._idle.pollFirst();
+               if (entry != null || this._total < this._maxSize)
+                  break;
+               long wait = deadline - System.currentTimeMillis();
+               if (wait <= 0)
+                  throw new SQLException("Timed out after " + this._borrowTimeoutMillis
+                        + " ms waiting for a database connection (" + this._maxSize + " in use)");
+               try {
+                  this._idle.wait(wait);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection");
+               } // end try
+            } // end while
+            if (entry == null)
+               this._total++;
+         } // end synchronized
+
+         if (entry == null) {
+            try {
+               return open();
+            } catch (SQLException e) {
+               forget();
+               throw e;
+            } // end try
+         } // end if
+
+         if (isUsable(entry))
+            return entry;
+         destroy(entry);
+      } // end while
+   }// end borrow
+
+   /**
+    * Hands a borrowed connection back to the pool. Connections left in a
+    * transaction are rolled back, closed connections are dropped.
+    *
+    * @param entry the connection returned by borrow
+    */
+   public void release(Entry entry) {
+      try {
+         if (entry.connection.isClosed()) {
+            destroy(entry);
+            return;
+         } // end if
+         if (!entry.connection.getAutoCommit()) {
+            entry.connection.rollback();
+            entry.connection.setAutoCommit(true);
+         } // end if
+      } catch (SQLException e) {
+         destroy(entry);
+         return;
+      } // end try
+
+      entry.lastUsed = System.currentTimeMillis();
+      synchronized (this._idle) {
+         if (!this._closed) {
+            this._idle.addFirst(entry);
+            this._idle.notify();
+            return;
+         } // end if
+      } // end synchronized
+      destroy(entry);
+   }// end release
+
+   /**
+    * Closes a borrowed connection instead of returning it, e.g. after an I/O
+    * error left it in an unknown state.
+    *
+    * @param entry the connection returned by borrow
+    */
+   public void discard(Entry entry) {
+      destroy(entry);
+   }// end discard
+
+   /**
+    * @return the JDBC URL the connections go to
+    */
+   public String getUrl() {
+      return this._url;
+   }// end getUrl
+
+   /**
+    * @return the number of open connections, idle or borrowed
+    */
+   public int size() {
+      synchronized (this._idle) {
+         return this._total;
+      } // end synchronized
+   }// end size
+
+   /**
+    * @return the number of open connections not currently borrowed
+    */
+   public int idle() {
+      synchronized (this._idle) {
+         return this._idle.size();
+      } // end synchronized
+   }// end idle
+
+   /**
+    * Closes all idle connections and refuses further borrows. Borrowed
+    * connections are closed as they are released.
+    */
+   public void close() {
+      List<Entry> idle;
+      synchronized (this._idle) {
+         this._closed = true;
+         idle = new ArrayList<Entry>(this._idle);
+         this._idle.clear();
+         this._idle.notifyAll();
+      } // end synchronized
+      for (Entry entry : idle)
+         destroy(entry);
+      if (this._evictor != null)
+         this._evictor.interrupt();
+   }// end close
+
+   private Entry open() throws SQLException {
+      return new Entry(this, DriverManager.getConnection(this._url, this._props));
+   }// end open
+
+   private boolean isUsable(Entry entry) {
+      if (System.currentTimeMillis() - entry.lastUsed < this._validationIntervalMillis)
+         return true;
+      try {
+         return entry.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+      } catch (SQLException e) {
+         return false;
+      } // end try
+   }// end isUsable
+
+   private void destroy(Entry entry) {
+      entry.statements.clear();
+      try {
+         entry.connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      } // end try
+      forget();
+   }// end destroy
+
+   private void forget() {
+      synchronized (this._idle) {
+         this._total--;
+         this._idle.notify();
+      } // end synchronized
+   }// end forget
+
+   /*
+    * Periodically closes connections idle longer than the idle timeout while
+    * the pool is above minSize, and tops the pool back up to minSize.
+    **/
+   private void evictLoop() {
+      long period = Math.max(1000L, this._idleTimeoutMillis / 2);
+      while (true) {
+         try {
+            Thread.sleep(period);
+         } catch (InterruptedException e) {
+            return;
+         } // end try
+
+         List<Entry> expired = new ArrayList<Entry>();
+         int missing;
+         synchronized (this._idle) {
+            if (this._closed)
+               return;
+            long now = System.currentTimeMillis();
+            // oldest connections sit at the tail of the deque
+            Iterator<Entry> it = this._idle.descendingIterator();
+            while (it.hasNext() && this._total - expired.size() > this._minSize) {
+               Entry entry = it.next();
+               if (now - entry.lastUsed < this._idleTimeoutMillis)
+                  break;
+               it.remove();
+               expired.add(entry);
+            } // end while
+            missing = this._minSize - (this._total - expired.size());
+            this._total += Math.max(0, missing);
+         } // end synchronized
+
+         for (Entry entry : expired)
+            destroy(entry);
+         for (int i = 0; i < missing; ++i) {
+            try {
+               Entry entry = open();
+               release(entry);
+            } catch (SQLException e) {
+               forget();
+            } // end try
+         } // end for
+      } // end while
+   }// end evictLoop
+
+}// end ConnectionPool
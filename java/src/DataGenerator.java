@@ -0,0 +1,361 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class generates orders.csv and itemStatus.csv for the users and menu
+ * items in users.csv and menu.csv, in the semicolon separated layout
+ * BulkLoader and load_data.sql read, so a database of any size up to about
+ * two billion orders can be built for performance tests.
+ *
+ *   - Orders are spread over -Dgen.days days (365) from -Dgen.from
+ *     (2024-01-01), following the hourly weights of -Dgen.hourWeights (24
+ *     comma separated numbers, breakfast and lunch rushes by default), with
+ *     weekends weighted by -Dgen.weekendFactor (1.3). orderids grow with the
+ *     time the order was received, from -Dgen.firstOrderID (1).
+ *   - Each order is placed by a random customer (every user when there are
+ *     no customers) and holds 1 to -Dgen.maxItems (5) different menu items;
+ *     its total is the sum of their prices.
+ *   - Orders are paid with probability -Dgen.paidShare (0.95), or
+ *     -Dgen.recentPaidShare (0.5) in the last 24 hours of the range. Items of
+ *     paid orders are Finished, the others Started or Ready.
+ *
+ * The output depends only on -Dgen.seed (1) and the settings above, not on
+ * the number of threads: the orders are generated in fixed blocks, each
+ * from its own random stream, in parallel, and written in order as they
+ * complete, so at most a few blocks per thread are held in memory.
+ */
+public class DataGenerator {
+
+   // orders per block; part of what the output depends on, so not a setting
+   private static final int BLOCK_ORDERS = 65536;
+   private static final long PROGRESS_MILLIS = 2000L;
+   private static final long HOUR_MILLIS = 3600000L;
+   private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+   private static final String DEFAULT_HOUR_WEIGHTS = "0,0,0,0,0,1,4,12,14,8,5,7,12,11,6,5,6,5,3,2,1,1,0,0";
+
+   /*
+    * The rows of one block of orders, ready to be written.
+    **/
+   private static class Block {
+      final byte[] orders;
+      final byte[] items;
+      final long itemCount;
+
+      Block(byte[] orders, byte[] items, long itemCount) {
+         this.orders = orders;
+         this.items = items;
+         this.itemCount = itemCount;
+      }
+   }// end Block
+
+   private final String[] _logins;
+   private final String[] _items;
+   private final int[] _cents;
+   private final long _orders;
+   private final long _seed;
+   private final int _firstOrderID;
+   private final int _maxItems;
+   private final double _paidShare;
+   private final double _recentPaidShare;
+   private final long _recentFrom;
+
+   // "yyyy-MM-dd " of every day of the range, and of the day after it
+   private final String[] _days;
+
+   // the orders expected by the start of each hour of the range, in units
+   // of the hourly weights; the last entry is the total
+   private final double[] _cumulative;
+
+   /**
+    * Sets up a generator from the -Dgen.* properties.
+    *
+    * @param logins the logins orders are placed by
+    * @param items the menu item names
+    * @param cents the price of each item in cents
+    * @param orders the number of orders to generate
+    */
+   public DataGenerator(List<String> logins, List<String> items, int[] cents, long orders) {
+      if (logins.isEmpty() || items.isEmpty())
+         throw new IllegalArgumentException("Need at least one user and one menu item");
+      this._logins = new String[logins.size()];
+      for (int i = 0; i < this._logins.length; ++i)
+         this._logins[i] = copyText(logins.get(i));
+      this._items = new String[items.size()];
+      for (int i = 0; i < this._items.length; ++i)
+         this._items[i] = copyText(items.get(i));
+      this._cents = cents;
+      this._orders = orders;
+      this._seed = Long.getLong("gen.seed", 1L);
+      this._firstOrderID = Integer.getInteger("gen.firstOrderID", 1);
+      if (orders < 1 || this._firstOrderID < 1 || this._firstOrderID - 1 + orders > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("orderids must fit an integer: " + orders + " orders from "
+               + this._firstOrderID);
+      this._maxItems = Math.max(1, Math.min(items.size(), Integer.getInteger("gen.maxItems", 5)));
+      this._paidShare = Double.parseDouble(System.getProperty("gen.paidShare", "0.95"));
+      this._recentPaidShare = Double.parseDouble(System.getProperty("gen.recentPaidShare", "0.5"));
+
+      LocalDate from = LocalDate.parse(System.getProperty("gen.from", "2024-01-01"));
+      int days = Math.max(1, Integer.getInteger("gen.days", 365));
+      this._recentFrom = days * DAY_MILLIS - DAY_MILLIS;
+      this._days = new String[days + 1];
+      for (int d = 0; d <= days; ++d)
+         this._days[d] = from.plusDays(d) + " ";
+
+      String[] weights = System.getProperty("gen.hourWeights", DEFAULT_HOUR_WEIGHTS).split(",");
+      if (weights.length != 24)
+         throw new IllegalArgumentException("gen.hourWeights needs 24 weights, got " + weights.length);
+      double weekend = Double.parseDouble(System.getProperty("gen.weekendFactor", "1.3"));
+      this._cumulative = new double[days * 24 + 1];
+      for (int d = 0; d < days; ++d) {
+         DayOfWeek day = from.plusDays(d).getDayOfWeek();
+         double factor = day == DayOfWeek.SATURDAY || day == DayOfWeek.SUNDAY ? weekend : 1.0;
+         for (int h = 0; h < 24; ++h)
+            this._cumulative[d * 24 + h + 1] = this._cumulative[d * 24 + h]
+                  + Math.max(0.0, Double.parseDouble(weights[h].trim())) * factor;
+      } // end for
+      if (this._cumulative[days * 24] <= 0)
+         throw new IllegalArgumentException("gen.hourWeights are all zero");
+   }// end DataGenerator
+
+   /**
+    * Writes orders.csv and itemStatus.csv.
+    *
+    * @param dir the directory the files are written to
+    * @param threads the number of blocks generated at once
+    * @return the number of items written
+    * @throws java.io.IOException when a file can not be written
+    */
+   public long generate(File dir, int threads) throws IOException {
+      long blocks = (this._orders + BLOCK_ORDERS - 1) / BLOCK_ORDERS;
+      ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+      OutputStream orders = new FileOutputStream(new File(dir, "orders.csv"));
+      OutputStream items = null;
+      try {
+         items = new FileOutputStream(new File(dir, "itemStatus.csv"));
+         Deque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+         long next = 0;
+         long itemCount = 0;
+         long reported = System.currentTimeMillis();
+         for (long written = 0; written < blocks; ++written) {
+            // keep every thread busy while the oldest block is written
+            while (next < blocks && pending.size() < 2 * Math.max(1, threads)) {
+               final long b = next++;
+               pending.add(workers.submit(() -> block(b)));
+            } // end while
+            Block block = take(pending.poll());
+            orders.write(block.orders);
+            items.write(block.items);
+            itemCount += block.itemCount;
+            if (System.currentTimeMillis() - reported >= PROGRESS_MILLIS) {
+               reported = System.currentTimeMillis();
+               System.out.println(String.format("%.0f%%, %d orders", 100.0 * (written + 1) / blocks,
+                     Math.min(this._orders, (written + 1) * BLOCK_ORDERS)));
+            } // end if
+         } // end for
+         return itemCount;
+      } finally {
+         workers.shutdownNow();
+         orders.close();
+         if (items != null)
+            items.close();
+      } // end try
+   }// end generate
+
+   private static Block take(Future<Block> future) throws IOException {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted", e);
+      } catch (ExecutionException e) {
+         throw new IOException(e.getCause());
+      } // end try
+   }// end take
+
+   /*
+    * Generates the orders of one block and their items.
+    **/
+   private Block block(long b) {
+      SplittableRandom random = new SplittableRandom(this._seed ^ (b * 0x9E3779B97F4A7C15L));
+      long first = b * BLOCK_ORDERS;
+      int count = (int) Math.min(BLOCK_ORDERS, this._orders - first);
+      StringBuilder orders = new StringBuilder(count * 64);
+      StringBuilder items = new StringBuilder(count * (this._maxItems + 1) * 40);
+      int[] menu = new int[this._items.length];
+      for (int i = 0; i < menu.length; ++i)
+         menu[i] = i;
+      long itemCount = 0;
+
+      for (int i = 0; i < count; ++i) {
+         long n = first + i;
+         int orderID = (int) (this._firstOrderID + n);
+         // the n-th of the orders spread over the range by the hourly weights
+         long received = timeAt((n + random.nextDouble()) / this._orders);
+         boolean paid = random.nextDouble() < (received >= this._recentFrom ? this._recentPaidShare : this._paidShare);
+
+         // different items: the first k of a partial shuffle
+         int k = 1 + random.nextInt(this._maxItems);
+         int cents = 0;
+         for (int j = 0; j < k; ++j) {
+            int swap = j + random.nextInt(menu.length - j);
+            int item = menu[swap];
+            menu[swap] = menu[j];
+            menu[j] = item;
+            cents += this._cents[item];
+            long updated = received + 1000L * (60 + random.nextInt(paid ? 3600 : 1200));
+            items.append(orderID).append(';').append(this._items[item]).append(';');
+            timestamp(items, updated).append(';')
+                  .append(paid ? "Finished" : random.nextBoolean() ? Cafe.STATUS_STARTED : Cafe.STATUS_READY)
+                  .append(";\n");
+         } // end for
+         itemCount += k;
+
+         orders.append(orderID).append(';').append(this._logins[random.nextInt(this._logins.length)]).append(';')
+               .append(paid ? 't' : 'f').append(';');
+         timestamp(orders, received).append(';').append(cents / 100).append('.');
+         if (cents % 100 < 10)
+            orders.append('0');
+         orders.append(cents % 100).append('\n');
+      } // end for
+      return new Block(orders.toString().getBytes(StandardCharsets.UTF_8),
+            items.toString().getBytes(StandardCharsets.UTF_8), itemCount);
+   }// end block
+
+   /*
+    * The time, in milliseconds from the start of the range, by which a share
+    * q of the orders has been received.
+    **/
+   private long timeAt(double q) {
+      double target = q * this._cumulative[this._cumulative.length - 1];
+      // the last hour starting at or before target
+      int lo = 0;
+      int hi = this._cumulative.length - 2;
+      while (lo < hi) {
+         int mid = (lo + hi + 1) >>> 1;
+         if (this._cumulative[mid] <= target)
+            lo = mid;
+         else
+            hi = mid - 1;
+      } // end while
+      double width = this._cumulative[lo + 1] - this._cumulative[lo];
+      double fraction = width <= 0 ? 0 : Math.min(1.0, (target - this._cumulative[lo]) / width);
+      return lo * HOUR_MILLIS + (long) (fraction * (HOUR_MILLIS - 1));
+   }// end timeAt
+
+   /*
+    * Appends "yyyy-MM-dd HH:mm:ss.SSS" of a time in the range.
+    **/
+   private StringBuilder timestamp(StringBuilder sb, long millis) {
+      int day = (int) Math.min(millis / DAY_MILLIS, this._days.length - 1);
+      long rest = millis - day * DAY_MILLIS;
+      sb.append(this._days[day]);
+      two(sb, (int) (rest / HOUR_MILLIS)).append(':');
+      two(sb, (int) (rest / 60000 % 60)).append(':');
+      two(sb, (int) (rest / 1000 % 60)).append('.');
+      int ms = (int) (rest % 1000);
+      if (ms < 100)
+         sb.append('0');
+      return two(sb, ms);
+   }// end timestamp
+
+   private static StringBuilder two(StringBuilder sb, int n) {
+      if (n < 10)
+         sb.append('0');
+      return sb.append(n);
+   }// end two
+
+   /*
+    * Escapes the backslashes COPY's text format would read as escapes, and
+    * the delimiter and line breaks it would read as the end of a field.
+    **/
+   private static String copyText(String s) {
+      return s.replace("\\", "\\\\").replace(";", "\\;").replace("\n", "\\n").replace("\r", "\\r");
+   }// end copyText
+
+   /*
+    * Reads a semicolon separated data file into its fields.
+    **/
+   private static List<String[]> read(File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+         String line;
+         while ((line = in.readLine()) != null)
+            if (!line.isEmpty())
+               rows.add(line.split(";", -1));
+      } finally {
+         in.close();
+      } // end try
+      return rows;
+   }// end read
+
+   /**
+    * The data generator entry point
+    *
+    * @param args <data dir> <orders> [threads]
+    */
+   public static void main(String[] args) {
+      if (args.length != 2 && args.length != 3) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     DataGenerator.class.getName() +
+                     " <data dir> <orders> [threads]");
+         return;
+      } // end if
+
+      int status = 0;
+      try {
+         File dir = new File(args[0]);
+         // orders are placed by customers, or by anyone when there are none
+         List<String> logins = new ArrayList<String>();
+         List<String> everyone = new ArrayList<String>();
+         for (String[] user : read(new File(dir, "users.csv"))) {
+            everyone.add(user[0]);
+            if (user.length > 4 && user[4].trim().equals("Customer"))
+               logins.add(user[0]);
+         } // end for
+         List<String> items = new ArrayList<String>();
+         List<String[]> menu = read(new File(dir, "menu.csv"));
+         int[] cents = new int[menu.size()];
+         for (String[] item : menu) {
+            cents[items.size()] = new BigDecimal(item[2].trim()).movePointRight(2).setScale(0, RoundingMode.HALF_UP)
+                  .intValueExact();
+            items.add(item[0]);
+         } // end for
+
+         long orders = Long.parseLong(args[1]);
+         int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+         DataGenerator generator = new DataGenerator(logins.isEmpty() ? everyone : logins, items, cents, orders);
+         long started = System.currentTimeMillis();
+         long itemCount = generator.generate(dir, threads);
+         System.out.println("Wrote " + orders + " orders and " + itemCount + " items in "
+               + (System.currentTimeMillis() - started) + " ms");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = 1;
+      } // end try
+      System.exit(status);
+   }// end main
+
+}// end DataGenerator
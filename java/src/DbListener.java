@@ -0,0 +1,176 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class owns a dedicated connection that LISTENs on Postgres NOTIFY
+ * channels and dispatches incoming notifications to registered handlers on a
+ * background thread. The connection is kept out of the pool because it has
+ * to stay open and idle between notifications.
+ *
+ * When the connection drops, the listener reconnects and calls every handler
+ * with a null payload, since notifications sent in between are lost.
+ */
+public class DbListener {
+
+   /**
+    * Receives notifications for the channels it was registered on.
+    */
+   public interface Handler {
+      /**
+       * @param channel the NOTIFY channel
+       * @param payload the NOTIFY payload, or null after a reconnect
+       */
+      void onNotification(String channel, String payload);
+   }// end Handler
+
+   // how long one poll for notifications blocks
+   private static final int POLL_MILLIS = 500;
+   // upper bound of the reconnect backoff
+   private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+   private final String _url;
+   private final Properties _props;
+   private final Map<String, List<Handler>> _handlers = new ConcurrentHashMap<String, List<Handler>>();
+   // channels registered since the last LISTEN round
+   private final ConcurrentLinkedQueue<String> _pending = new ConcurrentLinkedQueue<String>();
+   private final Thread _thread;
+   private volatile boolean _running = true;
+   private Connection _connection = null;
+
+   /**
+    * Creates a new listener and starts its background thread
+    *
+    * @param url the JDBC connection URL
+    * @param props the connection properties (user, password, ...)
+    */
+   public DbListener(String url, Properties props) {
+      this._url = url;
+      this._props = props;
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            loop();
+         }
+      }, "cafe-db-listener");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }// end DbListener
+
+   /**
+    * Registers a handler for a channel. Channel names are plain lower case
+    * identifiers.
+    *
+    * @param channel the NOTIFY channel
+    * @param handler the handler called for each notification
+    */
+   public void listen(String channel, Handler handler) {
+      if (!channel.matches("[a-z_][a-z0-9_]*"))
+         throw new IllegalArgumentException("Invalid channel name: " + channel);
+      List<Handler> handlers = new CopyOnWriteArrayList<Handler>();
+      List<Handler> existing = this._handlers.putIfAbsent(channel, handlers);
+      if (existing != null)
+         handlers = existing;
+      handlers.add(handler);
+      if (existing == null)
+         this._pending.add(channel);
+   }// end listen
+
+   /**
+    * Stops the background thread and closes the listening connection.
+    */
+   public void close() {
+      this._running = false;
+      this._thread.interrupt();
+   }// end close
+
+   private void loop() {
+      long backoff = 1000L;
+      boolean reconnected = false;
+      while (this._running) {
+         try {
+            if (this._connection == null) {
+               this._connection = DriverManager.getConnection(this._url, this._props);
+               this._pending.clear();
+               for (String channel : this._handlers.keySet())
+                  execute("LISTEN " + channel);
+               if (reconnected)
+                  dispatchAll();
+               reconnected = true;
+               backoff = 1000L;
+            } // end if
+
+            String channel;
+            while ((channel = this._pending.poll()) != null)
+               execute("LISTEN " + channel);
+
+            PGNotification[] notifications = this._connection.unwrap(PGConnection.class)
+                  .getNotifications(POLL_MILLIS);
+            if (notifications != null) {
+               for (PGNotification notification : notifications)
+                  dispatch(notification.getName(), notification.getParameter());
+            } // end if
+         } catch (SQLException e) {
+            if (!this._running)
+               break;
+            System.err.println("Notification listener lost its connection: " + e.getMessage());
+            closeConnection();
+            try {
+               Thread.sleep(backoff);
+            } catch (InterruptedException ie) {
+               break;
+            } // end try
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+         } // end try
+      } // end while
+      closeConnection();
+   }// end loop
+
+   private void execute(String sql) throws SQLException {
+      Statement stmt = this._connection.createStatement();
+      try {
+         stmt.execute(sql);
+      } finally {
+         stmt.close();
+      } // end try
+   }// end execute
+
+   private void dispatch(String channel, String payload) {
+      List<Handler> handlers = this._handlers.get(channel);
+      if (handlers == null)
+         return;
+      for (Handler handler : handlers) {
+         try {
+            handler.onNotification(channel, payload);
+         } catch (RuntimeException e) {
+            System.err.println("Notification handler for " + channel + " failed: " + e.getMessage());
+         } // end try
+      } // end for
+   }// end dispatch
+
+   private void dispatchAll() {
+      for (String channel : this._handlers.keySet())
+         dispatch(channel, null);
+   }// end dispatchAll
+
+   private void closeConnection() {
+      if (this._connection == null)
+         return;
+      try {
+         this._connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      } // end try
+      this._connection = null;
+   }// end closeConnection
+
+}// end DbListener
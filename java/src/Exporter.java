@@ -0,0 +1,364 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class exports Orders and ItemStatus for analytics into orders.csv.gz
+ * and itemStatus.csv.gz, in the semicolon separated layout of the data files
+ * BulkLoader reads. The rows stream from COPY (SELECT ...) TO STDOUT straight
+ * into the compressor, so memory use does not grow with the table size.
+ *
+ *   - -Dexport.from and -Dexport.to (a date or date and time, e.g. 2024-01-31
+ *     or 2024-01-31T12:00) keep the orders received in [from, to), and the
+ *     items of those orders;
+ *   - the orderids found are split into ranges exported in parallel over
+ *     several connections, each into a part file, and the parts are joined
+ *     in orderid order. Every connection reads the same snapshot, so the
+ *     files are consistent with each other as of the start of the export;
+ *   - -Dexport.compress picks gzip (the default), zstd or none. zstd runs the
+ *     zstd command line tool, which must be on the PATH.
+ *
+ * Archived months (see PartitionManager) are not part of Orders any more and
+ * are not exported.
+ */
+public class Exporter {
+
+   // ranges per connection, so a dense range does not hold up the end
+   private static final int RANGES_PER_THREAD = 4;
+   private static final int BUFFER_BYTES = 1 << 16;
+
+   /*
+    * The files written, with the query each exports. %1$s is the filter on
+    * the order's received time, %2$s the orderid range, given for both
+    * sides of the join so each can use its orderid index.
+    **/
+   private static final String[][] FILES = {
+      { "orders.csv", "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders o "
+            + "WHERE %1$s AND o.orderid %2$s ORDER BY orderid" },
+      { "itemStatus.csv", "SELECT i.orderid, i.itemName, i.lastUpdated, i.status, i.comments "
+            + "FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid "
+            + "WHERE %1$s AND o.orderid %2$s AND i.orderid %2$s ORDER BY i.orderid, i.itemName" },
+   };
+
+   /*
+    * One orderid range of one file, exported by one COPY into a part file.
+    **/
+   private static class Part {
+      final String query;
+      final File file;
+
+      Part(String query, File file) {
+         this.query = query;
+         this.file = file;
+      }
+   }// end Part
+
+   private final BlockingQueue<Connection> _connections;
+   private final ExecutorService _workers;
+   private final int _threads;
+   private final String _compress;
+
+   // holds the snapshot every part is read in open until the export ends
+   private final Connection _coordinator;
+   private String _snapshot = null;
+
+   /**
+    * Opens the connections the export runs on
+    *
+    * @param url the JDBC connection URL
+    * @param props the connection properties (user, password, ...)
+    * @param threads the number of ranges exported at once
+    * @param compress gzip, zstd or none
+    * @throws java.sql.SQLException when a connection can not be opened
+    */
+   public Exporter(String url, Properties props, int threads, String compress) throws SQLException {
+      if (!"gzip".equals(compress) && !"zstd".equals(compress) && !"none".equals(compress))
+         throw new IllegalArgumentException("export.compress must be gzip, zstd or none, not " + compress);
+      this._threads = threads;
+      this._compress = compress;
+      this._connections = new ArrayBlockingQueue<Connection>(threads);
+      this._workers = Executors.newFixedThreadPool(threads);
+      this._coordinator = DriverManager.getConnection(url, props);
+      try {
+         for (int i = 0; i < threads; ++i)
+            this._connections.add(DriverManager.getConnection(url, props));
+      } catch (SQLException e) {
+         close();
+         throw e;
+      } // end try
+   }// end Exporter
+
+   /**
+    * Exports the orders received in [from, to) and their items.
+    *
+    * @param dir the directory the files are written to
+    * @param from the earliest received time exported, or null
+    * @param to the received time the export stops before, or null
+    * @return the number of rows exported per file, in the order of FILES
+    */
+   public long[] export(File dir, LocalDateTime from, LocalDateTime to)
+         throws SQLException, IOException, InterruptedException {
+      String filter = "true";
+      if (from != null)
+         filter += " AND o.timeStampRecieved >= '" + from + "'::timestamp";
+      if (to != null)
+         filter += " AND o.timeStampRecieved < '" + to + "'::timestamp";
+
+      this._coordinator.setAutoCommit(false);
+      Statement stmt = this._coordinator.createStatement();
+      try {
+         stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+         ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot(), min(orderid), max(orderid) FROM Orders o WHERE "
+               + filter);
+         rs.next();
+         this._snapshot = rs.getString(1);
+         long min = rs.getLong(2);
+         long max = rs.wasNull() ? min - 1 : rs.getLong(3);
+         rs.close();
+
+         long[] rows = new long[FILES.length];
+         for (int f = 0; f < FILES.length; ++f) {
+            File out = new File(dir, FILES[f][0] + suffix());
+            List<Part> parts = new ArrayList<Part>();
+            List<long[]> ranges = ranges(min, max, this._threads * RANGES_PER_THREAD);
+            // no orders: still write a valid, empty compressed file
+            if (ranges.isEmpty())
+               ranges.add(new long[] { 0, -1 });
+            for (long[] range : ranges) {
+               String orderids = "BETWEEN " + range[0] + " AND " + range[1];
+               parts.add(new Part(String.format(FILES[f][1], filter, orderids),
+                     new File(dir, out.getName() + ".part" + parts.size())));
+            } // end for
+            rows[f] = run(parts);
+            join(parts, out);
+            System.out.println("Exported " + rows[f] + " rows to " + out);
+         } // end for
+         return rows;
+      } finally {
+         stmt.close();
+         this._coordinator.rollback();
+      } // end try
+   }// end export
+
+   /*
+    * Splits [min, max] into at most count ranges of about the same number of orderids.
+    **/
+   static List<long[]> ranges(long min, long max, int count) {
+      List<long[]> ranges = new ArrayList<long[]>();
+      if (max < min)
+         return ranges;
+      long size = Math.max(1, (max - min + count) / count);
+      for (long start = min; start <= max; start += size)
+         ranges.add(new long[] { start, Math.min(max, start + size - 1) });
+      return ranges;
+   }// end ranges
+
+   /*
+    * Exports the parts in parallel and waits for all of them.
+    *
+    * @return the number of rows exported
+    **/
+   private long run(List<Part> parts) throws SQLException, IOException, InterruptedException {
+      List<Future<Long>> done = new ArrayList<Future<Long>>();
+      for (final Part part : parts)
+         done.add(this._workers.submit(() -> copy(part)));
+      long rows = 0;
+      for (Future<Long> f : done) {
+         try {
+            rows += f.get();
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+               throw (SQLException) cause;
+            if (cause instanceof IOException)
+               throw (IOException) cause;
+            throw new IllegalStateException(cause);
+         } // end try
+      } // end for
+      return rows;
+   }// end run
+
+   private long copy(Part part) throws SQLException, IOException, InterruptedException {
+      Connection conn = this._connections.take();
+      try {
+         // read the coordinator's snapshot, so all parts see the same rows
+         conn.setAutoCommit(false);
+         Statement stmt = conn.createStatement();
+         stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+         stmt.execute("SET TRANSACTION SNAPSHOT '" + this._snapshot + "'");
+         stmt.close();
+         OutputStream out = open(part.file);
+         try {
+            CopyManager copier = conn.unwrap(PGConnection.class).getCopyAPI();
+            return copier.copyOut("COPY (" + part.query + ") TO STDOUT WITH (DELIMITER ';')", out);
+         } finally {
+            out.close();
+         } // end try
+      } finally {
+         try {
+            conn.rollback();
+         } finally {
+            this._connections.put(conn);
+         } // end try
+      } // end try
+   }// end copy
+
+   /*
+    * Appends the parts to one file and deletes them. Concatenated gzip
+    * members and zstd frames decompress as one stream.
+    **/
+   private static void join(List<Part> parts, File out) throws IOException {
+      FileChannel target = new FileOutputStream(out).getChannel();
+      try {
+         for (Part part : parts) {
+            FileChannel source = new FileInputStream(part.file).getChannel();
+            try {
+               long size = source.size();
+               for (long pos = 0; pos < size;)
+                  pos += source.transferTo(pos, size - pos, target);
+            } finally {
+               source.close();
+            } // end try
+            if (!part.file.delete())
+               throw new IOException("Could not delete " + part.file);
+         } // end for
+      } finally {
+         target.close();
+      } // end try
+   }// end join
+
+   private String suffix() {
+      return "gzip".equals(this._compress) ? ".gz" : "zstd".equals(this._compress) ? ".zst" : "";
+   }// end suffix
+
+   /*
+    * Opens a part file through the configured compressor.
+    **/
+   private OutputStream open(File file) throws IOException {
+      if ("gzip".equals(this._compress))
+         return new GZIPOutputStream(new FileOutputStream(file), BUFFER_BYTES);
+      if ("none".equals(this._compress))
+         return new BufferedOutputStream(new FileOutputStream(file), BUFFER_BYTES);
+      final Process zstd = new ProcessBuilder("zstd", "-q", "-f", "-o", file.getPath())
+            .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+      return new FilterOutputStream(new BufferedOutputStream(zstd.getOutputStream(), BUFFER_BYTES)) {
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+         }
+
+         @Override
+         public void close() throws IOException {
+            super.close();
+            try {
+               if (zstd.waitFor() != 0)
+                  throw new IOException("zstd failed for " + file);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while compressing " + file);
+            } // end try
+         }
+      };
+   }// end open
+
+   public void close() {
+      this._workers.shutdownNow();
+      List<Connection> all = new ArrayList<Connection>(this._connections);
+      all.add(this._coordinator);
+      for (Connection conn : all) {
+         try {
+            if (conn != null)
+               conn.close();
+         } catch (SQLException ignored) {
+            // closing anyway.
+         } // end try
+      } // end for
+   }// end close
+
+   /*
+    * Reads a date or date and time property, or null when it is not set.
+    **/
+   private static LocalDateTime time(String property) {
+      String value = System.getProperty(property);
+      if (value == null || value.isEmpty())
+         return null;
+      try {
+         return value.length() <= 10 ? LocalDate.parse(value).atStartOfDay()
+               : LocalDateTime.parse(value.replace(' ', 'T'));
+      } catch (DateTimeParseException e) {
+         throw new IllegalArgumentException(property + " must look like 2024-01-31 or 2024-01-31T12:00, not " + value);
+      } // end try
+   }// end time
+
+   /**
+    * The exporter entry point
+    *
+    * @param args <dbname> <port> <user> <out dir> [threads]
+    */
+   public static void main(String[] args) {
+      if (args.length != 4 && args.length != 5) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     Exporter.class.getName() +
+                     " <dbname> <port> <user> <out dir> [threads]");
+         return;
+      } // end if
+
+      int status = 0;
+      Exporter exporter = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         Properties props = new Properties();
+         props.setProperty("user", args[2]);
+         props.setProperty("password", "");
+         int threads = args.length == 5 ? Integer.parseInt(args[4]) : 4;
+         LocalDateTime from = time("export.from");
+         LocalDateTime to = time("export.to");
+         File dir = new File(args[3]);
+         if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can not create " + dir);
+         exporter = new Exporter("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], props, threads,
+               System.getProperty("export.compress", "gzip"));
+         long started = System.currentTimeMillis();
+         long[] rows = exporter.export(dir, from, to);
+         System.out.println("Exported " + rows[0] + " orders and " + rows[1] + " items in "
+               + (System.currentTimeMillis() - started) + " ms");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = 1;
+      } finally {
+         if (exporter != null)
+            exporter.close();
+      } // end try
+      System.exit(status);
+   }// end main
+
+}// end Exporter
@@ -0,0 +1,207 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class pages through a query one screen at a time using keyset
+ * pagination: each page is fetched with a row-value comparison against the
+ * key of the first or last row on screen instead of an OFFSET, so every page
+ * costs the same however deep the user has paged. Rows are ordered by the key
+ * columns, newest first. With shards every shard returns a page and the
+ * first pageSize rows across them are shown.
+ */
+public class KeysetPager {
+
+   // rows shown per page
+   public static final int DEFAULT_PAGE_SIZE = Integer.getInteger("cafe.pageSize", 20);
+
+   private final Cafe _esql;
+   private final String[] _keys;
+   private final Object[] _params;
+   private final String _firstPage;
+   private final String _nextPage;
+   private final String _prevPage;
+
+   /**
+    * Creates a pager over SELECT ... WHERE filter ORDER BY keys DESC
+    *
+    * @param esql the database the rows are read from
+    * @param select the SELECT ... FROM part of the query
+    * @param filter the WHERE condition, or null for all rows
+    * @param keys the columns the pages are ordered and split on; together they must be unique
+    * @param params the values bound to the filter's placeholders
+    */
+   public KeysetPager(Cafe esql, String select, String filter, String[] keys, Object... params) {
+      this._esql = esql;
+      this._keys = keys;
+      this._params = params;
+
+      String where = filter == null ? " WHERE " : " WHERE (" + filter + ") AND ";
+      String tuple = "(" + join(keys, "") + ")";
+      String marks = "(" + join(keys, "?") + ")";
+      this._firstPage = select + (filter == null ? "" : " WHERE " + filter)
+            + " ORDER BY " + join(keys, " DESC") + " LIMIT ?";
+      this._nextPage = select + where + tuple + " < " + marks
+            + " ORDER BY " + join(keys, " DESC") + " LIMIT ?";
+      this._prevPage = select + where + tuple + " > " + marks
+            + " ORDER BY " + join(keys, " ASC") + " LIMIT ?";
+   }// end KeysetPager
+
+   /**
+    * Shows the first page and lets the user move between pages until they
+    * quit or there is only one page.
+    *
+    * @param in where the user's page commands are read from
+    * @param pageSize rows per page
+    * @return the number of rows on the first page
+    * @throws java.sql.SQLException when a page can not be read
+    * @throws java.io.IOException when the user's input can not be read
+    */
+   public int browse(BufferedReader in, int pageSize) throws SQLException, IOException {
+      Page page = fetch(this._firstPage, null, false, pageSize);
+      int firstCount = page.rows.size();
+      print(page);
+      if (page.rows.size() < pageSize)
+         return firstCount;
+
+      int pageNo = 0;
+      while (true) {
+         System.out.println("n = next page, p = previous page, q = done");
+         String choice = in.readLine();
+         if (choice == null || choice.trim().equals("q"))
+            break;
+         Page moved;
+         if (choice.trim().equals("n")) {
+            moved = fetch(this._nextPage, page.last, false, pageSize);
+            if (moved.rows.isEmpty()) {
+               System.out.println("No more rows.");
+               continue;
+            } // end if
+            ++pageNo;
+         } else if (choice.trim().equals("p")) {
+            moved = pageNo == 0 ? null : fetch(this._prevPage, page.first, true, pageSize);
+            if (moved == null || moved.rows.isEmpty()) {
+               System.out.println("Already on the first page.");
+               continue;
+            } // end if
+            --pageNo;
+         } else {
+            continue;
+         } // end if
+         page = moved;
+         print(page);
+      } // end while
+      return firstCount;
+   }// end browse
+
+   /*
+    * @return the first, next and previous page queries; the next and previous
+    * page queries take the filter's parameters, then the key values, then
+    * the page size
+    **/
+   String[] queries() {
+      return new String[] { this._firstPage, this._nextPage, this._prevPage };
+   }// end queries
+
+   /*
+    * One page of rows with the keys of its first and last row.
+    **/
+   private static class Page {
+      String[] header;
+      List<String[]> rows = new ArrayList<String[]>();
+      Object[] first;
+      Object[] last;
+   }// end Page
+
+   private Page fetch(String query, Object[] from, boolean backwards, int pageSize) throws SQLException {
+      final Page page = new Page();
+      final List<Object[]> keys = new ArrayList<Object[]>();
+      Object[] params = new Object[this._params.length + (from == null ? 0 : from.length) + 1];
+      System.arraycopy(this._params, 0, params, 0, this._params.length);
+      if (from != null)
+         System.arraycopy(from, 0, params, this._params.length, from.length);
+      params[params.length - 1] = pageSize;
+
+      this._esql.streamQuery(query, 0, row -> {
+         if (page.header == null) {
+            page.header = new String[row.getColumnCount()];
+            for (int i = 1; i <= page.header.length; ++i)
+               page.header[i - 1] = row.getColumnName(i);
+         } // end if
+         Object[] key = new Object[this._keys.length];
+         for (int k = 0; k < key.length; ++k)
+            key[k] = row.getObject(column(page.header, this._keys[k]));
+         keys.add(key);
+         page.rows.add(ResultPrinter.cells(row));
+      }, params);
+
+      // with shards every shard returned a page of its own; keep the rows
+      // that come first across all of them
+      if (this._esql.getShards().isEnabled() && keys.size() > 1) {
+         Integer[] order = new Integer[keys.size()];
+         for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+         Arrays.sort(order, (a, b) -> backwards ? compare(keys.get(a), keys.get(b)) : compare(keys.get(b), keys.get(a)));
+         List<Object[]> sortedKeys = new ArrayList<Object[]>();
+         List<String[]> sortedRows = new ArrayList<String[]>();
+         for (int i = 0; i < Math.min(order.length, pageSize); ++i) {
+            sortedKeys.add(keys.get(order[i]));
+            sortedRows.add(page.rows.get(order[i]));
+         } // end for
+         keys.clear();
+         keys.addAll(sortedKeys);
+         page.rows = sortedRows;
+      } // end if
+
+      if (backwards) {
+         Collections.reverse(page.rows);
+         Collections.reverse(keys);
+      } // end if
+      if (!keys.isEmpty()) {
+         page.first = keys.get(0);
+         page.last = keys.get(keys.size() - 1);
+      } // end if
+      return page;
+   }// end fetch
+
+   private static void print(Page page) {
+      ResultPrinter printer = new ResultPrinter(page.rows.size() + 1);
+      if (page.header != null)
+         printer.header(page.header);
+      for (String[] cells : page.rows)
+         printer.add(cells);
+      printer.finish();
+   }// end print
+
+   @SuppressWarnings("unchecked")
+   private static int compare(Object[] a, Object[] b) {
+      for (int k = 0; k < a.length; ++k) {
+         int c = ((Comparable<Object>) a[k]).compareTo(b[k]);
+         if (c != 0)
+            return c;
+      } // end for
+      return 0;
+   }// end compare
+
+   private static int column(String[] header, String key) throws SQLException {
+      for (int i = 0; i < header.length; ++i)
+         if (header[i].equalsIgnoreCase(key))
+            return i + 1;
+      throw new SQLException("Key column " + key + " is not part of the result");
+   }// end column
+
+   private static String join(String[] keys, String suffix) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < keys.length; ++i) {
+         if (i > 0)
+            sb.append(", ");
+         sb.append(suffix.equals("?") ? "?" : keys[i] + suffix);
+      } // end for
+      return sb.toString();
+   }// end join
+
+}// end KeysetPager
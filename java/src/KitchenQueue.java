@@ -0,0 +1,232 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class keeps the open orders of the last 24 hours and their items in
+ * memory, oldest first, for the staff consoles. It is loaded from the
+ * database once and then updated from the order_changed and item_changed
+ * notifications sent by the triggers in create_triggers.sql, so watching the
+ * kitchen costs no queries.
+ *
+ * Notifications carry the whole new state of a row, so applying one twice,
+ * or one that was already part of the load, is harmless. After a listener
+ * reconnect the queue is reloaded on its next use.
+ */
+public class KitchenQueue implements DbListener.Handler {
+
+   // channels the Orders and ItemStatus triggers notify on
+   public static final String ORDER_CHANNEL = "order_changed";
+   public static final String ITEM_CHANNEL = "item_changed";
+
+   private static final long WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
+
+   /**
+    * One item of an open order.
+    */
+   public static final class Item {
+      public final String name;
+      public final String status;
+      public final Timestamp lastUpdated;
+
+      Item(String name, String status, Timestamp lastUpdated) {
+         this.name = name;
+         this.status = status;
+         this.lastUpdated = lastUpdated;
+      }
+   }// end Item
+
+   /**
+    * An open order; replaced, never changed, when a notification arrives.
+    */
+   public static final class Order {
+      public final int orderID;
+      public final String login;
+      public final Timestamp received;
+      public final BigDecimal total;
+      // item name -> item, in the order the items arrived
+      final Map<String, Item> items;
+
+      Order(int orderID, String login, Timestamp received, BigDecimal total, Map<String, Item> items) {
+         this.orderID = orderID;
+         this.login = login;
+         this.received = received;
+         this.total = total;
+         this.items = items;
+      }
+
+      public List<Item> items() {
+         return Collections.unmodifiableList(new ArrayList<Item>(this.items.values()));
+      }
+   }// end Order
+
+   private final Cafe _esql;
+
+   // open orders by orderid, and the same orders by (received, orderid)
+   private final Map<Integer, Order> _byID = new HashMap<Integer, Order>();
+   private final TreeMap<String, Order> _byTime = new TreeMap<String, Order>();
+   private boolean _loaded = false;
+   private long _version = 0;
+
+   /**
+    * Creates an empty queue; it is loaded on first use.
+    *
+    * @param esql the database the orders are read from
+    */
+   public KitchenQueue(Cafe esql) {
+      this._esql = esql;
+   }// end KitchenQueue
+
+   /**
+    * @return the open orders of the last 24 hours, oldest first
+    * @throws java.sql.SQLException when the queue had to be loaded and failed
+    */
+   public synchronized List<Order> orders() throws SQLException {
+      if (!this._loaded)
+         load();
+      long cutoff = System.currentTimeMillis() - WINDOW_MILLIS;
+      Iterator<Order> it = this._byTime.values().iterator();
+      while (it.hasNext()) {
+         Order order = it.next();
+         if (order.received.getTime() >= cutoff)
+            break;
+         it.remove();
+         this._byID.remove(order.orderID);
+      } // end while
+      return new ArrayList<Order>(this._byTime.values());
+   }// end orders
+
+   /**
+    * @return a number that changes whenever the queue does
+    */
+   public synchronized long version() {
+      return this._version;
+   }// end version
+
+   /**
+    * Waits until the queue changes or the time runs out.
+    *
+    * @param version the version the caller last saw
+    * @param millis the longest time to wait
+    * @return the current version
+    */
+   public synchronized long awaitChange(long version, long millis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + millis;
+      long left = millis;
+      while (this._version == version && left > 0) {
+         wait(left);
+         left = deadline - System.currentTimeMillis();
+      } // end while
+      return this._version;
+   }// end awaitChange
+
+   private void load() throws SQLException {
+      this._byID.clear();
+      this._byTime.clear();
+      // from the primary, which every notification applied to is already on
+      this._esql.getRouter().primaryOnly(() -> this._esql.streamQuery("SELECT o.orderid, o.login, o.timeStampRecieved, o.total, i.itemName, i.status, i.lastUpdated "
+            + "FROM ORDERS o LEFT JOIN ITEMSTATUS i ON i.orderid = o.orderid WHERE " + Cafe.RECENT_UNPAID
+            + " ORDER BY o.timeStampRecieved, o.orderid", row -> {
+               int orderID = row.getInt(1);
+               Order order = this._byID.get(orderID);
+               if (order == null) {
+                  order = new Order(orderID, trim(row.getString(2)), row.getTimestamp(3), row.getBigDecimal(4),
+                        new LinkedHashMap<String, Item>());
+                  put(order);
+               } // end if
+               String item = row.getString(5);
+               if (item != null)
+                  order.items.put(trim(item), new Item(trim(item), trim(row.getString(6)), row.getTimestamp(7)));
+            }));
+      this._loaded = true;
+      changed();
+   }// end load
+
+   /**
+    * Applies an order_changed or item_changed notification.
+    *
+    * order_changed: U|orderid|paid|total|received|login or D|orderid
+    * item_changed:  U|orderid|status|lastUpdated|itemName or D|orderid|itemName
+    */
+   public synchronized void onNotification(String channel, String payload) {
+      if (payload == null) {
+         // notifications were missed while the listener reconnected
+         this._loaded = false;
+         changed();
+         return;
+      } // end if
+      if (!this._loaded)
+         return;
+      try {
+         if (channel.equals(ORDER_CHANNEL))
+            orderChanged(payload.split("\\|", 6));
+         else if (channel.equals(ITEM_CHANNEL))
+            itemChanged(payload.split("\\|", 5));
+      } catch (RuntimeException e) {
+         // a payload this version does not understand; start over from the database
+         this._loaded = false;
+      } // end try
+      changed();
+   }// end onNotification
+
+   private void orderChanged(String[] f) {
+      int orderID = Integer.parseInt(f[1]);
+      Order old = remove(orderID);
+      if (f[0].equals("D") || f[2].startsWith("t"))
+         return;
+      Timestamp received = Timestamp.valueOf(f[4]);
+      if (received.getTime() < System.currentTimeMillis() - WINDOW_MILLIS)
+         return;
+      Map<String, Item> items = old == null ? new LinkedHashMap<String, Item>() : old.items;
+      put(new Order(orderID, f[5], received, new BigDecimal(f[3]), items));
+   }// end orderChanged
+
+   private void itemChanged(String[] f) {
+      int orderID = Integer.parseInt(f[1]);
+      Order old = this._byID.get(orderID);
+      if (old == null)
+         return;
+      Map<String, Item> items = new LinkedHashMap<String, Item>(old.items);
+      if (f[0].equals("D"))
+         items.remove(f[2]);
+      else
+         items.put(f[4], new Item(f[4], f[2], Timestamp.valueOf(f[3])));
+      remove(orderID);
+      put(new Order(old.orderID, old.login, old.received, old.total, items));
+   }// end itemChanged
+
+   private void put(Order order) {
+      this._byID.put(order.orderID, order);
+      this._byTime.put(timeKey(order), order);
+   }// end put
+
+   private Order remove(int orderID) {
+      Order old = this._byID.remove(orderID);
+      if (old != null)
+         this._byTime.remove(timeKey(old));
+      return old;
+   }// end remove
+
+   private void changed() {
+      ++this._version;
+      notifyAll();
+   }// end changed
+
+   // sorts by received time, then orderid
+   private static String timeKey(Order order) {
+      return String.format("%019d:%010d", order.received.getTime(), order.orderID);
+   }// end timeKey
+
+   private static String trim(String value) {
+      return value == null ? null : Cafe.rtrim(value);
+   }// end trim
+
+}// end KitchenQueue
@@ -0,0 +1,126 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets, in the manner of an HDR
+ * histogram: every power of two is split into 64 equal buckets, so any
+ * recorded value is known to within about 1.5% while the whole range from a
+ * nanosecond to hours fits in a fixed array. Recording is a few shifts and
+ * one atomic increment, so one histogram can be shared by many threads.
+ */
+public class LatencyHistogram {
+
+   // buckets per power of two, as a power of two
+   private static final int SUB_BITS = 6;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _total = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one value.
+    *
+    * @param nanos the latency in nanoseconds; negative values count as 0
+    */
+   public void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      this._counts.incrementAndGet(bucket(nanos));
+      this._total.incrementAndGet();
+      this._sum.addAndGet(nanos);
+      long max = this._max.get();
+      while (nanos > max && !this._max.compareAndSet(max, nanos))
+         max = this._max.get();
+   }// end record
+
+   /**
+    * @return the number of values recorded
+    */
+   public long count() {
+      return this._total.get();
+   }// end count
+
+   /**
+    * @return the largest value recorded, in nanoseconds
+    */
+   public long max() {
+      return this._max.get();
+   }// end max
+
+   /**
+    * @return the mean of the values recorded, in nanoseconds
+    */
+   public double mean() {
+      long count = count();
+      return count == 0 ? 0 : (double) this._sum.get() / count;
+   }// end mean
+
+   /**
+    * Returns the value below which the given share of the recorded values
+    * fall, e.g. 0.99 for the 99th percentile.
+    *
+    * @param quantile a number between 0 and 1
+    * @return the upper end of the bucket holding that value, in nanoseconds
+    */
+   public long percentile(double quantile) {
+      long count = count();
+      if (count == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get(i);
+         if (seen >= rank)
+            return Math.min(upper(i), max());
+      } // end for
+      return max();
+   }// end percentile
+
+   /**
+    * Adds the values recorded by another histogram to this one.
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long n = other._counts.get(i);
+         if (n != 0)
+            this._counts.addAndGet(i, n);
+      } // end for
+      this._total.addAndGet(other._total.get());
+      this._sum.addAndGet(other._sum.get());
+      long max = this._max.get();
+      while (other.max() > max && !this._max.compareAndSet(max, other.max()))
+         max = this._max.get();
+   }// end add
+
+   /**
+    * @return a copy of this histogram that no longer changes
+    */
+   public LatencyHistogram copy() {
+      LatencyHistogram copy = new LatencyHistogram();
+      copy.add(this);
+      return copy;
+   }// end copy
+
+   /**
+    * Values below 64 get a bucket each; above that the top SUB_BITS + 1 bits
+    * of the value pick the bucket within its power of two.
+    */
+   private static int bucket(long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+   }// end bucket
+
+   private static long upper(int bucket) {
+      if (bucket < SUB_COUNT)
+         return bucket;
+      int shift = bucket / SUB_COUNT - 1;
+      long top = bucket % SUB_COUNT + SUB_COUNT;
+      return ((top + 1) << shift) - 1;
+   }// end upper
+
+}// end LatencyHistogram
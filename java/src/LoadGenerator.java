@@ -0,0 +1,432 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class puts the Cafe under a simulated lunch-rush load. The accounts in
+ * users.csv act as customers, employees and managers and run the operations
+ * of the Cafe menus in a configurable mix. Requests arrive at a fixed average
+ * rate (Poisson arrivals) whatever the response times, and each latency is
+ * measured from the moment its request was due, so a slow database shows up
+ * as queueing delay instead of a lower arrival rate.
+ *
+ * The workload is a trace of timed requests. It is generated from a seed, can
+ * be written to a file with -Dload.record and run again, request for request,
+ * with -Dload.replay. Settings are read from system properties:
+ *
+ *    load.rate         requests per second                        (50)
+ *    load.duration     seconds of load                            (60)
+ *    load.threads      requests in flight at most                 (32)
+ *    load.seed         seed of the generated trace                (1)
+ *    load.staffShare   share of requests made by staff            (0.05)
+ *    load.mix.customer operation:weight,... for customers
+ *    load.mix.staff    operation:weight,... for employees/managers
+ *    load.record       file the generated trace is written to
+ *    load.replay       trace file to run instead of generating one
+ *
+ * Run with -Dcafe.pool.max at least load.threads, or the pool becomes the
+ * bottleneck being measured.
+ */
+public class LoadGenerator {
+
+   /*
+    * The operations of the Cafe menus, with the latency budget each runs in.
+    **/
+   enum Op {
+      LOGIN(Budget.ACCOUNT), MENU(Budget.BROWSE), SEARCH(Budget.BROWSE), ORDER(Budget.ORDER),
+      UPDATE(Budget.UPDATE), HISTORY(Budget.BROWSE), PROFILE(Budget.ACCOUNT), PAID(Budget.PAYMENT);
+
+      final Budget budget;
+
+      Op(Budget budget) {
+         this.budget = budget;
+      }
+   }// end Op
+
+   /*
+    * One request of the trace: at offset micros after the start, the user
+    * runs op; arg picks the menu items or search term.
+    **/
+   static class Request {
+      final long offsetMicros;
+      final String login;
+      final Op op;
+      final int arg;
+
+      Request(long offsetMicros, String login, Op op, int arg) {
+         this.offsetMicros = offsetMicros;
+         this.login = login;
+         this.op = op;
+         this.arg = arg;
+      }
+   }// end Request
+
+   /*
+    * What was measured for one operation.
+    **/
+   static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+   }// end Stats
+
+   static final String DEFAULT_CUSTOMER_MIX = "login:15,menu:20,search:15,order:20,update:10,history:15,profile:5";
+   static final String DEFAULT_STAFF_MIX = "login:10,menu:10,history:50,paid:30";
+
+   private static final String[] SEARCHES = { "Drinks", "Sweets", "Soup", "Coffee", "Latte" };
+
+   private final Cafe _esql;
+   private final Map<String, String> _passwords;
+   private final Map<String, Boolean> _staff;
+   private final Map<Op, Stats> _stats = new EnumMap<Op, Stats>(Op.class);
+   private final AtomicLong _deadlocks = new AtomicLong();
+   private final AtomicLong _serializationFailures = new AtomicLong();
+
+   /**
+    * Creates a load generator for the given accounts
+    *
+    * @param esql the database the load is put on
+    * @param users login, password and type of every account, as read by readUsers
+    */
+   public LoadGenerator(Cafe esql, List<String[]> users) {
+      this._esql = esql;
+      this._passwords = new HashMap<String, String>();
+      this._staff = new HashMap<String, Boolean>();
+      for (String[] user : users) {
+         this._passwords.put(user[0], user[1]);
+         this._staff.put(user[0], !user[2].equals("Customer"));
+      } // end for
+      for (Op op : Op.values())
+         this._stats.put(op, new Stats());
+   }// end LoadGenerator
+
+   /**
+    * Reads the accounts of a users.csv file (login;phoneNum;password;favItems;type).
+    *
+    * @return login, password and type of every account
+    */
+   public static List<String[]> readUsers(String file) throws IOException {
+      List<String[]> users = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(";", -1);
+            if (fields.length >= 5)
+               users.add(new String[] { fields[0], fields[2], fields[4].trim() });
+         } // end while
+      } finally {
+         reader.close();
+      } // end try
+      return users;
+   }// end readUsers
+
+   /**
+    * Generates a trace of Poisson arrivals.
+    *
+    * @param users the accounts, as read by readUsers
+    * @param seed the seed of the random choices; equal seeds give equal traces
+    * @param rate requests per second
+    * @param seconds length of the trace
+    * @param staffShare share of the requests made by employees and managers
+    * @param customerMix operation:weight pairs for customers
+    * @param staffMix operation:weight pairs for staff
+    * @return the requests in order of arrival
+    */
+   public static List<Request> generate(List<String[]> users, long seed, double rate, int seconds,
+         double staffShare, String customerMix, String staffMix) {
+      List<String> customers = new ArrayList<String>();
+      List<String> staff = new ArrayList<String>();
+      for (String[] user : users)
+         (user[2].equals("Customer") ? customers : staff).add(user[0]);
+      if (staff.isEmpty())
+         staffShare = 0;
+      Op[] customerOps = mix(customerMix);
+      Op[] staffOps = mix(staffMix);
+
+      Random random = new Random(seed);
+      List<Request> trace = new ArrayList<Request>();
+      double offset = 0;
+      while (true) {
+         offset += -Math.log(1 - random.nextDouble()) / rate;
+         if (offset >= seconds)
+            break;
+         boolean isStaff = random.nextDouble() < staffShare;
+         List<String> logins = isStaff ? staff : customers;
+         Op[] ops = isStaff ? staffOps : customerOps;
+         trace.add(new Request((long) (offset * 1e6), logins.get(random.nextInt(logins.size())),
+               ops[random.nextInt(ops.length)], random.nextInt(1 << 20)));
+      } // end while
+      return trace;
+   }// end generate
+
+   /*
+    * Expands "op:weight,..." into a table with weight entries per operation.
+    **/
+   static Op[] mix(String spec) {
+      List<Op> table = new ArrayList<Op>();
+      for (String part : spec.split(",")) {
+         String[] pair = part.trim().split(":");
+         Op op = Op.valueOf(pair[0].trim().toUpperCase());
+         int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+         for (int i = 0; i < weight; ++i)
+            table.add(op);
+      } // end for
+      if (table.isEmpty())
+         throw new IllegalArgumentException("Empty operation mix: " + spec);
+      return table.toArray(new Op[table.size()]);
+   }// end mix
+
+   /**
+    * Writes a trace, one offsetMicros;login;operation;arg line per request.
+    */
+   public static void write(List<Request> trace, String file) throws IOException {
+      BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+      try {
+         for (Request r : trace)
+            writer.write(r.offsetMicros + ";" + r.login + ";" + r.op.name().toLowerCase() + ";" + r.arg + "\n");
+      } finally {
+         writer.close();
+      } // end try
+   }// end write
+
+   /**
+    * Reads a trace written by write.
+    */
+   public static List<Request> read(String file) throws IOException {
+      List<Request> trace = new ArrayList<Request>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty())
+               continue;
+            String[] fields = line.split(";", -1);
+            trace.add(new Request(Long.parseLong(fields[0]), fields[1], Op.valueOf(fields[2].toUpperCase()),
+                  Integer.parseInt(fields[3])));
+         } // end while
+      } finally {
+         reader.close();
+      } // end try
+      return trace;
+   }// end read
+
+   /**
+    * Issues every request of the trace when it is due and waits for the
+    * last one to finish.
+    *
+    * @param trace the requests, in order of arrival
+    * @param threads the most requests in flight at once
+    * @return the wall-clock time taken, in nanoseconds
+    */
+   public long run(List<Request> trace, int threads) throws InterruptedException {
+      ExecutorService workers = Executors.newFixedThreadPool(threads);
+      final long start = System.nanoTime();
+      for (final Request r : trace) {
+         final long due = start + r.offsetMicros * 1000;
+         long wait = due - System.nanoTime();
+         if (wait > 0)
+            LockSupport.parkNanos(wait);
+         workers.execute(() -> execute(r, due));
+      } // end for
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      return System.nanoTime() - start;
+   }// end run
+
+   private void execute(Request r, long due) {
+      Stats stats = this._stats.get(r.op);
+      // each simulated user reads its own writes, as behind CafeServer
+      this._esql.actAs(r.login);
+      try {
+         this._esql.withBudget(r.op.budget, () -> {
+            perform(r);
+            return null;
+         });
+      } catch (SQLException e) {
+         stats.errors.incrementAndGet();
+         if ("40P01".equals(e.getSQLState()))
+            this._deadlocks.incrementAndGet();
+         else if ("40001".equals(e.getSQLState()))
+            this._serializationFailures.incrementAndGet();
+      } catch (RuntimeException e) {
+         stats.errors.incrementAndGet();
+      } finally {
+         this._esql.actAs(null);
+      } // end try
+      stats.latency.record(System.nanoTime() - due);
+   }// end execute
+
+   /*
+    * Runs one request the way the matching menu entry would, without the
+    * console output.
+    **/
+   private void perform(Request r) throws SQLException {
+      boolean staff = Boolean.TRUE.equals(this._staff.get(r.login));
+      switch (r.op) {
+         case LOGIN:
+            Session session = Cafe.logIn(this._esql, r.login, this._passwords.get(r.login));
+            if (session == null)
+               throw new IllegalStateException("Login failed for " + r.login);
+            this._esql.getSessions().close(session);
+            break;
+         case MENU:
+            this._esql.getMenu();
+            break;
+         case SEARCH:
+            MenuSnapshot menu = this._esql.getMenu();
+            menu.search().search(SEARCHES[r.arg % SEARCHES.length], menu.size());
+            break;
+         case ORDER:
+            Cafe.placeOrder(this._esql, r.login, items(r.arg, 1 + r.arg % 4));
+            break;
+         case UPDATE:
+            Integer orderID = this._esql.onShardOf(r.login, () -> this._esql.queryForObject(
+                  "SELECT orderid FROM ORDERS WHERE login = ? AND paid = false "
+                        + "ORDER BY timeStampRecieved DESC, orderid DESC LIMIT 1",
+                  row -> row.getInt(1), r.login));
+            if (orderID == null)
+               orderID = Cafe.placeOrder(this._esql, r.login, items(r.arg, 1));
+            String item = items(r.arg + 1, 1).get(0);
+            try {
+               Cafe.addItemToOrder(this._esql, orderID, item);
+               Cafe.removeItemFromOrder(this._esql, orderID, item);
+            } catch (IllegalArgumentException alreadyOrdered) {
+               Cafe.removeItemFromOrder(this._esql, orderID, item);
+               Cafe.addItemToOrder(this._esql, orderID, item);
+            } // end try
+            break;
+         case HISTORY:
+            Cafe.orderHistory(this._esql, r.login, staff, row -> row.getInt(1));
+            break;
+         case PROFILE:
+            this._esql.executeUpdate("UPDATE USERS SET password = ? WHERE login = ?", this._passwords.get(r.login),
+                  r.login);
+            break;
+         case PAID:
+            Integer unpaid = this._esql.queryForObject(
+                  "SELECT orderid FROM ORDERS WHERE paid = false AND timeStampRecieved >= NOW() - '1 day'::INTERVAL "
+                        + "ORDER BY timeStampRecieved LIMIT 1",
+                  row -> row.getInt(1));
+            if (unpaid != null)
+               Cafe.markOrderPaid(this._esql, unpaid);
+            break;
+      } // end switch
+   }// end perform
+
+   /*
+    * count distinct menu items, picked by arg
+    **/
+   private List<String> items(int arg, int count) throws SQLException {
+      MenuSnapshot menu = this._esql.getMenu();
+      count = Math.min(count, menu.size());
+      List<String> items = new ArrayList<String>(count);
+      for (int i = 0; i < count; ++i)
+         items.add(MenuSnapshot.key(menu.name((arg + i) % menu.size())));
+      return items;
+   }// end items
+
+   /**
+    * Prints throughput, latency percentiles and error counts per operation.
+    *
+    * @param elapsedNanos the wall-clock time the run took
+    */
+   public void report(long elapsedNanos) {
+      ResultPrinter printer = new ResultPrinter();
+      printer.header(new String[] { "operation", "count", "errors", "per sec", "p50 ms", "p99 ms", "p99.9 ms", "max ms" });
+      LatencyHistogram all = new LatencyHistogram();
+      long errors = 0;
+      for (Map.Entry<Op, Stats> entry : this._stats.entrySet()) {
+         LatencyHistogram h = entry.getValue().latency;
+         if (h.count() == 0)
+            continue;
+         all.add(h);
+         errors += entry.getValue().errors.get();
+         printer.add(row(entry.getKey().name().toLowerCase(), h, entry.getValue().errors.get(), elapsedNanos));
+      } // end for
+      printer.add(row("all", all, errors, elapsedNanos));
+      printer.finish();
+      System.out.println("deadlocks: " + this._deadlocks.get() + ", serialization failures: "
+            + this._serializationFailures.get());
+   }// end report
+
+   private static String[] row(String name, LatencyHistogram h, long errors, long elapsedNanos) {
+      return new String[] { name, String.valueOf(h.count()), String.valueOf(errors),
+            String.format("%.1f", h.count() * 1e9 / elapsedNanos), millis(h.percentile(0.5)),
+            millis(h.percentile(0.99)), millis(h.percentile(0.999)), millis(h.max()) };
+   }// end row
+
+   private static String millis(long nanos) {
+      return String.format("%.2f", nanos / 1e6);
+   }// end millis
+
+   /**
+    * The load generator entry point
+    *
+    * @param args <dbname> <port> <user> <users.csv>
+    */
+   public static void main(String[] args) {
+      if (args.length != 4) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     LoadGenerator.class.getName() +
+                     " <dbname> <port> <user> <users.csv>");
+         return;
+      } // end if
+
+      Cafe esql = null;
+      try {
+         List<String[]> users = readUsers(args[3]);
+         List<Request> trace;
+         String replay = System.getProperty("load.replay");
+         if (replay != null) {
+            trace = read(replay);
+         } else {
+            trace = generate(users, Long.getLong("load.seed", 1L),
+                  Double.parseDouble(System.getProperty("load.rate", "50")),
+                  Integer.getInteger("load.duration", 60),
+                  Double.parseDouble(System.getProperty("load.staffShare", "0.05")),
+                  System.getProperty("load.mix.customer", DEFAULT_CUSTOMER_MIX),
+                  System.getProperty("load.mix.staff", DEFAULT_STAFF_MIX));
+            String record = System.getProperty("load.record");
+            if (record != null)
+               write(trace, record);
+         } // end if
+
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         esql = new Cafe(args[0], args[1], args[2], "");
+         LoadGenerator load = new LoadGenerator(esql, users);
+         System.out.println("Running " + trace.size() + " requests...");
+         long elapsed = load.run(trace, Integer.getInteger("load.threads", 32));
+         load.report(elapsed);
+         System.out.println();
+         System.out.print(esql.getMetrics().report());
+         System.out.println(esql.getRouter().report());
+         System.out.println(esql.getAdmission().report());
+         System.out.println(esql.getAudit().report());
+         if (esql.getShards().isEnabled())
+            System.out.println(esql.getShards().report());
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      } // end try
+   }// end main
+
+}// end LoadGenerator
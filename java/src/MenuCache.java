@@ -0,0 +1,80 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class holds the current MenuSnapshot and swaps in a fresh one when the
+ * Menu table changes. Changes are signalled by the menu_changed NOTIFY sent by
+ * the trigger in create_triggers.sql; a time-to-live bounds staleness when a
+ * notification is missed or no listener is running.
+ */
+public class MenuCache implements DbListener.Handler {
+
+   // channel the Menu trigger notifies on
+   public static final String CHANNEL = "menu_changed";
+
+   private final Cafe _esql;
+   private final long _ttlMillis;
+   private final AtomicReference<MenuSnapshot> _snapshot = new AtomicReference<MenuSnapshot>();
+
+   // bumped on every invalidation; snapshots loaded under an older value are stale
+   private final AtomicLong _generation = new AtomicLong();
+
+   /**
+    * Creates a new, empty menu cache. The first call to get loads the menu.
+    *
+    * @param esql the database the menu is read from
+    * @param ttlMillis the maximum age of a snapshot
+    */
+   public MenuCache(Cafe esql, long ttlMillis) {
+      this._esql = esql;
+      this._ttlMillis = ttlMillis;
+   }// end MenuCache
+
+   /**
+    * Returns the current menu, reloading it first if it was invalidated or
+    * is older than the time-to-live. Concurrent callers share one reload.
+    *
+    * @return the current menu snapshot
+    * @throws java.sql.SQLException when the menu can not be read
+    */
+   public MenuSnapshot get() throws SQLException {
+      MenuSnapshot current = this._snapshot.get();
+      if (isFresh(current))
+         return current;
+      synchronized (this) {
+         current = this._snapshot.get();
+         if (isFresh(current))
+            return current;
+         // read the generation before the rows so a change racing with the
+         // load leaves the new snapshot stale instead of being lost
+         long generation = this._generation.get();
+         // from the primary: a replica may not have replayed the change yet
+         MenuSnapshot loaded = this._esql.getRouter().primaryOnly(() -> MenuSnapshot.load(this._esql, generation));
+         this._snapshot.set(loaded);
+         return loaded;
+      } // end synchronized
+   }// end get
+
+   /**
+    * Marks the current snapshot stale; the next get reloads the menu.
+    */
+   public void invalidate() {
+      this._generation.incrementAndGet();
+   }// end invalidate
+
+   /**
+    * Invalidates the cache on a menu_changed notification, or on a listener
+    * reconnect where notifications may have been missed.
+    */
+   public void onNotification(String channel, String payload) {
+      invalidate();
+   }// end onNotification
+
+   private boolean isFresh(MenuSnapshot snapshot) {
+      return snapshot != null
+            && snapshot.generation() == this._generation.get()
+            && System.currentTimeMillis() - snapshot.loadedAt() < this._ttlMillis;
+   }// end isFresh
+
+}// end MenuCache
@@ -0,0 +1,324 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class is a ranked search index over a MenuSnapshot, built once per
+ * snapshot. Matching ignores case and punctuation. An item is scored by its
+ * best match, from best to worst:
+ *
+ *   - the query is its name, or its type,
+ *   - its name, or a word of its name, starts with the query,
+ *   - its name, type or description contains the query,
+ *   - a word of its name, type or description is within a small edit
+ *     distance of the query, or shares enough trigrams with it.
+ *
+ * Prefixes are found by binary search in a sorted array of the indexed
+ * words, which answers the same lookups as a trie with flat arrays.
+ * Substrings and typos are narrowed down through a trigram index, so no query
+ * scans the whole menu text.
+ */
+public class MenuSearch {
+
+   // scores of the match kinds; fuzzy matches score below FUZZY
+   private static final int NAME = 1000;
+   private static final int TYPE = 900;
+   private static final int NAME_PREFIX = 800;
+   private static final int WORD_PREFIX = 700;
+   private static final int NAME_SUBSTRING = 600;
+   private static final int TEXT_SUBSTRING = 500;
+   private static final int FUZZY = 400;
+
+   // trigram similarity a fuzzy match needs at least
+   private static final double MIN_SIMILARITY = 0.3;
+
+   private final MenuSnapshot _menu;
+
+   // normalized name, type and name + type + description of each item
+   private final String[] _names;
+   private final String[] _types;
+   private final String[] _texts;
+
+   // every word of every item, sorted, with the item and whether it is from the name
+   private final String[] _words;
+   private final int[] _wordItems;
+   private final boolean[] _wordInName;
+   private final int[] _wordGrams;
+
+   // trigram -> positions in _words of the words containing it
+   private final Map<String, int[]> _trigrams;
+
+   /**
+    * Builds the index of a snapshot.
+    *
+    * @param menu the items to index
+    */
+   MenuSearch(MenuSnapshot menu) {
+      this._menu = menu;
+      int n = menu.size();
+      this._names = new String[n];
+      this._types = new String[n];
+      this._texts = new String[n];
+
+      List<String[]> words = new ArrayList<String[]>();
+      for (int i = 0; i < n; ++i) {
+         this._names[i] = normalize(menu.name(i));
+         this._types[i] = normalize(menu.type(i));
+         this._texts[i] = this._names[i] + " " + this._types[i] + " " + normalize(menu.description(i));
+         for (String word : this._names[i].split(" "))
+            words.add(new String[] { word, String.valueOf(i), "name" });
+         for (String word : (this._types[i] + " " + normalize(menu.description(i))).split(" "))
+            words.add(new String[] { word, String.valueOf(i), "" });
+      } // end for
+      Collections.sort(words, (a, b) -> a[0].compareTo(b[0]));
+
+      int count = 0;
+      for (String[] w : words)
+         if (!w[0].isEmpty())
+            ++count;
+      this._words = new String[count];
+      this._wordItems = new int[count];
+      this._wordInName = new boolean[count];
+      this._wordGrams = new int[count];
+      Map<String, List<Integer>> trigrams = new HashMap<String, List<Integer>>();
+      int j = 0;
+      for (String[] w : words) {
+         if (w[0].isEmpty())
+            continue;
+         this._words[j] = w[0];
+         this._wordItems[j] = Integer.parseInt(w[1]);
+         this._wordInName[j] = !w[2].isEmpty();
+         String[] grams = trigrams(w[0]);
+         this._wordGrams[j] = grams.length;
+         for (String gram : grams) {
+            List<Integer> postings = trigrams.get(gram);
+            if (postings == null) {
+               postings = new ArrayList<Integer>();
+               trigrams.put(gram, postings);
+            } // end if
+            if (postings.isEmpty() || postings.get(postings.size() - 1) != j)
+               postings.add(j);
+         } // end for
+         ++j;
+      } // end for
+
+      this._trigrams = new HashMap<String, int[]>(trigrams.size() * 2);
+      for (Map.Entry<String, List<Integer>> entry : trigrams.entrySet()) {
+         int[] postings = new int[entry.getValue().size()];
+         for (int i = 0; i < postings.length; ++i)
+            postings[i] = entry.getValue().get(i);
+         this._trigrams.put(entry.getKey(), postings);
+      } // end for
+   }// end MenuSearch
+
+   /**
+    * @param query what the user typed
+    * @param limit the most positions returned
+    * @return the positions of the matching items, best match first, ties in menu order
+    */
+   public int[] search(String query, int limit) {
+      String q = normalize(query);
+      int[] scores = new int[this._names.length];
+      if (!q.isEmpty()) {
+         for (int i = 0; i < scores.length; ++i) {
+            if (this._names[i].equals(q))
+               scores[i] = NAME;
+            else if (this._types[i].equals(q))
+               scores[i] = TYPE;
+            else if (this._names[i].startsWith(q))
+               scores[i] = NAME_PREFIX;
+         } // end for
+         prefixes(q, scores);
+         substrings(q, scores);
+         fuzzy(q, scores);
+      } // end if
+      return ranked(scores, limit);
+   }// end search
+
+   /**
+    * @param name an item name as typed by a user
+    * @return the position of the item of that name ignoring case and
+    *         punctuation, or -1 when there is none
+    */
+   public int find(String name) {
+      String q = normalize(name);
+      for (int i = 0; i < this._names.length; ++i)
+         if (this._names[i].equals(q))
+            return i;
+      return -1;
+   }// end find
+
+   /**
+    * @param name an item name that is not on the menu
+    * @return " Did you mean X, Y?" with the closest item names, or "" when none is close
+    */
+   public String didYouMean(String name) {
+      int[] best = search(name, 3);
+      if (best.length == 0)
+         return "";
+      StringBuilder sb = new StringBuilder(" Did you mean ");
+      for (int i = 0; i < best.length; ++i)
+         sb.append(i == 0 ? "" : i == best.length - 1 ? " or " : ", ").append(this._menu.name(best[i]));
+      return sb.append('?').toString();
+   }// end didYouMean
+
+   // words of names starting with q, through the sorted word array; other
+   // words starting with q are found by substrings
+   private void prefixes(String q, int[] scores) {
+      int from = lowerBound(q);
+      for (int j = from; j < this._words.length && this._words[j].startsWith(q); ++j)
+         if (this._wordInName[j])
+            raise(scores, this._wordItems[j], WORD_PREFIX);
+   }// end prefixes
+
+   // q inside a name, type or description; candidates must hold all of q's trigrams
+   private void substrings(String q, int[] scores) {
+      boolean[] candidates = null;
+      if (q.length() >= 3 && q.indexOf(' ') < 0) {
+         candidates = new boolean[scores.length];
+         int[] rarest = null;
+         for (String gram : inner(q)) {
+            int[] postings = this._trigrams.get(gram);
+            if (postings == null)
+               return;
+            if (rarest == null || postings.length < rarest.length)
+               rarest = postings;
+         } // end for
+         for (int j : rarest)
+            candidates[this._wordItems[j]] = true;
+      } // end if
+      for (int i = 0; i < scores.length; ++i) {
+         if (candidates != null && !candidates[i])
+            continue;
+         if (this._names[i].contains(q))
+            raise(scores, i, NAME_SUBSTRING);
+         else if (this._texts[i].contains(q))
+            raise(scores, i, TEXT_SUBSTRING);
+      } // end for
+   }// end substrings
+
+   // words sharing trigrams with each word of q, scored by similarity and edit distance
+   private void fuzzy(String q, int[] scores) {
+      for (String word : q.split(" ")) {
+         if (word.length() < 3)
+            continue;
+         String[] grams = trigrams(word);
+         Map<Integer, Integer> shared = new HashMap<Integer, Integer>();
+         for (String gram : grams) {
+            int[] postings = this._trigrams.get(gram);
+            if (postings == null)
+               continue;
+            for (int j : postings) {
+               Integer c = shared.get(j);
+               shared.put(j, c == null ? 1 : c + 1);
+            } // end for
+         } // end for
+         int maxEdits = word.length() <= 4 ? 1 : 2;
+         for (Map.Entry<Integer, Integer> entry : shared.entrySet()) {
+            int j = entry.getKey();
+            String candidate = this._words[j];
+            double similarity = entry.getValue() / (double) (grams.length + this._wordGrams[j] - entry.getValue());
+            int edits = editDistance(word, candidate, maxEdits);
+            if (edits > maxEdits && similarity < MIN_SIMILARITY)
+               continue;
+            double closeness = Math.max(similarity, edits <= maxEdits ? 1.0 - edits / (double) (maxEdits + 1) : 0);
+            raise(scores, this._wordItems[j], (int) (FUZZY * closeness) + (this._wordInName[j] ? 1 : 0));
+         } // end for
+      } // end for
+   }// end fuzzy
+
+   private int[] ranked(final int[] scores, int limit) {
+      List<Integer> hits = new ArrayList<Integer>();
+      for (int i = 0; i < scores.length; ++i)
+         if (scores[i] > 0)
+            hits.add(i);
+      Collections.sort(hits, (a, b) -> scores[b] != scores[a] ? scores[b] - scores[a] : a - b);
+      int[] ranked = new int[Math.min(limit, hits.size())];
+      for (int i = 0; i < ranked.length; ++i)
+         ranked[i] = hits.get(i);
+      return ranked;
+   }// end ranked
+
+   private int lowerBound(String q) {
+      int i = Arrays.binarySearch(this._words, q);
+      if (i < 0)
+         return -i - 1;
+      while (i > 0 && this._words[i - 1].equals(q))
+         --i;
+      return i;
+   }// end lowerBound
+
+   private static void raise(int[] scores, int i, int score) {
+      if (score > scores[i])
+         scores[i] = score;
+   }// end raise
+
+   /**
+    * Lower-cases the text and turns every run of other characters than
+    * letters and digits into one blank.
+    */
+   static String normalize(String text) {
+      if (text == null)
+         return "";
+      StringBuilder sb = new StringBuilder(text.length());
+      for (char c : text.toLowerCase(Locale.ROOT).toCharArray()) {
+         if (Character.isLetterOrDigit(c))
+            sb.append(c);
+         else if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+            sb.append(' ');
+      } // end for
+      int end = sb.length();
+      if (end > 0 && sb.charAt(end - 1) == ' ')
+         sb.setLength(end - 1);
+      return sb.toString();
+   }// end normalize
+
+   // the trigrams of a word padded the way pg_trgm does, "  w" ... "rd "
+   private static String[] trigrams(String word) {
+      return inner("  " + word + " ");
+   }// end trigrams
+
+   // the distinct trigrams of a string as is
+   private static String[] inner(String s) {
+      List<String> grams = new ArrayList<String>();
+      for (int i = 0; i + 3 <= s.length(); ++i) {
+         String gram = s.substring(i, i + 3);
+         if (!grams.contains(gram))
+            grams.add(gram);
+      } // end for
+      return grams.toArray(new String[grams.size()]);
+   }// end inner
+
+   /**
+    * The Levenshtein distance of two words, or max + 1 as soon as it is
+    * certain to exceed max.
+    */
+   static int editDistance(String a, String b, int max) {
+      if (Math.abs(a.length() - b.length()) > max)
+         return max + 1;
+      int[] prev = new int[b.length() + 1];
+      int[] curr = new int[b.length() + 1];
+      for (int j = 0; j <= b.length(); ++j)
+         prev[j] = j;
+      for (int i = 1; i <= a.length(); ++i) {
+         curr[0] = i;
+         int rowMin = i;
+         for (int j = 1; j <= b.length(); ++j) {
+            int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+            curr[j] = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+            rowMin = Math.min(rowMin, curr[j]);
+         } // end for
+         if (rowMin > max)
+            return max + 1;
+         int[] swap = prev;
+         prev = curr;
+         curr = swap;
+      } // end for
+      return prev[b.length()];
+   }// end editDistance
+
+}// end MenuSearch
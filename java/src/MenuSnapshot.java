@@ -0,0 +1,192 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is an immutable copy of the Menu table. Items are stored in
+ * parallel arrays, prices exactly as the numeric column holds them, and indexed by item name
+ * and by type. Names and types are compared the way the char(n) columns
+ * compare in Postgres, i.e. ignoring trailing blanks.
+ */
+public class MenuSnapshot {
+
+   private final String[] _names;
+   private final String[] _types;
+   private final BigDecimal[] _prices;
+   private final String[] _descriptions;
+   private final String[] _imageURLs;
+   private final Map<String, Integer> _byName;
+   private final Map<String, int[]> _byType;
+
+   // invalidation generation this snapshot was loaded under, see MenuCache
+   private final long _generation;
+   private final long _loadedAt;
+
+   // ranked search index, built on first use
+   private volatile MenuSearch _search = null;
+
+   /**
+    * Reads the Menu table into a new snapshot
+    *
+    * @param esql the database the menu is read from
+    * @param generation the MenuCache generation the rows are read under
+    * @return the new snapshot
+    * @throws java.sql.SQLException when the menu can not be read
+    */
+   public static MenuSnapshot load(Cafe esql, long generation) throws SQLException {
+      final List<String[]> rows = new ArrayList<String[]>();
+      final BigDecimal[][] prices = { new BigDecimal[16] };
+      esql.streamQuery("SELECT itemName, type, price, description, imageURL FROM MENU", 0, row -> {
+         int n = rows.size();
+         if (n == prices[0].length)
+            prices[0] = Arrays.copyOf(prices[0], n * 2);
+         prices[0][n] = row.getBigDecimal(3);
+         rows.add(new String[] { row.getString(1), row.getString(2), row.getString(4), row.getString(5) });
+      });
+      return new MenuSnapshot(rows, prices[0], generation);
+   }// end load
+
+   /**
+    * Creates a snapshot from menu rows
+    *
+    * @param rows itemName, type, description and imageURL of each item, in display order
+    * @param prices the price of each item, indexed like rows
+    * @param generation the MenuCache generation the rows were read under
+    */
+   MenuSnapshot(List<String[]> rows, BigDecimal[] prices, long generation) {
+      int n = rows.size();
+      this._names = new String[n];
+      this._types = new String[n];
+      this._prices = new BigDecimal[n];
+      this._descriptions = new String[n];
+      this._imageURLs = new String[n];
+      this._byName = new HashMap<String, Integer>(n * 2);
+
+      Map<String, List<Integer>> byType = new HashMap<String, List<Integer>>();
+      for (int i = 0; i < n; ++i) {
+         String[] row = rows.get(i);
+         this._names[i] = key(row[0]);
+         this._types[i] = key(row[1]);
+         this._prices[i] = prices[i];
+         this._descriptions[i] = key(row[2]);
+         this._imageURLs[i] = key(row[3]);
+         this._byName.put(this._names[i], i);
+
+         List<Integer> ofType = byType.get(this._types[i]);
+         if (ofType == null) {
+            ofType = new ArrayList<Integer>();
+            byType.put(this._types[i], ofType);
+         } // end if
+         ofType.add(i);
+      } // end for
+
+      this._byType = new HashMap<String, int[]>(byType.size() * 2);
+      for (Map.Entry<String, List<Integer>> entry : byType.entrySet()) {
+         int[] positions = new int[entry.getValue().size()];
+         for (int i = 0; i < positions.length; ++i)
+            positions[i] = entry.getValue().get(i);
+         this._byType.put(entry.getKey(), positions);
+      } // end for
+
+      this._generation = generation;
+      this._loadedAt = System.currentTimeMillis();
+   }// end MenuSnapshot
+
+   /**
+    * The key a menu value is stored and looked up by: the value without the
+    * padding of its char(n) column, see Cafe.rtrim.
+    */
+   static String key(String value) {
+      return Cafe.rtrim(value);
+   }// end key
+
+   /**
+    * @return the number of items on the menu
+    */
+   public int size() {
+      return this._names.length;
+   }// end size
+
+   /**
+    * @param itemName the item name as typed by a user
+    * @return the position of the item, or -1 when it is not on the menu
+    */
+   public int indexOf(String itemName) {
+      Integer i = this._byName.get(key(itemName));
+      return i == null ? -1 : i;
+   }// end indexOf
+
+   /**
+    * @param itemName the item name as typed by a user
+    * @return true when the item is on the menu
+    */
+   public boolean contains(String itemName) {
+      return indexOf(itemName) >= 0;
+   }// end contains
+
+   /**
+    * @param type the item type, e.g. Drinks
+    * @return the positions of all items of that type, in menu order
+    */
+   public int[] indexesOfType(String type) {
+      int[] positions = this._byType.get(key(type));
+      return positions == null ? new int[0] : positions.clone();
+   }// end indexesOfType
+
+   public String name(int i) {
+      return this._names[i];
+   }
+
+   public String type(int i) {
+      return this._types[i];
+   }
+
+   public BigDecimal price(int i) {
+      return this._prices[i];
+   }
+
+   public String description(int i) {
+      return this._descriptions[i];
+   }
+
+   public String imageURL(int i) {
+      return this._imageURLs[i];
+   }
+
+   /**
+    * @return the ranked search index over this snapshot's names, types and
+    *         descriptions
+    */
+   public MenuSearch search() {
+      MenuSearch search = this._search;
+      if (search == null) {
+         // built at most a few times when threads race; any copy will do
+         search = new MenuSearch(this);
+         this._search = search;
+      } // end if
+      return search;
+   }// end search
+
+   /**
+    * @return the distinct item types on the menu
+    */
+   public List<String> types() {
+      List<String> types = new ArrayList<String>(this._byType.keySet());
+      Collections.sort(types);
+      return types;
+   }// end types
+
+   long generation() {
+      return this._generation;
+   }
+
+   long loadedAt() {
+      return this._loadedAt;
+   }
+
+}// end MenuSnapshot
@@ -0,0 +1,235 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class maintains the monthly Orders and ItemStatus partitions created
+ * by migration 003. Run it regularly, e.g. daily from cron. Each run
+ *
+ *   - creates the partitions of the coming months (-Dpartition.aheadMonths, 3
+ *     by default) so inserts never run out of partitions,
+ *   - moves items written without orderTime out of itemstatus_default into
+ *     their order's partition, and
+ *   - archives the months that ended more than -Dpartition.retainDays ago (90
+ *     by default) and hold no unpaid order: their partitions are detached and
+ *     attached to orders_archive and itemstatus_archive. Archived orders no
+ *     longer show up in Cafe, but stay queryable through those tables.
+ *
+ * Every step is its own transaction; detaching takes a short exclusive lock
+ * on Orders and ItemStatus.
+ */
+public class PartitionManager {
+
+   private static final Pattern ORDERS_PARTITION = Pattern.compile("orders_p(\\d{4})_(\\d{2})");
+
+   private final Connection _conn;
+
+   /**
+    * @param conn the connection the partitions are changed on
+    */
+   public PartitionManager(Connection conn) throws SQLException {
+      this._conn = conn;
+      this._conn.setAutoCommit(false);
+   }// end PartitionManager
+
+   /**
+    * Creates the missing partitions from this month on.
+    *
+    * @param aheadMonths how many months past this one get partitions
+    * @return the number of months whose partitions were created
+    */
+   public int createAhead(int aheadMonths) throws SQLException {
+      PreparedStatement stmt = this._conn.prepareStatement(
+            "SELECT cafe_add_partitions(now()::timestamp, now()::timestamp + ? * '1 month'::INTERVAL)");
+      try {
+         stmt.setInt(1, aheadMonths);
+         ResultSet rs = stmt.executeQuery();
+         rs.next();
+         int created = rs.getInt(1);
+         rs.close();
+         this._conn.commit();
+         return created;
+      } catch (SQLException e) {
+         this._conn.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+      } // end try
+   }// end createAhead
+
+   /**
+    * Gives the items written without orderTime their order's received time,
+    * which moves them into that month's partition.
+    *
+    * @return the number of items moved
+    */
+   public int moveStrays() throws SQLException {
+      return update("UPDATE ItemStatus i SET orderTime = o.timeStampRecieved FROM Orders o "
+            + "WHERE i.orderTime IS NULL AND o.orderid = i.orderid");
+   }// end moveStrays
+
+   /**
+    * Archives every month that ended before the cutoff and has no unpaid orders.
+    *
+    * @param cutoff months ending on or before this day are archived
+    * @return the names of the archived Orders partitions
+    */
+   public List<String> archive(LocalDate cutoff) throws SQLException {
+      List<String> archived = new ArrayList<String>();
+      for (String partition : ordersPartitions()) {
+         Matcher m = ORDERS_PARTITION.matcher(partition);
+         if (!m.matches())
+            continue;
+         YearMonth month = YearMonth.of(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+         if (month.plusMonths(1).atDay(1).isAfter(cutoff))
+            continue;
+         long unpaid = count("SELECT count(*) FROM " + partition + " WHERE paid IS NOT TRUE");
+         if (unpaid > 0) {
+            System.out.println("Keeping " + partition + ", " + unpaid + " orders are unpaid");
+            continue;
+         } // end if
+         archive(partition, "itemstatus_p" + partition.substring("orders_p".length()), month);
+         archived.add(partition);
+      } // end for
+      return archived;
+   }// end archive
+
+   /*
+    * Moves one month from Orders and ItemStatus to the archive tables in one
+    * transaction. The items go first: the Orders partition can only leave
+    * once nothing in ItemStatus references it.
+    **/
+   private void archive(String orders, String items, YearMonth month) throws SQLException {
+      String bounds = " FOR VALUES FROM ('" + month.atDay(1) + "') TO ('" + month.plusMonths(1).atDay(1) + "')";
+      Statement stmt = this._conn.createStatement();
+      try {
+         stmt.execute("CREATE TABLE IF NOT EXISTS orders_archive (LIKE Orders) PARTITION BY RANGE (timeStampRecieved)");
+         stmt.execute("CREATE TABLE IF NOT EXISTS itemstatus_archive (LIKE ItemStatus) PARTITION BY RANGE (orderTime)");
+         boolean hasItems = count("SELECT count(*) FROM pg_inherits WHERE inhparent = 'itemstatus'::regclass "
+               + "AND inhrelid = to_regclass('" + items + "')") > 0;
+         if (hasItems) {
+            stmt.execute("ALTER TABLE ItemStatus DETACH PARTITION " + items);
+            // the detached copy of the foreign key would still point into Orders
+            for (String fkey : strings("SELECT conname FROM pg_constraint WHERE contype = 'f' "
+                  + "AND conrelid = '" + items + "'::regclass AND confrelid = 'orders'::regclass"))
+               stmt.execute("ALTER TABLE " + items + " DROP CONSTRAINT " + fkey);
+         } // end if
+         stmt.execute("ALTER TABLE Orders DETACH PARTITION " + orders);
+         stmt.execute("ALTER TABLE orders_archive ATTACH PARTITION " + orders + bounds);
+         if (hasItems)
+            stmt.execute("ALTER TABLE itemstatus_archive ATTACH PARTITION " + items + bounds);
+         this._conn.commit();
+      } catch (SQLException e) {
+         this._conn.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+      } // end try
+   }// end archive
+
+   // the partitions of Orders, oldest first
+   private List<String> ordersPartitions() throws SQLException {
+      List<String> partitions = strings("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid "
+            + "WHERE i.inhparent = 'orders'::regclass ORDER BY c.relname");
+      this._conn.commit();
+      return partitions;
+   }// end ordersPartitions
+
+   private List<String> strings(String sql) throws SQLException {
+      List<String> values = new ArrayList<String>();
+      Statement stmt = this._conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(sql);
+         while (rs.next())
+            values.add(rs.getString(1));
+         rs.close();
+      } finally {
+         stmt.close();
+      } // end try
+      return values;
+   }// end strings
+
+   private long count(String sql) throws SQLException {
+      Statement stmt = this._conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(sql);
+         rs.next();
+         long count = rs.getLong(1);
+         rs.close();
+         return count;
+      } finally {
+         stmt.close();
+      } // end try
+   }// end count
+
+   private int update(String sql) throws SQLException {
+      Statement stmt = this._conn.createStatement();
+      try {
+         int rows = stmt.executeUpdate(sql);
+         this._conn.commit();
+         return rows;
+      } catch (SQLException e) {
+         this._conn.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+      } // end try
+   }// end update
+
+   /**
+    * The partition manager entry point
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main(String[] args) {
+      if (args.length != 3) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     PartitionManager.class.getName() +
+                     " <dbname> <port> <user>");
+         return;
+      } // end if
+
+      int status = 0;
+      Connection conn = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         Properties props = new Properties();
+         props.setProperty("user", args[2]);
+         props.setProperty("password", "");
+         conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], props);
+         PartitionManager manager = new PartitionManager(conn);
+         int created = manager.createAhead(Integer.getInteger("partition.aheadMonths", 3));
+         System.out.println("Created the partitions of " + created + " months");
+         int moved = manager.moveStrays();
+         System.out.println("Moved " + moved + " items out of itemstatus_default");
+         LocalDate cutoff = LocalDate.now().minusDays(Integer.getInteger("partition.retainDays", 90));
+         for (String partition : manager.archive(cutoff))
+            System.out.println("Archived " + partition);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = 1;
+      } finally {
+         try {
+            if (conn != null)
+               conn.close();
+         } catch (SQLException ignored) {
+            // exiting anyway.
+         } // end try
+      } // end try
+      System.exit(status);
+   }// end main
+
+}// end PartitionManager
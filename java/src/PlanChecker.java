@@ -0,0 +1,245 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs EXPLAIN (ANALYZE, BUFFERS) for each query template Cafe
+ * sends to Orders and ItemStatus, with parameters sampled from the database,
+ * and fails when any plan reads one of those tables with a sequential scan.
+ * Run it against a dataset of realistic size: on small tables a sequential
+ * scan is the right plan. Statements that change data are rolled back.
+ *
+ * Prints one line per template and the full plan of each failure; the exit
+ * status is 1 when a plan failed and 2 when the dataset is too small
+ * (-Dplan.minOrders, 100000 by default).
+ */
+public class PlanChecker {
+
+   private static final Pattern SEQ_SCAN = Pattern.compile("(?i)Seq Scan on (orders|itemstatus)\\w*");
+   private static final Pattern EXECUTION_TIME = Pattern.compile("Execution Time: ([0-9.]+) ms");
+   private static final Pattern BUFFERS = Pattern.compile("Buffers: (.*)");
+
+   // stands for an order placed in the explaining transaction, see explain
+   private static final Object NEW_ORDER = new Object();
+
+   /*
+    * A query template with the parameters it is explained with.
+    **/
+   private static class Template {
+      final String name;
+      final String sql;
+      final Object[] params;
+
+      Template(String name, String sql, Object... params) {
+         this.name = name;
+         this.sql = sql;
+         this.params = params;
+      }
+   }// end Template
+
+   private final Connection _conn;
+
+   /**
+    * @param conn the connection the plans are explained on; its
+    *             transactions are rolled back
+    */
+   public PlanChecker(Connection conn) throws SQLException {
+      this._conn = conn;
+      this._conn.setAutoCommit(false);
+   }// end PlanChecker
+
+   /**
+    * @return the number of orders in the database
+    */
+   public long orders() throws SQLException {
+      PreparedStatement stmt = this._conn.prepareStatement("SELECT count(*) FROM ORDERS");
+      ResultSet rs = stmt.executeQuery();
+      rs.next();
+      long count = rs.getLong(1);
+      rs.close();
+      stmt.close();
+      this._conn.rollback();
+      return count;
+   }// end orders
+
+   /*
+    * The templates Cafe issues, with parameters taken from the newest order,
+    * the newest unpaid order and the first menu item.
+    **/
+   private List<Template> templates() throws SQLException {
+      Object[] newest = row("SELECT orderid, login, timeStampRecieved FROM ORDERS ORDER BY orderid DESC LIMIT 1");
+      Object[] unpaid = row("SELECT orderid, timeStampRecieved FROM ORDERS WHERE " + Cafe.RECENT_UNPAID
+            + " ORDER BY timeStampRecieved DESC, orderid DESC LIMIT 1");
+      Object[] item = row("SELECT itemName FROM MENU ORDER BY itemName LIMIT 1");
+      if (newest == null || item == null)
+         throw new IllegalStateException("Orders and Menu must not be empty");
+      int orderID = ((Number) newest[0]).intValue();
+      String login = Cafe.rtrim((String) newest[1]);
+      Timestamp time = (Timestamp) newest[2];
+      String itemName = MenuSnapshot.key((String) item[0]);
+      if (unpaid == null)
+         unpaid = new Object[] { orderID, time };
+      int page = KeysetPager.DEFAULT_PAGE_SIZE;
+
+      List<Template> list = new ArrayList<Template>();
+      list.add(new Template("customer history", Cafe.CUSTOMER_HISTORY_SQL, login));
+      list.add(new Template("staff history", Cafe.STAFF_HISTORY_SQL));
+      String[] pager = Cafe.orderPager(null, "login = ?", login).queries();
+      list.add(new Template("customer pager first", pager[0], login, page));
+      list.add(new Template("customer pager next", pager[1], login, time, orderID, page));
+      list.add(new Template("customer pager prev", pager[2], login, time, orderID, page));
+      pager = Cafe.orderPager(null, Cafe.RECENT_UNPAID).queries();
+      list.add(new Template("staff pager first", pager[0], page));
+      list.add(new Template("staff pager next", pager[1], unpaid[1], unpaid[0], page));
+      list.add(new Template("staff pager prev", pager[2], unpaid[1], unpaid[0], page));
+      list.add(new Template("open order check", Cafe.OPEN_ORDER_SQL, orderID, login));
+      list.add(new Template("order items", Cafe.ORDER_ITEMS_SQL, orderID));
+      list.add(new Template("place order", Cafe.PLACE_ORDER_SQL, login, new String[] { itemName }));
+      // items are written in the transaction that placed their order
+      list.add(new Template("order item", Cafe.ORDER_ITEM_SQL, NEW_ORDER, itemName, Cafe.STATUS_STARTED));
+      list.add(new Template("add item", Cafe.ADD_ITEM_SQL, Cafe.STATUS_STARTED, unpaid[0], itemName, unpaid[0],
+            unpaid[0]));
+      list.add(new Template("remove item", Cafe.REMOVE_ITEM_SQL, unpaid[0], itemName, unpaid[0], unpaid[0]));
+      list.add(new Template("reorder favorites", Cafe.REORDER_FAVORITES_SQL, login, login, Cafe.STATUS_STARTED, login));
+      list.add(new Template("mark paid", Cafe.MARK_PAID_SQL, (Object) new Integer[] { orderID, (Integer) unpaid[0] }));
+      list.add(new Template("mark user paid", Cafe.MARK_USER_PAID_SQL, login));
+      list.add(new Template("advance items", Cafe.ADVANCE_ITEMS_SQL, Cafe.STATUS_READY,
+            new Integer[] { orderID, (Integer) unpaid[0] }, Cafe.STATUS_STARTED));
+      return list;
+   }// end templates
+
+   /**
+    * Explains every template and prints the results.
+    *
+    * @return the number of templates whose plan seq-scans Orders or ItemStatus
+    */
+   public int check() throws SQLException {
+      List<Template> templates = templates();
+      List<String> failedPlans = new ArrayList<String>();
+      ResultPrinter printer = new ResultPrinter();
+      printer.header(new String[] { "template", "plan", "ms", "buffers" });
+      for (Template t : templates) {
+         String plan = explain(t);
+         Matcher scan = SEQ_SCAN.matcher(plan);
+         boolean failed = scan.find();
+         Matcher time = EXECUTION_TIME.matcher(plan);
+         Matcher buffers = BUFFERS.matcher(plan);
+         printer.add(new String[] { t.name, failed ? "SEQ SCAN on " + scan.group(1) : "ok",
+               time.find() ? time.group(1) : "?", buffers.find() ? buffers.group(1) : "" });
+         if (failed)
+            failedPlans.add(t.name + ":\n" + t.sql + "\n" + plan);
+      } // end for
+      printer.finish();
+      for (String plan : failedPlans)
+         System.out.println("\n" + plan);
+      return failedPlans.size();
+   }// end check
+
+   private String explain(Template t) throws SQLException {
+      PreparedStatement stmt = this._conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + t.sql);
+      try {
+         for (int i = 0; i < t.params.length; ++i) {
+            Object param = t.params[i];
+            if (param == NEW_ORDER) {
+               Object[] placed = row("INSERT INTO ORDERS (login, paid, timeStampRecieved, total) "
+                     + "VALUES (NULL, false, CURRENT_TIMESTAMP, 0) RETURNING orderid");
+               stmt.setObject(i + 1, placed[0]);
+            } else if (param instanceof String[]) {
+               Array array = this._conn.createArrayOf("varchar", (String[]) param);
+               stmt.setArray(i + 1, array);
+            } else if (param instanceof Integer[]) {
+               stmt.setArray(i + 1, this._conn.createArrayOf("integer", (Integer[]) param));
+            } else {
+               stmt.setObject(i + 1, param);
+            } // end if
+         } // end for
+         StringBuilder plan = new StringBuilder();
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            plan.append(rs.getString(1)).append('\n');
+         rs.close();
+         return plan.toString();
+      } finally {
+         stmt.close();
+         // ANALYZE really ran the statement
+         this._conn.rollback();
+      } // end try
+   }// end explain
+
+   private Object[] row(String sql) throws SQLException {
+      PreparedStatement stmt = this._conn.prepareStatement(sql);
+      try {
+         ResultSet rs = stmt.executeQuery();
+         Object[] row = null;
+         if (rs.next()) {
+            row = new Object[rs.getMetaData().getColumnCount()];
+            for (int i = 0; i < row.length; ++i)
+               row[i] = rs.getObject(i + 1);
+         } // end if
+         rs.close();
+         return row;
+      } finally {
+         stmt.close();
+      } // end try
+   }// end row
+
+   /**
+    * The plan checker entry point
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main(String[] args) {
+      if (args.length != 3) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     PlanChecker.class.getName() +
+                     " <dbname> <port> <user>");
+         return;
+      } // end if
+
+      int status;
+      Connection conn = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         Properties props = new Properties();
+         props.setProperty("user", args[2]);
+         props.setProperty("password", "");
+         conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], props);
+         PlanChecker checker = new PlanChecker(conn);
+         long orders = checker.orders();
+         long minOrders = Long.getLong("plan.minOrders", 100000L);
+         if (orders < minOrders) {
+            System.err.println("Only " + orders + " orders, load at least " + minOrders
+                  + " so the plans match production");
+            status = 2;
+         } else {
+            int failed = checker.check();
+            System.out.println(failed == 0 ? "All plans use indexes." : failed + " plans scan Orders or ItemStatus.");
+            status = failed == 0 ? 0 : 1;
+         } // end if
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = 1;
+      } finally {
+         try {
+            if (conn != null)
+               conn.close();
+         } catch (SQLException ignored) {
+            // exiting anyway.
+         } // end try
+      } // end try
+      System.exit(status);
+   }// end main
+
+}// end PlanChecker
@@ -0,0 +1,311 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class records what every SQL template executed through Cafe costs: a
+ * latency histogram, rows and round trips per template, and a log of the
+ * executions slower than a threshold. Parameters are never recorded, so
+ * passwords and other user input do not end up in the log. Statements that
+ * ran out of time, and the retries of operations, are counted across all
+ * templates.
+ *
+ * The numbers can be read over JMX (see QueryMetricsMBean), dumped
+ * periodically, or printed with report.
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+   // templates tracked separately; later ones are pooled under OTHER
+   private static final int MAX_TEMPLATES = 1000;
+   private static final String OTHER = "(other)";
+
+   /*
+    * The counters of one SQL template.
+    **/
+   static class Template {
+      final String sql;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong roundTrips = new AtomicLong();
+
+      Template(String sql) {
+         this.sql = sql;
+      }
+
+      double totalMillis() {
+         return this.latency.mean() * this.latency.count() / 1e6;
+      }
+   }// end Template
+
+   private volatile ConcurrentMap<String, Template> _templates = new ConcurrentHashMap<String, Template>();
+   private final AtomicLong _slowQueries = new AtomicLong();
+   private final AtomicLong _timeouts = new AtomicLong();
+   private final AtomicLong _lockTimeouts = new AtomicLong();
+   private final AtomicLong _cancels = new AtomicLong();
+   private final AtomicLong _retries = new AtomicLong();
+   private final AtomicLong _gaveUp = new AtomicLong();
+   private volatile long _slowNanos;
+   private final PrintStream _slowLog;
+   private ScheduledExecutorService _dumper = null;
+   private ObjectName _name = null;
+
+   /**
+    * Creates an empty set of metrics
+    *
+    * @param slowQueryMillis executions taking longer are logged; negative turns the log off
+    * @param slowLog where slow executions are logged
+    */
+   public QueryMetrics(long slowQueryMillis, PrintStream slowLog) {
+      setSlowQueryMillis(slowQueryMillis);
+      this._slowLog = slowLog;
+   }// end QueryMetrics
+
+   /**
+    * Records one execution of a template.
+    *
+    * @param sql the SQL template
+    * @param startNanos System.nanoTime() when the execution started
+    * @param rows rows returned or affected
+    * @param roundTrips messages exchanged with the server
+    * @param failed true when the execution threw
+    */
+   public void record(String sql, long startNanos, long rows, long roundTrips, boolean failed) {
+      long nanos = System.nanoTime() - startNanos;
+      Template t = template(sql);
+      t.latency.record(nanos);
+      t.rows.addAndGet(rows);
+      t.roundTrips.addAndGet(roundTrips);
+      if (failed)
+         t.errors.incrementAndGet();
+      long slow = this._slowNanos;
+      if (slow >= 0 && nanos > slow) {
+         this._slowQueries.incrementAndGet();
+         this._slowLog.println(String.format("slow query: %.1f ms, %d rows%s: %s", nanos / 1e6, rows,
+               failed ? ", failed" : "", oneLine(sql)));
+      } // end if
+   }// end record
+
+   /**
+    * Counts a failed statement that timed out or was cancelled.
+    *
+    * @param e why the statement failed
+    * @return e, so callers can write "throw metrics.failed(e)"
+    */
+   public SQLException failed(SQLException e) {
+      String state = e.getSQLState();
+      if ("55P03".equals(state))
+         this._lockTimeouts.incrementAndGet();
+      else if (e instanceof SQLTimeoutException
+            || ("57014".equals(state) && String.valueOf(e.getMessage()).contains("statement timeout")))
+         this._timeouts.incrementAndGet();
+      else if ("57014".equals(state))
+         // the driver cancels a statement when its query timeout is up
+         this._cancels.incrementAndGet();
+      return e;
+   }// end failed
+
+   /**
+    * Counts an operation run again after a serialization failure or deadlock.
+    */
+   public void retried() {
+      this._retries.incrementAndGet();
+   }// end retried
+
+   /**
+    * Counts an operation that failed for good after running out of
+    * retries or of time to retry in.
+    */
+   public void gaveUp() {
+      this._gaveUp.incrementAndGet();
+   }// end gaveUp
+
+   private Template template(String sql) {
+      ConcurrentMap<String, Template> templates = this._templates;
+      Template t = templates.get(sql);
+      if (t != null)
+         return t;
+      if (templates.size() >= MAX_TEMPLATES)
+         sql = OTHER;
+      t = new Template(sql);
+      Template raced = templates.putIfAbsent(sql, t);
+      return raced != null ? raced : t;
+   }// end template
+
+   public int getTemplateCount() {
+      return this._templates.size();
+   }
+
+   public long getExecutions() {
+      long n = 0;
+      for (Template t : this._templates.values())
+         n += t.latency.count();
+      return n;
+   }
+
+   public long getErrors() {
+      long n = 0;
+      for (Template t : this._templates.values())
+         n += t.errors.get();
+      return n;
+   }
+
+   public long getRows() {
+      long n = 0;
+      for (Template t : this._templates.values())
+         n += t.rows.get();
+      return n;
+   }
+
+   public long getRoundTrips() {
+      long n = 0;
+      for (Template t : this._templates.values())
+         n += t.roundTrips.get();
+      return n;
+   }
+
+   public long getSlowQueries() {
+      return this._slowQueries.get();
+   }
+
+   public long getTimeouts() {
+      return this._timeouts.get();
+   }
+
+   public long getLockTimeouts() {
+      return this._lockTimeouts.get();
+   }
+
+   public long getCancels() {
+      return this._cancels.get();
+   }
+
+   public long getRetries() {
+      return this._retries.get();
+   }
+
+   public long getGaveUp() {
+      return this._gaveUp.get();
+   }
+
+   public long getSlowQueryMillis() {
+      return this._slowNanos < 0 ? -1 : this._slowNanos / 1000000;
+   }
+
+   public void setSlowQueryMillis(long millis) {
+      this._slowNanos = millis < 0 ? -1 : millis * 1000000;
+   }
+
+   public String[] getTemplates() {
+      List<Template> sorted = sorted();
+      String[] lines = new String[sorted.size()];
+      for (int i = 0; i < lines.length; ++i)
+         lines[i] = line(sorted.get(i));
+      return lines;
+   }// end getTemplates
+
+   /**
+    * @return a table of every template, most total time first
+    */
+   public String report() {
+      StringBuilder sb = new StringBuilder(String.format("%8s %6s %9s %9s %10s %8s %8s %8s %8s  %s%n", "calls",
+            "errors", "rows", "trips", "total ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "sql"));
+      for (Template t : sorted())
+         sb.append(line(t)).append(String.format("%n"));
+      sb.append(String.format("timeouts: %d, lock timeouts: %d, cancelled: %d, retries: %d, gave up: %d%n",
+            this._timeouts.get(), this._lockTimeouts.get(), this._cancels.get(), this._retries.get(),
+            this._gaveUp.get()));
+      return sb.toString();
+   }// end report
+
+   /**
+    * Forgets everything recorded so far.
+    */
+   public void reset() {
+      this._templates = new ConcurrentHashMap<String, Template>();
+      this._slowQueries.set(0);
+      this._timeouts.set(0);
+      this._lockTimeouts.set(0);
+      this._cancels.set(0);
+      this._retries.set(0);
+      this._gaveUp.set(0);
+   }// end reset
+
+   /**
+    * Registers these metrics with the platform MBean server as
+    * Cafe:type=QueryMetrics, or Cafe:type=QueryMetrics,id=n when that name is taken.
+    */
+   public synchronized void register() {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         ObjectName name = new ObjectName("Cafe:type=QueryMetrics");
+         for (int id = 2; server.isRegistered(name); ++id)
+            name = new ObjectName("Cafe:type=QueryMetrics,id=" + id);
+         server.registerMBean(this, name);
+         this._name = name;
+      } catch (JMException e) {
+         this._slowLog.println("Query metrics not registered with JMX: " + e.getMessage());
+      } // end try
+   }// end register
+
+   /**
+    * Prints the report every periodMillis on a background thread.
+    */
+   public synchronized void dumpEvery(long periodMillis, final PrintStream out) {
+      this._dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "cafe-metrics");
+         t.setDaemon(true);
+         return t;
+      });
+      this._dumper.scheduleAtFixedRate(() -> out.print(report()), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+   }// end dumpEvery
+
+   /**
+    * Stops the periodic dump and unregisters the MBean.
+    */
+   public synchronized void close() {
+      if (this._dumper != null)
+         this._dumper.shutdownNow();
+      this._dumper = null;
+      if (this._name != null) {
+         try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this._name);
+         } catch (JMException ignored) {
+            // already gone.
+         } // end try
+         this._name = null;
+      } // end if
+   }// end close
+
+   private List<Template> sorted() {
+      List<Template> sorted = new ArrayList<Template>(this._templates.values());
+      Collections.sort(sorted, (a, b) -> Double.compare(b.totalMillis(), a.totalMillis()));
+      return sorted;
+   }// end sorted
+
+   private static String line(Template t) {
+      LatencyHistogram h = t.latency;
+      return String.format("%8d %6d %9d %9d %10.1f %8.2f %8.2f %8.2f %8.2f  %s", h.count(), t.errors.get(),
+            t.rows.get(), t.roundTrips.get(), t.totalMillis(), h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6,
+            h.percentile(0.999) / 1e6, h.max() / 1e6, oneLine(t.sql));
+   }// end line
+
+   private static String oneLine(String sql) {
+      return sql.replaceAll("\\s+", " ").trim();
+   }// end oneLine
+
+}// end QueryMetrics
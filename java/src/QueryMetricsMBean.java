@@ -0,0 +1,44 @@
+/**
+ * The JMX view of QueryMetrics, registered as Cafe:type=QueryMetrics.
+ */
+public interface QueryMetricsMBean {
+
+   int getTemplateCount();
+
+   long getExecutions();
+
+   long getErrors();
+
+   long getRows();
+
+   long getRoundTrips();
+
+   long getSlowQueries();
+
+   // statements stopped by statement_timeout or an exhausted budget
+   long getTimeouts();
+
+   // statements stopped by lock_timeout
+   long getLockTimeouts();
+
+   // statements cancelled by the driver's query timeout
+   long getCancels();
+
+   // operations run again after a serialization failure or deadlock
+   long getRetries();
+
+   // operations that failed after their last retry
+   long getGaveUp();
+
+   long getSlowQueryMillis();
+
+   void setSlowQueryMillis(long millis);
+
+   // one summary line per template, most total time first
+   String[] getTemplates();
+
+   String report();
+
+   void reset();
+
+}// end QueryMetricsMBean
@@ -0,0 +1,241 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class decides which database a statement runs on. Writes, and every
+ * statement inside a transaction, go to the primary. Plain SELECTs go round
+ * robin to the read replicas, unless
+ *
+ *   - the caller wrote within the last stickyMillis (read-your-writes; callers
+ *     are told apart by the key set with setKey, e.g. the logged-in user),
+ *   - the caller asked for the primary with primaryOnly, or
+ *   - no replica is up. A replica whose connection fails is left alone for
+ *     retryMillis, and its reads go to the primary meanwhile.
+ *
+ * With no replicas configured everything goes to the primary.
+ */
+public class ReplicaRouter {
+
+   // stickiness entries kept before old ones are pruned
+   private static final int MAX_KEYS = 10000;
+
+   // statements that must see or change the primary's state
+   private static final Pattern WRITES = Pattern.compile(
+         "(?is).*\\b(insert|update|delete|merge|nextval|setval|currval|lastval|pg_notify|for\\s+(no\\s+key\\s+)?(update|share))\\b.*");
+
+   /*
+    * A replica and when it may be tried again.
+    **/
+   private static class Replica {
+      final ConnectionPool pool;
+      volatile long downUntil = 0;
+
+      Replica(ConnectionPool pool) {
+         this.pool = pool;
+      }
+   }// end Replica
+
+   private final ConnectionPool _primary;
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private final long _stickyMillis;
+   private final long _retryMillis;
+   private final AtomicInteger _next = new AtomicInteger();
+
+   // key -> time of its last write
+   private final Map<String, Long> _lastWrite = new ConcurrentHashMap<String, Long>();
+   private final ThreadLocal<String> _key = new ThreadLocal<String>();
+   private final ThreadLocal<Boolean> _primaryOnly = new ThreadLocal<Boolean>();
+
+   // SQL template -> true when it only reads
+   private final Map<String, Boolean> _readOnly = new ConcurrentHashMap<String, Boolean>();
+
+   private final AtomicLong _replicaReads = new AtomicLong();
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private final AtomicLong _writes = new AtomicLong();
+   private final AtomicLong _fallbacks = new AtomicLong();
+
+   /**
+    * @param primary the pool of the primary
+    * @param replicas the pools of the replicas, possibly none
+    * @param stickyMillis how long after a write the writer's reads stay on the primary
+    * @param retryMillis how long a failed replica is skipped
+    */
+   public ReplicaRouter(ConnectionPool primary, List<ConnectionPool> replicas, long stickyMillis, long retryMillis) {
+      this._primary = primary;
+      for (ConnectionPool pool : replicas)
+         this._replicas.add(new Replica(pool));
+      this._stickyMillis = stickyMillis;
+      this._retryMillis = retryMillis;
+   }// end ReplicaRouter
+
+   /**
+    * Names who the statements of this thread run for, for read-your-writes.
+    *
+    * @param key e.g. the login of the current user, or null for the process
+    */
+   public void setKey(String key) {
+      if (key == null)
+         this._key.remove();
+      else
+         this._key.set(key);
+   }// end setKey
+
+   /**
+    * Runs work with all of its reads on the primary, e.g. reloads triggered
+    * by a notification the replicas may not have replayed yet.
+    */
+   public <T> T primaryOnly(Cafe.Work<T> work) throws SQLException {
+      Boolean outer = this._primaryOnly.get();
+      this._primaryOnly.set(Boolean.TRUE);
+      try {
+         return work.run();
+      } finally {
+         if (outer == null)
+            this._primaryOnly.remove();
+      } // end try
+   }// end primaryOnly
+
+   /**
+    * Borrows a connection for one statement.
+    *
+    * @param sql the statement's template
+    * @return a connection of the primary or of a replica
+    */
+   public ConnectionPool.Entry borrow(String sql) throws SQLException {
+      if (!readOnly(sql)) {
+         wrote();
+         return this._primary.borrow();
+      } // end if
+      if (this._replicas.isEmpty() || this._primaryOnly.get() != null || sticky()) {
+         this._primaryReads.incrementAndGet();
+         return this._primary.borrow();
+      } // end if
+      long now = System.currentTimeMillis();
+      int start = this._next.getAndIncrement();
+      for (int i = 0; i < this._replicas.size(); ++i) {
+         Replica replica = this._replicas.get(Math.floorMod(start + i, this._replicas.size()));
+         if (replica.downUntil > now)
+            continue;
+         try {
+            ConnectionPool.Entry conn = replica.pool.borrow();
+            this._replicaReads.incrementAndGet();
+            return conn;
+         } catch (SQLException e) {
+            down(replica, e);
+         } // end try
+      } // end for
+      this._fallbacks.incrementAndGet();
+      this._primaryReads.incrementAndGet();
+      return this._primary.borrow();
+   }// end borrow
+
+   /**
+    * Returns a connection to its pool. A replica whose connection broke
+    * while in use is taken out of rotation.
+    */
+   public void release(ConnectionPool.Entry conn) {
+      if (conn.getPool() != this._primary) {
+         try {
+            if (conn.getConnection().isClosed())
+               for (Replica replica : this._replicas)
+                  if (replica.pool == conn.getPool())
+                     down(replica, null);
+         } catch (SQLException ignored) {
+            // the pool drops the connection.
+         } // end try
+      } // end if
+      conn.getPool().release(conn);
+   }// end release
+
+   /**
+    * Records that the current key wrote, so its reads stay on the primary
+    * for a while.
+    */
+   public void wrote() {
+      this._writes.incrementAndGet();
+      if (this._replicas.isEmpty())
+         return;
+      long now = System.currentTimeMillis();
+      if (this._lastWrite.size() >= MAX_KEYS) {
+         Iterator<Long> it = this._lastWrite.values().iterator();
+         while (it.hasNext())
+            if (now - it.next() > this._stickyMillis)
+               it.remove();
+      } // end if
+      this._lastWrite.put(key(), now);
+   }// end wrote
+
+   /**
+    * @return reads on replicas and on the primary, writes, and reads that
+    *         fell back to the primary because no replica was up
+    */
+   public String report() {
+      List<String> down = new ArrayList<String>();
+      long now = System.currentTimeMillis();
+      for (Replica replica : this._replicas)
+         if (replica.downUntil > now)
+            down.add(replica.pool.getUrl());
+      return String.format("routing: %d replica reads, %d primary reads, %d writes, %d fallbacks, %d/%d replicas down%s",
+            this._replicaReads.get(), this._primaryReads.get(), this._writes.get(), this._fallbacks.get(),
+            down.size(), this._replicas.size(), down.isEmpty() ? "" : " " + down);
+   }// end report
+
+   /**
+    * Closes the replica pools; the primary pool belongs to the caller.
+    */
+   public void close() {
+      for (Replica replica : this._replicas)
+         replica.pool.close();
+   }// end close
+
+   /**
+    * @return the replica pools, for tools that want to look at them
+    */
+   public List<ConnectionPool> replicas() {
+      List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+      for (Replica replica : this._replicas)
+         pools.add(replica.pool);
+      return Collections.unmodifiableList(pools);
+   }// end replicas
+
+   private boolean sticky() {
+      Long last = this._lastWrite.get(key());
+      return last != null && System.currentTimeMillis() - last < this._stickyMillis;
+   }// end sticky
+
+   private String key() {
+      String key = this._key.get();
+      return key == null ? "" : key;
+   }// end key
+
+   private void down(Replica replica, SQLException e) {
+      if (replica.downUntil <= System.currentTimeMillis())
+         System.err.println("Replica " + replica.pool.getUrl() + " is down, reading from the primary for "
+               + this._retryMillis + " ms" + (e == null ? "" : ": " + e.getMessage()));
+      replica.downUntil = System.currentTimeMillis() + this._retryMillis;
+   }// end down
+
+   /*
+    * A statement is read-only when it is a SELECT (or WITH ... SELECT) that
+    * names none of the data-changing commands or session functions.
+    **/
+   boolean readOnly(String sql) {
+      Boolean readOnly = this._readOnly.get(sql);
+      if (readOnly == null) {
+         String head = sql.trim().toLowerCase();
+         readOnly = (head.startsWith("select") || head.startsWith("with")) && !WRITES.matcher(sql).matches();
+         if (this._readOnly.size() < MAX_KEYS)
+            this._readOnly.put(sql, readOnly);
+      } // end if
+      return readOnly;
+   }// end readOnly
+
+}// end ReplicaRouter
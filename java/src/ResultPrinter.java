@@ -0,0 +1,157 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class renders query results as aligned text tables. Values are
+ * stripped of their char(n) blank padding and re-padded to the width of
+ * their column. Output goes through one large buffered writer and is flushed
+ * once per block of rows instead of once per cell.
+ *
+ * Widths are computed per block of rows, so a result of any size is printed
+ * in bounded memory. Widths only ever grow from one block to the next.
+ */
+public class ResultPrinter implements Cafe.RowHandler {
+
+   // size of the output buffer in characters
+   private static final int BUFFER_SIZE = 1 << 16;
+   // rows collected before a block is rendered
+   public static final int DEFAULT_BLOCK_ROWS = 500;
+   // widest a column is padded to; longer values are printed in full
+   private static final int MAX_WIDTH = 60;
+
+   private final PrintWriter _out;
+   private final int _blockRows;
+   private final List<String[]> _block = new ArrayList<String[]>();
+   private String[] _header = null;
+   private int[] _widths = null;
+   private boolean _headerPrinted = false;
+   private long _rowCount = 0;
+
+   /**
+    * Creates a printer writing to standard out
+    */
+   public ResultPrinter() {
+      this(DEFAULT_BLOCK_ROWS);
+   }// end ResultPrinter
+
+   /**
+    * Creates a printer writing to standard out
+    *
+    * @param blockRows the number of rows aligned together
+    */
+   public ResultPrinter(int blockRows) {
+      this._out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE), false);
+      this._blockRows = blockRows;
+   }// end ResultPrinter
+
+   /**
+    * Sets the column names printed above the first row.
+    *
+    * @param names the column names
+    */
+   public void header(String[] names) {
+      this._header = names;
+   }// end header
+
+   /**
+    * Adds one row of already converted cells.
+    *
+    * @param cells the cell values, one per column
+    */
+   public void add(String[] cells) {
+      for (int i = 0; i < cells.length; ++i)
+         cells[i] = strip(cells[i]);
+      this._block.add(cells);
+      ++this._rowCount;
+      if (this._block.size() >= this._blockRows)
+         render();
+   }// end add
+
+   /**
+    * Adds the current row of a streamed query, taking the column names from
+    * the first row.
+    */
+   public void handle(Row row) throws SQLException {
+      int numCol = row.getColumnCount();
+      if (this._header == null) {
+         String[] names = new String[numCol];
+         for (int i = 1; i <= numCol; ++i)
+            names[i - 1] = row.getColumnName(i);
+         header(names);
+      } // end if
+      add(cells(row));
+   }// end handle
+
+   /**
+    * Renders the rows still pending and flushes the output.
+    *
+    * @return the number of rows printed since this printer was created
+    */
+   public long finish() {
+      render();
+      this._out.flush();
+      return this._rowCount;
+   }// end finish
+
+   /**
+    * Converts the current row of a query to cells in the form add expects.
+    */
+   static String[] cells(Row row) throws SQLException {
+      int numCol = row.getColumnCount();
+      String[] cells = new String[numCol];
+      for (int i = 1; i <= numCol; ++i)
+         cells[i - 1] = row.getString(i);
+      return cells;
+   }// end cells
+
+   private void render() {
+      if (this._block.isEmpty())
+         return;
+      int numCol = this._block.get(0).length;
+      if (this._widths == null) {
+         this._widths = new int[numCol];
+         if (this._header != null)
+            for (int i = 0; i < numCol; ++i)
+               this._widths[i] = this._header[i].length();
+      } // end if
+      for (String[] cells : this._block)
+         for (int i = 0; i < numCol; ++i)
+            this._widths[i] = Math.min(MAX_WIDTH, Math.max(this._widths[i], cells[i].length()));
+
+      if (!this._headerPrinted && this._header != null) {
+         line(this._header);
+         for (int i = 0; i < numCol; ++i) {
+            for (int w = 0; w < this._widths[i]; ++w)
+               this._out.write('-');
+            this._out.write(i + 1 < numCol ? "  " : "\n");
+         } // end for
+         this._headerPrinted = true;
+      } // end if
+      for (String[] cells : this._block)
+         line(cells);
+      this._block.clear();
+      this._out.flush();
+   }// end render
+
+   private void line(String[] cells) {
+      for (int i = 0; i < cells.length; ++i) {
+         this._out.write(cells[i]);
+         if (i + 1 == cells.length)
+            break;
+         for (int w = cells[i].length(); w < this._widths[i] + 2; ++w)
+            this._out.write(' ');
+      } // end for
+      this._out.write('\n');
+   }// end line
+
+   private static String strip(String value) {
+      if (value == null)
+         return "null";
+      return Cafe.rtrim(value);
+   }// end strip
+
+}// end ResultPrinter
@@ -0,0 +1,174 @@
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * This class is a read-only view of the current row of a streamed query.
+ * The typed accessors read values straight from the driver's buffers, so
+ * numbers and booleans are never turned into Strings on the way.
+ *
+ * A Row is only valid inside the RowHandler call it was passed to; the same
+ * object is reused for every row of a result. Rows that must outlive the
+ * call, e.g. the rows of several shards merged into one result, are copied
+ * with values() and handed on as a Row over those values.
+ */
+public final class Row {
+
+   private final ResultSet _rs;
+   private ResultSetMetaData _rsmd = null;
+
+   // the column names and values of a copied row; null for a ResultSet row
+   private final String[] _names;
+   private final Object[] _values;
+   private boolean _wasNull = false;
+
+   Row(ResultSet rs) {
+      this._rs = rs;
+      this._names = null;
+      this._values = null;
+   }// end Row
+
+   Row(String[] names, Object[] values) {
+      this._rs = null;
+      this._names = names;
+      this._values = values;
+   }// end Row
+
+   public int getInt(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getInt(column);
+      Object value = value(column);
+      return value == null ? 0 : ((Number) value).intValue();
+   }
+
+   public long getLong(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getLong(column);
+      Object value = value(column);
+      return value == null ? 0 : ((Number) value).longValue();
+   }
+
+   public float getFloat(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getFloat(column);
+      Object value = value(column);
+      return value == null ? 0 : ((Number) value).floatValue();
+   }
+
+   public double getDouble(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getDouble(column);
+      Object value = value(column);
+      return value == null ? 0 : ((Number) value).doubleValue();
+   }
+
+   /**
+    * @return a numeric value exactly, e.g. a price; null for SQL NULL
+    */
+   public BigDecimal getBigDecimal(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getBigDecimal(column);
+      Object value = value(column);
+      if (value == null || value instanceof BigDecimal)
+         return (BigDecimal) value;
+      return new BigDecimal(value.toString());
+   }
+
+   public boolean getBoolean(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getBoolean(column);
+      return Boolean.TRUE.equals(value(column));
+   }
+
+   public Timestamp getTimestamp(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getTimestamp(column);
+      return (Timestamp) value(column);
+   }
+
+   public String getString(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getString(column);
+      Object value = value(column);
+      return value == null ? null : value.toString();
+   }
+
+   public Object getObject(int column) throws SQLException {
+      if (this._rs != null)
+         return this._rs.getObject(column);
+      return value(column);
+   }
+
+   /**
+    * @return true when the last value read was SQL NULL
+    */
+   public boolean wasNull() throws SQLException {
+      if (this._rs != null)
+         return this._rs.wasNull();
+      return this._wasNull;
+   }
+
+   /**
+    * @return the number of columns in the result
+    */
+   public int getColumnCount() throws SQLException {
+      if (this._rs == null)
+         return this._names.length;
+      return metaData().getColumnCount();
+   }
+
+   /**
+    * @param column the column number, starting at 1
+    * @return the name of the column
+    */
+   public String getColumnName(int column) throws SQLException {
+      if (this._rs == null)
+         return this._names[column - 1];
+      return metaData().getColumnName(column);
+   }
+
+   /*
+    * @return the column names, to build copies of rows with
+    **/
+   String[] names() throws SQLException {
+      String[] names = new String[getColumnCount()];
+      for (int i = 1; i <= names.length; ++i)
+         names[i - 1] = getColumnName(i);
+      return names;
+   }// end names
+
+   /*
+    * @return a copy of the values of the current row
+    **/
+   Object[] values() throws SQLException {
+      Object[] values = new Object[getColumnCount()];
+      for (int i = 1; i <= values.length; ++i)
+         values[i - 1] = getObject(i);
+      return values;
+   }// end values
+
+   /*
+    * @return the value of a named column of a copied row
+    **/
+   Object value(String name) {
+      for (int i = 0; i < this._names.length; ++i)
+         if (this._names[i].equalsIgnoreCase(name))
+            return value(i + 1);
+      throw new IllegalArgumentException("No column " + name);
+   }// end value
+
+   private Object value(int column) {
+      Object value = this._values[column - 1];
+      this._wasNull = value == null;
+      return value;
+   }// end value
+
+   private ResultSetMetaData metaData() throws SQLException {
+      if (this._rsmd == null)
+         this._rsmd = this._rs.getMetaData();
+      return this._rsmd;
+   }// end metaData
+
+}// end Row
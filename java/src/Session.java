@@ -0,0 +1,107 @@
+/**
+ * This class is a logged in user: the login, the role read when the user
+ * authenticated and when that was. Role checks run against the session
+ * instead of the Users table. A session stops being valid when the user logs
+ * out or their login or type is changed, see SessionRegistry.
+ */
+public class Session {
+
+   /**
+    * The user types of the Users table.
+    */
+   public enum Role {
+      CUSTOMER, EMPLOYEE, MANAGER;
+
+      /**
+       * @return the value stored in Users.type for this role, e.g. "Manager"
+       */
+      public String type() {
+         return name().charAt(0) + name().substring(1).toLowerCase();
+      }// end type
+
+      /**
+       * @param type a user type in any case, blank padded or not
+       * @return the matching role, or null for an unknown type
+       */
+      public static Role lookup(String type) {
+         if (type != null) {
+            String trimmed = type.trim();
+            for (Role role : values())
+               if (role.name().equalsIgnoreCase(trimmed))
+                  return role;
+         } // end if
+         return null;
+      }// end lookup
+
+      /**
+       * @param type a Users.type value
+       * @return the matching role; unknown types are customers
+       */
+      public static Role parse(String type) {
+         Role role = lookup(type);
+         return role == null ? CUSTOMER : role;
+      }// end parse
+   }// end Role
+
+   private final String _login;
+   private final Role _role;
+   private final long _authenticatedAt;
+   private volatile long _lastUsedAt;
+   private volatile boolean _valid = true;
+
+   Session(String login, Role role) {
+      this._login = login;
+      this._role = role;
+      this._authenticatedAt = System.currentTimeMillis();
+      this._lastUsedAt = this._authenticatedAt;
+   }// end Session
+
+   public String login() {
+      return this._login;
+   }
+
+   public Role role() {
+      return this._role;
+   }
+
+   /**
+    * @return when the user authenticated, in milliseconds since the epoch
+    */
+   public long authenticatedAt() {
+      return this._authenticatedAt;
+   }
+
+   /**
+    * @return when the session was last used, in milliseconds since the epoch
+    */
+   public long lastUsedAt() {
+      return this._lastUsedAt;
+   }
+
+   /**
+    * Marks the session as used now.
+    */
+   public void touch() {
+      this._lastUsedAt = System.currentTimeMillis();
+   }
+
+   public boolean isManager() {
+      return this._role == Role.MANAGER;
+   }
+
+   /**
+    * @return true for employees and managers
+    */
+   public boolean isStaff() {
+      return this._role != Role.CUSTOMER;
+   }
+
+   public boolean isValid() {
+      return this._valid;
+   }
+
+   void invalidate() {
+      this._valid = false;
+   }
+
+}// end Session
@@ -0,0 +1,71 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class tracks the open sessions per login so they can be invalidated
+ * when the user's login or type changes. Changes made through this process
+ * invalidate at once; changes made by other clients arrive as user_changed
+ * notifications from the trigger in create_triggers.sql.
+ */
+public class SessionRegistry implements DbListener.Handler {
+
+   // channel the Users trigger notifies on, with the old login as payload
+   public static final String CHANNEL = "user_changed";
+
+   private final Map<String, Set<Session>> _sessions = new ConcurrentHashMap<String, Set<Session>>();
+
+   /**
+    * Opens a session for a user who just authenticated.
+    *
+    * @param login the user's login
+    * @param type the user's Users.type value
+    * @return the new session
+    */
+   public Session open(String login, String type) {
+      Session session = new Session(Cafe.rtrim(login), Session.Role.parse(type));
+      this._sessions.compute(session.login(), (k, open) -> {
+         if (open == null)
+            open = ConcurrentHashMap.<Session> newKeySet();
+         open.add(session);
+         return open;
+      });
+      return session;
+   }// end open
+
+   /**
+    * Ends a session, e.g. on log out.
+    */
+   public void close(Session session) {
+      session.invalidate();
+      // drops the login's entry with its last session
+      this._sessions.computeIfPresent(session.login(), (k, open) -> {
+         open.remove(session);
+         return open.isEmpty() ? null : open;
+      });
+   }// end close
+
+   /**
+    * Ends every session of a login, e.g. after its type was changed.
+    */
+   public void invalidate(String login) {
+      Set<Session> open = this._sessions.remove(Cafe.rtrim(login));
+      if (open != null)
+         for (Session session : open)
+            session.invalidate();
+   }// end invalidate
+
+   /**
+    * Invalidates the sessions of the changed login, or every session after a
+    * listener reconnect where notifications may have been missed.
+    */
+   public void onNotification(String channel, String payload) {
+      if (payload != null) {
+         invalidate(payload);
+         return;
+      } // end if
+      for (String login : this._sessions.keySet())
+         invalidate(login);
+   }// end onNotification
+
+}// end SessionRegistry
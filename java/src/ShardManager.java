@@ -0,0 +1,203 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * This class prepares the databases Orders and ItemStatus are split over
+ * (see ShardRouter). Run it with the global database and the shard URLs in
+ * the order Cafe is given them in -Dcafe.shards, once when the shards are
+ * created and again whenever the menu or the number of shards changes. For
+ * every shard it
+ *
+ *   - checks that the shard holds no order whose id belongs to another
+ *     shard, e.g. orders loaded before it became a shard,
+ *   - makes its orderid sequence count in steps of the number of shards,
+ *     from the shard's index, past every orderid handed out so far, so
+ *     orderids stay unique across shards, and
+ *   - copies the menu into it, since orders and items refer to menu items.
+ *     Items taken off the menu are left on the shards.
+ *
+ * Each shard is changed in its own transaction. Stop Cafe while changing the
+ * number of shards.
+ */
+public class ShardManager {
+
+   private static final String MENU_SQL = "SELECT itemName, type, price, description, imageURL FROM Menu";
+
+   private static final String COPY_MENU_SQL =
+         "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?) "
+               + "ON CONFLICT (itemName) DO UPDATE SET type = EXCLUDED.type, price = EXCLUDED.price, "
+               + "description = EXCLUDED.description, imageURL = EXCLUDED.imageURL";
+
+   private final Connection _global;
+   private final List<Connection> _shards;
+
+   /**
+    * @param global the connection to the database holding the users and the menu
+    * @param shards the connections to the shards, in the order of their index
+    */
+   public ShardManager(Connection global, List<Connection> shards) throws SQLException {
+      this._global = global;
+      this._shards = shards;
+      for (Connection shard : shards)
+         shard.setAutoCommit(false);
+   }// end ShardManager
+
+   /**
+    * @return the number of orders on a shard whose id maps to another shard
+    */
+   public long misplaced(int shard) throws SQLException {
+      PreparedStatement stmt = this._shards.get(shard).prepareStatement(
+            "SELECT count(*) FROM Orders WHERE orderid % ? <> ?");
+      try {
+         stmt.setInt(1, this._shards.size());
+         stmt.setInt(2, shard);
+         ResultSet rs = stmt.executeQuery();
+         rs.next();
+         long misplaced = rs.getLong(1);
+         rs.close();
+         this._shards.get(shard).commit();
+         return misplaced;
+      } finally {
+         stmt.close();
+      } // end try
+   }// end misplaced
+
+   /**
+    * @return the highest orderid a shard holds or its sequence handed out
+    */
+   public long lastOrderID(int shard) throws SQLException {
+      Statement stmt = this._shards.get(shard).createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT GREATEST((SELECT COALESCE(MAX(orderid), 0) FROM Orders), "
+               + "(SELECT last_value FROM orders_orderid_seq))");
+         rs.next();
+         long last = rs.getLong(1);
+         rs.close();
+         this._shards.get(shard).commit();
+         return last;
+      } finally {
+         stmt.close();
+      } // end try
+   }// end lastOrderID
+
+   /**
+    * Makes a shard's orderid sequence hand out only ids equal to the
+    * shard's index mod the number of shards, starting past after.
+    *
+    * @param after the highest orderid handed out on any shard
+    * @return the next orderid the shard will hand out
+    */
+   public long numberOrders(int shard, long after) throws SQLException {
+      int count = this._shards.size();
+      long next = after + 1 + Math.floorMod(shard - (after + 1), count);
+      Statement stmt = this._shards.get(shard).createStatement();
+      try {
+         // ALTER SEQUENCE takes no parameters; both values are numbers
+         stmt.executeUpdate("ALTER SEQUENCE orders_orderid_seq INCREMENT BY " + count + " RESTART WITH " + next);
+         this._shards.get(shard).commit();
+         return next;
+      } catch (SQLException e) {
+         this._shards.get(shard).rollback();
+         throw e;
+      } finally {
+         stmt.close();
+      } // end try
+   }// end numberOrders
+
+   /**
+    * Adds the menu items of the global database to a shard and updates the
+    * ones it already has.
+    *
+    * @return the number of menu items copied
+    */
+   public int copyMenu(int shard) throws SQLException {
+      Connection conn = this._shards.get(shard);
+      Statement read = this._global.createStatement();
+      PreparedStatement write = conn.prepareStatement(COPY_MENU_SQL);
+      try {
+         int items = 0;
+         ResultSet rs = read.executeQuery(MENU_SQL);
+         while (rs.next()) {
+            for (int i = 1; i <= 5; ++i)
+               write.setObject(i, rs.getObject(i));
+            write.addBatch();
+            ++items;
+         } // end while
+         rs.close();
+         write.executeBatch();
+         conn.commit();
+         return items;
+      } catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         read.close();
+         write.close();
+      } // end try
+   }// end copyMenu
+
+   /**
+    * The shard manager entry point
+    *
+    * @param args <dbname> <port> <user> <shard url>...
+    */
+   public static void main(String[] args) {
+      if (args.length < 4) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     ShardManager.class.getName() +
+                     " <dbname> <port> <user> <shard url>...");
+         return;
+      } // end if
+
+      int status = 0;
+      List<Connection> conns = new ArrayList<Connection>();
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver");
+         Properties props = new Properties();
+         props.setProperty("user", args[2]);
+         props.setProperty("password", "");
+         conns.add(DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], props));
+         for (int i = 3; i < args.length; ++i)
+            conns.add(DriverManager.getConnection(args[i], props));
+         ShardManager manager = new ShardManager(conns.get(0), conns.subList(1, conns.size()));
+         int shards = conns.size() - 1;
+
+         long last = 0;
+         for (int shard = 0; shard < shards; ++shard) {
+            long misplaced = manager.misplaced(shard);
+            if (misplaced > 0)
+               throw new IllegalStateException("Shard " + shard + " (" + args[3 + shard] + ") holds " + misplaced
+                     + " orders of other shards, move them first");
+            last = Math.max(last, manager.lastOrderID(shard));
+         } // end for
+         for (int shard = 0; shard < shards; ++shard) {
+            long next = manager.numberOrders(shard, last);
+            int items = manager.copyMenu(shard);
+            System.out.println("Shard " + shard + ": next orderid " + next + ", " + items + " menu items");
+         } // end for
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = 1;
+      } finally {
+         for (Connection conn : conns) {
+            try {
+               conn.close();
+            } catch (SQLException ignored) {
+               // exiting anyway.
+            } // end try
+         } // end for
+      } // end try
+      System.exit(status);
+   }// end main
+
+}// end ShardManager
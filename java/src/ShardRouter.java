@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class knows which database holds which orders when Orders and
+ * ItemStatus are split over several databases (shards), given in
+ * -Dcafe.shards as comma separated JDBC URLs. The database Cafe connects to
+ * stays the global node with Users, UserFavorites and AuditLog; every shard
+ * holds the orders, their items and the sales rollups of part of the users,
+ * and a copy of Menu that ShardManager keeps.
+ *
+ * The orders of a login all live on shard hash(login) mod N, so a user's
+ * history is read from one database. Each shard's orderid sequence hands out
+ * only numbers equal to the shard's index mod N (see ShardManager), so
+ * orderids are unique across shards and an order is found by its id alone.
+ *
+ * Cafe runs a statement that names a sharded table on the shard bound to the
+ * current thread with Cafe.onShard; without one, reads are run on every shard
+ * in turn. With no shards configured nothing changes.
+ */
+public class ShardRouter {
+
+   // tables that live on the shards
+   private static final Pattern SHARDED = Pattern.compile("(?i)\\b(orders|itemstatus|sales_hourly|item_sales_daily)\\b");
+
+   // templates remembered by touches before the cache stops growing
+   private static final int MAX_TEMPLATES = 10000;
+
+   private final List<ConnectionPool> _shards;
+   private final ThreadLocal<Integer> _current = new ThreadLocal<Integer>();
+   private final ExecutorService _executor;
+
+   // SQL template -> true when it names a sharded table
+   private final Map<String, Boolean> _touches = new ConcurrentHashMap<String, Boolean>();
+
+   private final AtomicLong _routed = new AtomicLong();
+   private final AtomicLong _broadcast = new AtomicLong();
+   private final AtomicLong _gathered = new AtomicLong();
+
+   /**
+    * @param shards the pools of the shards, in the order of their index; none to disable sharding
+    * @param threads the threads running scatter-gather queries in parallel
+    */
+   public ShardRouter(List<ConnectionPool> shards, int threads) {
+      this._shards = new ArrayList<ConnectionPool>(shards);
+      if (shards.isEmpty()) {
+         this._executor = null;
+         return;
+      } // end if
+      final AtomicInteger count = new AtomicInteger();
+      this._executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+         Thread thread = new Thread(runnable, "shard-" + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      });
+   }// end ShardRouter
+
+   /**
+    * @return true when Orders and ItemStatus are split over shards
+    */
+   public boolean isEnabled() {
+      return !this._shards.isEmpty();
+   }// end isEnabled
+
+   /**
+    * @return the number of shards
+    */
+   public int size() {
+      return this._shards.size();
+   }// end size
+
+   /**
+    * @return the index of the shard holding the orders of a login
+    */
+   public int shardOf(String login) {
+      // String.hashCode is fixed by the language, so every process agrees
+      return Math.floorMod(login.trim().hashCode(), this._shards.size());
+   }// end shardOf
+
+   /**
+    * @return the index of the shard holding an order
+    */
+   public int shardOfOrder(int orderID) {
+      return Math.floorMod(orderID, this._shards.size());
+   }// end shardOfOrder
+
+   /**
+    * @return the pool of a shard
+    */
+   public ConnectionPool pool(int shard) {
+      return this._shards.get(shard);
+   }// end pool
+
+   /**
+    * @return the shard pools, in the order of their index
+    */
+   public List<ConnectionPool> shards() {
+      return Collections.unmodifiableList(this._shards);
+   }// end shards
+
+   /*
+    * The shard bound to the current thread by Cafe.onShard, or null.
+    **/
+   Integer current() {
+      return this._current.get();
+   }// end current
+
+   void setCurrent(Integer shard) {
+      if (shard == null)
+         this._current.remove();
+      else
+         this._current.set(shard);
+   }// end setCurrent
+
+   /*
+    * The threads Cafe runs one task per shard on.
+    **/
+   ExecutorService executor() {
+      return this._executor;
+   }// end executor
+
+   /*
+    * True when sharding is on and a statement names a sharded table.
+    **/
+   boolean touches(String sql) {
+      if (this._shards.isEmpty())
+         return false;
+      Boolean touches = this._touches.get(sql);
+      if (touches == null) {
+         touches = SHARDED.matcher(sql).find();
+         if (this._touches.size() < MAX_TEMPLATES)
+            this._touches.put(sql, touches);
+      } // end if
+      return touches;
+   }// end touches
+
+   /*
+    * Counts a statement sent to one shard, to every shard in turn, or to
+    * every shard in parallel.
+    **/
+   void routed() {
+      this._routed.incrementAndGet();
+   }// end routed
+
+   void broadcast() {
+      this._broadcast.incrementAndGet();
+   }// end broadcast
+
+   void gathered() {
+      this._gathered.incrementAndGet();
+   }// end gathered
+
+   /**
+    * @return how many operations ran on one shard, on every shard in turn,
+    *         and on every shard in parallel
+    */
+   public String report() {
+      return String.format("sharding: %d shards, %d routed, %d broadcast, %d scatter-gather", this._shards.size(),
+            this._routed.get(), this._broadcast.get(), this._gathered.get());
+   }// end report
+
+   /**
+    * Stops the scatter-gather threads and closes the shard pools.
+    */
+   public void close() {
+      if (this._executor != null)
+         this._executor.shutdownNow();
+      for (ConnectionPool pool : this._shards)
+         pool.close();
+   }// end close
+
+}// end ShardRouter
@@ -0,0 +1,97 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded, least-recently-used cache of PreparedStatements
+ * for one physical connection, keyed by SQL template. A template is parsed and
+ * planned the first time it is seen; later calls only bind and execute.
+ *
+ * The cache belongs to its connection and is not thread-safe: only the thread
+ * currently using the connection may touch it.
+ */
+public class StatementCache {
+
+   // default number of templates kept open per connection
+   public static final int DEFAULT_CAPACITY = 64;
+
+   private final Connection _connection;
+   private final Map<String, PreparedStatement> _statements;
+
+   /**
+    * Creates a new statement cache for the given connection
+    *
+    * @param connection the physical connection statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, final int capacity) {
+      this._connection = connection;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= capacity)
+               return false;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }// end StatementCache
+
+   /**
+    * Returns the cached PreparedStatement for a template, preparing it on a
+    * miss. Parameters left over from a previous execution are cleared.
+    *
+    * @param template the SQL template with '?' placeholders
+    * @return a ready to bind statement
+    * @throws java.sql.SQLException when the statement can not be prepared
+    */
+   public PreparedStatement prepare(String template) throws SQLException {
+      PreparedStatement stmt = this._statements.get(template);
+      if (stmt == null || stmt.isClosed()) {
+         stmt = this._connection.prepareStatement(template);
+         this._statements.put(template, stmt);
+      } else {
+         stmt.clearParameters();
+      } // end if
+      return stmt;
+   }// end prepare
+
+   /**
+    * Drops a template from the cache, e.g. after its statement failed in a
+    * way that leaves it unusable.
+    *
+    * @param template the SQL template to forget
+    */
+   public void evict(String template) {
+      closeQuietly(this._statements.remove(template));
+   }// end evict
+
+   /**
+    * @return the number of statements currently cached
+    */
+   public int size() {
+      return this._statements.size();
+   }// end size
+
+   /**
+    * Closes every cached statement.
+    */
+   public void clear() {
+      for (PreparedStatement stmt : this._statements.values())
+         closeQuietly(stmt);
+      this._statements.clear();
+   }// end clear
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      if (stmt == null)
+         return;
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      } // end try
+   }// end closeQuietly
+
+}// end StatementCache
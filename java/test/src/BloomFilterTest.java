@@ -0,0 +1,65 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that BloomFilter never forgets a string and keeps close to the
+ * error rate it was sized for.
+ */
+public class BloomFilterTest {
+
+   @Test
+   public void findsEveryAddedString() {
+      BloomFilter filter = new BloomFilter(100000, 0.01);
+      for (int i = 0; i < 100000; ++i)
+         filter.add("user" + i);
+      for (int i = 0; i < 100000; ++i)
+         assertTrue("user" + i, filter.mightContain("user" + i));
+   }// end findsEveryAddedString
+
+   @Test
+   public void findsEveryStringAddedConcurrently() throws InterruptedException {
+      final BloomFilter filter = new BloomFilter(200000, 0.01);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 4; ++t) {
+         final int first = t * 50000;
+         Thread thread = new Thread(() -> {
+            for (int i = first; i < first + 50000; ++i)
+               filter.add("user" + i);
+         });
+         thread.start();
+         threads.add(thread);
+      } // end for
+      for (Thread thread : threads)
+         thread.join();
+      for (int i = 0; i < 200000; ++i)
+         assertTrue("user" + i, filter.mightContain("user" + i));
+   }// end findsEveryStringAddedConcurrently
+
+   @Test
+   public void keepsCloseToTheErrorRate() {
+      BloomFilter filter = new BloomFilter(100000, 0.01);
+      for (int i = 0; i < 100000; ++i)
+         filter.add("user" + i);
+      int falsePositives = 0;
+      for (int i = 0; i < 100000; ++i)
+         if (filter.mightContain("guest" + i))
+            ++falsePositives;
+      assertTrue(falsePositives + " false positives", falsePositives < 2000);
+   }// end keepsCloseToTheErrorRate
+
+   @Test
+   public void isFullPastItsCapacity() {
+      BloomFilter filter = new BloomFilter(10, 0.01);
+      for (int i = 0; i < 10; ++i)
+         filter.add("user" + i);
+      assertFalse(filter.isFull());
+      filter.add("user10");
+      assertTrue(filter.isFull());
+   }// end isFullPastItsCapacity
+
+}// end BloomFilterTest
@@ -0,0 +1,78 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that DataGenerator writes the same files whatever the number of
+ * threads, with orderids that grow with time and totals that match the items.
+ */
+public class DataGeneratorTest {
+
+   // more than two blocks, the last one partly filled
+   private static final long ORDERS = 150000;
+
+   private static final List<String> LOGINS = Arrays.asList("Bob", "Ann", "Joe;Jr", "Kim");
+   private static final List<String> ITEMS = Arrays.asList("Coffee", "Tea", "Muffin", "Bagel", "Tomato Soup");
+   private static final int[] CENTS = { 250, 199, 325, 275, 450 };
+
+   @Rule
+   public TemporaryFolder _folder = new TemporaryFolder();
+
+   private File generate(int threads) throws IOException {
+      File dir = this._folder.newFolder("threads" + threads);
+      new DataGenerator(LOGINS, ITEMS, CENTS, ORDERS).generate(dir, threads);
+      return dir;
+   }// end generate
+
+   private static byte[] read(File dir, String name) throws IOException {
+      return Files.readAllBytes(new File(dir, name).toPath());
+   }// end read
+
+   @Test
+   public void sameFilesForAnyNumberOfThreads() throws IOException {
+      File one = generate(1);
+      File four = generate(4);
+      assertArrayEquals(read(one, "orders.csv"), read(four, "orders.csv"));
+      assertArrayEquals(read(one, "itemStatus.csv"), read(four, "itemStatus.csv"));
+   }// end sameFilesForAnyNumberOfThreads
+
+   @Test
+   public void orderIDsGrowWithTimeAndTotalsMatchItems() throws IOException {
+      File dir = generate(3);
+      Map<String, Integer> cents = new HashMap<String, Integer>();
+      for (int i = 0; i < ITEMS.size(); ++i)
+         cents.put(ITEMS.get(i), CENTS[i]);
+      long[] itemCents = new long[(int) ORDERS + 1];
+      for (String line : Files.readAllLines(new File(dir, "itemStatus.csv").toPath())) {
+         String[] f = line.split(";");
+         itemCents[Integer.parseInt(f[0])] += cents.get(f[1]);
+      } // end for
+
+      List<String> orders = Files.readAllLines(new File(dir, "orders.csv").toPath());
+      assertEquals(ORDERS, orders.size());
+      String last = "";
+      for (int i = 0; i < orders.size(); ++i) {
+         // orderid;login;paid;timeStampRecieved;total, with ; in a login escaped
+         String[] f = orders.get(i).split("(?<!\\\\);");
+         int orderID = Integer.parseInt(f[0]);
+         assertEquals(i + 1, orderID);
+         assertTrue(f[3] + " before " + last, f[3].compareTo(last) >= 0);
+         last = f[3];
+         assertTrue("order " + orderID + " has no items", itemCents[orderID] > 0);
+         assertEquals("total of order " + orderID, itemCents[orderID], Math.round(Double.parseDouble(f[4]) * 100));
+      } // end for
+   }// end orderIDsGrowWithTimeAndTotalsMatchItems
+
+}// end DataGeneratorTest
@@ -0,0 +1,58 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that Exporter.ranges covers every orderid exactly once, in order,
+ * with at most the asked number of ranges of about the same size.
+ */
+public class ExporterTest {
+
+   private static void checkRanges(long min, long max, int count) {
+      List<long[]> ranges = Exporter.ranges(min, max, count);
+      assertTrue(ranges.size() + " ranges for " + count, ranges.size() <= count);
+      long size = (max - min + count) / count;
+      long next = min;
+      for (int i = 0; i < ranges.size(); ++i) {
+         long[] range = ranges.get(i);
+         assertEquals("start of range " + i, next, range[0]);
+         assertTrue("range " + i + " is empty", range[1] >= range[0]);
+         if (i < ranges.size() - 1)
+            assertEquals("size of range " + i, size, range[1] - range[0] + 1);
+         else
+            assertTrue("last range is larger", range[1] - range[0] + 1 <= size);
+         next = range[1] + 1;
+      } // end for
+      assertEquals("end of the last range", max + 1, next);
+   }// end checkRanges
+
+   @Test
+   public void coversEveryOrderIDOnce() {
+      for (long min : new long[] { 0, 1, 17, 1000000 })
+         for (long ids : new long[] { 1, 2, 3, 9, 10, 11, 100, 1001, 65536 })
+            for (int count : new int[] { 1, 2, 3, 4, 7, 16, 64 })
+               checkRanges(min, min + ids - 1, count);
+   }// end coversEveryOrderIDOnce
+
+   @Test
+   public void fewerIDsThanRanges() {
+      List<long[]> ranges = Exporter.ranges(5, 7, 16);
+      assertEquals(3, ranges.size());
+      assertEquals(5, ranges.get(0)[0]);
+      assertEquals(7, ranges.get(2)[1]);
+   }// end fewerIDsThanRanges
+
+   @Test
+   public void noOrders() {
+      assertTrue(Exporter.ranges(1, 0, 4).isEmpty());
+   }// end noOrders
+
+   @Test
+   public void largeOrderIDs() {
+      checkRanges(Integer.MAX_VALUE - 1000L, Integer.MAX_VALUE, 16);
+   }// end largeOrderIDs
+
+}// end ExporterTest
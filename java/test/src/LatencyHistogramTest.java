@@ -0,0 +1,92 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the bucket bounds of LatencyHistogram: values below 64 are exact,
+ * and larger ones are reported within 1/64 above their value.
+ */
+public class LatencyHistogramTest {
+
+   /*
+    * The upper bound of the bucket value falls into, read back through
+    * percentile with a larger value recorded so max does not cap it.
+    **/
+   private static long upperBound(long value) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(value);
+      histogram.record(Long.MAX_VALUE / 2);
+      return histogram.percentile(0.5);
+   }// end upperBound
+
+   @Test
+   public void smallValuesAreExact() {
+      for (long value = 0; value < 64; ++value)
+         assertEquals(value, upperBound(value));
+   }// end smallValuesAreExact
+
+   @Test
+   public void largeValuesAreWithinOneSixtyFourth() {
+      for (int bits = 6; bits < 60; ++bits) {
+         long power = 1L << bits;
+         for (long value : new long[] { power - 1, power, power + 1, power + power / 3, 2 * power - 1 }) {
+            long upper = upperBound(value);
+            assertTrue(value + " reported as " + upper, upper >= value);
+            assertTrue(value + " reported as " + upper, upper - value <= value / 64);
+         } // end for
+      } // end for
+   }// end largeValuesAreWithinOneSixtyFourth
+
+   @Test
+   public void bucketsDoNotOverlap() {
+      // the last value of a bucket and the first of the next one
+      for (int bits = 6; bits < 60; ++bits) {
+         long power = 1L << bits;
+         long step = power / 64;
+         for (long start = power; start < 2 * power; start += step) {
+            assertEquals(start + step - 1, upperBound(start));
+            assertEquals(start + step - 1, upperBound(start + step - 1));
+         } // end for
+      } // end for
+   }// end bucketsDoNotOverlap
+
+   @Test
+   public void percentilesCountRanks() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (long value = 1; value <= 100; ++value)
+         histogram.record(value);
+      assertEquals(100, histogram.count());
+      assertEquals(50.5, histogram.mean(), 1e-9);
+      assertEquals(100, histogram.max());
+      assertEquals(1, histogram.percentile(0.0));
+      assertEquals(50, histogram.percentile(0.5));
+      assertEquals(99, histogram.percentile(0.99));
+      assertEquals(100, histogram.percentile(1.0));
+   }// end percentilesCountRanks
+
+   @Test
+   public void negativeValuesCountAsZero() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(-5);
+      assertEquals(1, histogram.count());
+      assertEquals(0, histogram.max());
+      assertEquals(0, histogram.percentile(1.0));
+   }// end negativeValuesCountAsZero
+
+   @Test
+   public void addMergesCounts() {
+      LatencyHistogram a = new LatencyHistogram();
+      LatencyHistogram b = new LatencyHistogram();
+      a.record(10);
+      b.record(1000);
+      b.record(20);
+      a.add(b);
+      assertEquals(3, a.count());
+      assertEquals(1000, a.max());
+      assertEquals(20, a.percentile(0.5));
+      assertEquals(2, b.count());
+      assertEquals(3, a.copy().count());
+   }// end addMergesCounts
+
+}// end LatencyHistogramTest
@@ -0,0 +1,73 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the ranking order MenuSearch promises: exact name, exact type, name
+ * prefix, word of name prefix, name substring, type or description
+ * substring, then typos.
+ */
+public class MenuSearchTest {
+
+   private static final String[][] ITEMS = {
+      { "Coffee", "Drinks", "Hot brewed coffee" },
+      { "Iced Coffee", "Drinks", "Cold brewed" },
+      { "Mocha", "Drinks", "Espresso with chocolate" },
+      { "Coffee Cake", "Sweets", "Cake with cinnamon" },
+      { "Tomato Soup", "Soup", "Creamy tomato" },
+      { "Hot Chocolate", "Drinks", "Cocoa with milk" },
+   };
+
+   private static MenuSearch search() {
+      List<String[]> rows = new ArrayList<String[]>();
+      BigDecimal[] prices = new BigDecimal[ITEMS.length];
+      for (int i = 0; i < ITEMS.length; ++i) {
+         rows.add(new String[] { ITEMS[i][0], ITEMS[i][1], ITEMS[i][2], "" });
+         prices[i] = new BigDecimal("3.50");
+      } // end for
+      return new MenuSnapshot(rows, prices, 0).search();
+   }// end search
+
+   @Test
+   public void exactNameBeforePrefixes() {
+      // Coffee is the name, Coffee Cake starts with it, Iced Coffee has it as a word
+      assertArrayEquals(new int[] { 0, 3, 1 }, search().search("coffee", 10));
+   }// end exactNameBeforePrefixes
+
+   @Test
+   public void exactTypeInMenuOrder() {
+      assertArrayEquals(new int[] { 0, 1, 2, 5 }, search().search("drinks", 10));
+   }// end exactTypeInMenuOrder
+
+   @Test
+   public void nameBeforeDescription() {
+      // both start a word with choc, but only Hot Chocolate in its name
+      assertArrayEquals(new int[] { 5, 2 }, search().search("choc", 10));
+      // inside Hot Chocolate's name, inside Mocha's description, then Cold as a typo
+      assertArrayEquals(new int[] { 5, 2, 1 }, search().search("colate", 10));
+   }// end nameBeforeDescription
+
+   @Test
+   public void ignoresCaseAndPunctuation() {
+      assertEquals(5, search().search("HOT-chocolate!", 10)[0]);
+      assertEquals(5, search().find("hot chocolate"));
+   }// end ignoresCaseAndPunctuation
+
+   @Test
+   public void toleratesTypos() {
+      assertArrayEquals(new int[] { 5, 2 }, search().search("choclate", 10));
+      assertEquals(" Did you mean Tomato Soup?", search().didYouMean("tomatoe"));
+   }// end toleratesTypos
+
+   @Test
+   public void respectsTheLimit() {
+      assertArrayEquals(new int[] { 0, 1 }, search().search("drinks", 2));
+      assertArrayEquals(new int[0], search().search("", 10));
+   }// end respectsTheLimit
+
+}// end MenuSearchTest
@@ -1,6 +1,14 @@
 #!/bin/bash
+# Usage: create_db.sh [dbname] [empty]
+# Creates the tables in dbname ($USER"_DB" by default) and loads the data in
+# data/, unless the second argument is "empty", e.g. for a shard.
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
-psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
-psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
-psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
+DB=${1:-$USER"_DB"}
+psql -h localhost -p $PGPORT $DB < $DIR/../src/create_tables.sql
+psql -h localhost -p $PGPORT $DB < $DIR/../src/create_indexes.sql
+if [ "$2" != "empty" ]; then
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/load_data.sql
+fi
 
+# brings the schema up to date, then installs create_triggers.sql
+bash $DIR/migrate.sh $DB
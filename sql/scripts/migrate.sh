@@ -0,0 +1,26 @@
+#!/bin/bash
+# Applies the migrations in sql/src/migrations that the database has not seen
+# yet, in order of their number, each in its own transaction. Applied
+# versions are recorded in the schema_version table. Migrations may recreate
+# tables, so the triggers are reinstalled after any of them ran. The database
+# is the first argument, $USER"_DB" by default.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+DB=${1:-$USER"_DB"}
+PSQL="psql -h localhost -p $PGPORT -q -v ON_ERROR_STOP=1 $DB"
+
+$PSQL -c "CREATE TABLE IF NOT EXISTS schema_version (version integer PRIMARY KEY, name text NOT NULL, applied timestamp NOT NULL DEFAULT now())" || exit 1
+CURRENT=$($PSQL -tA -c "SELECT COALESCE(MAX(version), 0) FROM schema_version") || exit 1
+APPLIED=0
+
+for FILE in $(ls $DIR/../src/migrations/*.sql | sort); do
+   NAME=$(basename $FILE .sql)
+   VERSION=$((10#${NAME%%_*}))
+   [ $VERSION -le $CURRENT ] && continue
+   echo "Applying migration $NAME"
+   ( cat $FILE; echo "INSERT INTO schema_version (version, name) VALUES ($VERSION, '$NAME');" ) | $PSQL -1 -f - || exit 1
+   APPLIED=1
+done
+
+if [ $APPLIED -eq 1 ]; then
+   $PSQL -1 -f $DIR/../src/create_triggers.sql || exit 1
+fi
@@ -1,3 +1,10 @@
+DROP TABLE IF EXISTS schema_version;
+DROP TABLE IF EXISTS orders_archive CASCADE;
+DROP TABLE IF EXISTS itemstatus_archive CASCADE;
+DROP TABLE IF EXISTS sales_hourly;
+DROP TABLE IF EXISTS item_sales_daily;
+DROP TABLE IF EXISTS UserFavorites;
+DROP TABLE IF EXISTS AuditLog;
 DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
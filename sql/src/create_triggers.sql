@@ -0,0 +1,149 @@
+-- Tell listening Cafe clients the menu changed so they drop their cached copy.
+CREATE OR REPLACE FUNCTION notify_menu_changed() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('menu_changed', TG_OP);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS menu_changed ON Menu;
+CREATE TRIGGER menu_changed
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Menu
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_menu_changed();
+
+-- Tell listening Cafe clients a user's login or type changed so they end that user's sessions.
+CREATE OR REPLACE FUNCTION notify_user_changed() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('user_changed', rtrim(OLD.login));
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS user_changed ON Users;
+CREATE TRIGGER user_changed
+AFTER UPDATE OF login, type OR DELETE ON Users
+FOR EACH ROW EXECUTE PROCEDURE notify_user_changed();
+
+-- Tell listening Cafe clients about new and renamed logins so their login filters know them.
+CREATE OR REPLACE FUNCTION notify_user_added() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('user_added', rtrim(NEW.login));
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS user_added ON Users;
+CREATE TRIGGER user_added
+AFTER INSERT OR UPDATE OF login ON Users
+FOR EACH ROW EXECUTE PROCEDURE notify_user_added();
+
+-- Push order and item changes to listening Cafe clients so the kitchen feed
+-- (KitchenQueue) stays current without polling. The payloads carry the new
+-- row, with the free-text field last so it may contain the separator:
+--   order_changed: U|orderid|paid|total|timeStampRecieved|login or D|orderid
+--   item_changed:  U|orderid|status|lastUpdated|itemName or D|orderid|itemName
+CREATE OR REPLACE FUNCTION notify_order_changed() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('order_changed', 'D|' || OLD.orderid);
+	ELSE
+		PERFORM pg_notify('order_changed', concat_ws('|', 'U', NEW.orderid, COALESCE(NEW.paid, false), NEW.total,
+			to_char(NEW.timeStampRecieved, 'YYYY-MM-DD HH24:MI:SS.US'), COALESCE(rtrim(NEW.login), '')));
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS order_changed ON Orders;
+CREATE TRIGGER order_changed
+AFTER INSERT OR UPDATE OR DELETE ON Orders
+FOR EACH ROW EXECUTE PROCEDURE notify_order_changed();
+
+CREATE OR REPLACE FUNCTION notify_item_changed() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('item_changed', concat_ws('|', 'D', OLD.orderid, rtrim(OLD.itemName)));
+	ELSE
+		PERFORM pg_notify('item_changed', concat_ws('|', 'U', NEW.orderid, COALESCE(rtrim(NEW.status), ''),
+			to_char(NEW.lastUpdated, 'YYYY-MM-DD HH24:MI:SS.US'), rtrim(NEW.itemName)));
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS item_changed ON ItemStatus;
+CREATE TRIGGER item_changed
+AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+FOR EACH ROW EXECUTE PROCEDURE notify_item_changed();
+
+-- Keep the sales rollups of migration 004 current, see SalesReport in Cafe.
+CREATE OR REPLACE FUNCTION rollup_order(orderid integer, received timestamp, n integer, amount numeric, paid boolean)
+RETURNS void AS $$
+BEGIN
+	INSERT INTO sales_hourly AS s (hour, slot, orders, revenue, paidOrders, paidRevenue)
+	VALUES (date_trunc('hour', received), orderid % 8, n, amount,
+		CASE WHEN paid THEN n ELSE 0 END, CASE WHEN paid THEN amount ELSE 0 END)
+	ON CONFLICT (hour, slot) DO UPDATE SET
+		orders = s.orders + EXCLUDED.orders,
+		revenue = s.revenue + EXCLUDED.revenue,
+		paidOrders = s.paidOrders + EXCLUDED.paidOrders,
+		paidRevenue = s.paidRevenue + EXCLUDED.paidRevenue;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION sales_order_changed() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		PERFORM rollup_order(OLD.orderid, OLD.timeStampRecieved, -1, -OLD.total, OLD.paid IS TRUE);
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		PERFORM rollup_order(NEW.orderid, NEW.timeStampRecieved, 1, NEW.total, NEW.paid IS TRUE);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS sales_order ON Orders;
+CREATE TRIGGER sales_order
+AFTER INSERT OR DELETE ON Orders
+FOR EACH ROW EXECUTE PROCEDURE sales_order_changed();
+
+DROP TRIGGER IF EXISTS sales_order_update ON Orders;
+CREATE TRIGGER sales_order_update
+AFTER UPDATE OF paid, total, timeStampRecieved ON Orders
+FOR EACH ROW WHEN (OLD.paid IS DISTINCT FROM NEW.paid OR OLD.total <> NEW.total
+	OR OLD.timeStampRecieved <> NEW.timeStampRecieved)
+EXECUTE PROCEDURE sales_order_changed();
+
+CREATE OR REPLACE FUNCTION sales_item_changed() RETURNS trigger AS $$
+DECLARE
+	item ItemStatus;
+	n integer;
+	received timestamp;
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		item := OLD;
+		n := -1;
+	ELSE
+		item := NEW;
+		n := 1;
+	END IF;
+	received := item.orderTime;
+	IF received IS NULL THEN
+		SELECT timeStampRecieved INTO received FROM Orders WHERE Orders.orderid = item.orderid;
+		IF received IS NULL THEN
+			RETURN NULL;
+		END IF;
+	END IF;
+	UPDATE sales_hourly SET items = items + n WHERE hour = date_trunc('hour', received) AND slot = item.orderid % 8;
+	INSERT INTO item_sales_daily AS s (day, itemName, slot, sold)
+	VALUES (received::date, item.itemName, item.orderid % 8, n)
+	ON CONFLICT (day, itemName, slot) DO UPDATE SET sold = s.sold + EXCLUDED.sold;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS sales_item ON ItemStatus;
+CREATE TRIGGER sales_item
+AFTER INSERT OR DELETE ON ItemStatus
+FOR EACH ROW EXECUTE PROCEDURE sales_item_changed();
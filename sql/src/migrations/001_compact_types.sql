@@ -0,0 +1,41 @@
+-- Replace the blank-padded char(n) columns with varchar and the real money
+-- columns with numeric(8,2). Values lose their padding on the way, so the
+-- Java code no longer compares against literals like 'Manager '.
+
+-- the foreign keys have to go while the key columns change type
+ALTER TABLE ItemStatus DROP CONSTRAINT IF EXISTS itemstatus_orderid_fkey;
+ALTER TABLE ItemStatus DROP CONSTRAINT IF EXISTS itemstatus_itemname_fkey;
+
+ALTER TABLE Users
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN phoneNum TYPE varchar(16) USING rtrim(phoneNum),
+	ALTER COLUMN password TYPE varchar(50) USING rtrim(password),
+	ALTER COLUMN favItems TYPE varchar(400) USING rtrim(favItems),
+	ALTER COLUMN type TYPE varchar(8) USING rtrim(type),
+	ADD CONSTRAINT users_type_check CHECK (type IN ('Customer', 'Employee', 'Manager'));
+
+ALTER TABLE Menu
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN type TYPE varchar(20) USING rtrim(type),
+	ALTER COLUMN price TYPE numeric(8,2) USING round(price::numeric, 2),
+	ALTER COLUMN description TYPE varchar(400) USING rtrim(description),
+	ALTER COLUMN imageURL TYPE varchar(256) USING rtrim(imageURL);
+
+ALTER TABLE Orders
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN total TYPE numeric(8,2) USING round(total::numeric, 2);
+
+ALTER TABLE ItemStatus
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN status TYPE varchar(20) USING rtrim(status),
+	ALTER COLUMN comments TYPE varchar(130) USING rtrim(comments);
+
+ALTER TABLE ItemStatus
+	ADD CONSTRAINT itemstatus_orderid_fkey FOREIGN KEY (orderid) REFERENCES Orders(orderid),
+	ADD CONSTRAINT itemstatus_itemname_fkey FOREIGN KEY (itemName) REFERENCES Menu(itemName);
+
+-- the rewrite left the tables without statistics
+ANALYZE Users;
+ANALYZE Menu;
+ANALYZE Orders;
+ANALYZE ItemStatus;
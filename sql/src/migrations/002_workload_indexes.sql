@@ -0,0 +1,9 @@
+-- Indexes matching the queries Cafe runs against Orders, see PlanChecker.
+
+-- a customer's orders newest first: order history and the order pager
+CREATE INDEX IF NOT EXISTS orders_login_time ON Orders (login, timeStampRecieved DESC, orderid DESC);
+
+-- the unpaid orders staff work through; small because paid orders drop out
+CREATE INDEX IF NOT EXISTS orders_unpaid_time ON Orders (timeStampRecieved DESC, orderid DESC) WHERE paid = false;
+
+ANALYZE Orders;
@@ -0,0 +1,74 @@
+-- Range-partition Orders by timeStampRecieved, one partition per month, and
+-- keep each order's items in the ItemStatus partition of the same month. To
+-- partition on it, ItemStatus gets the received time of its order as
+-- orderTime. Needs PostgreSQL 12 or later.
+--
+-- Partitioned tables only enforce keys that include the partition key, so
+-- the Orders key becomes (orderid, timeStampRecieved) and the ItemStatus key
+-- a unique (orderid, itemName, orderTime); orderids still come from one
+-- sequence.
+-- Items written without orderTime go to itemstatus_default until
+-- PartitionManager moves them. PartitionManager also creates the partitions
+-- of coming months and archives old paid ones.
+
+-- Creates the Orders and ItemStatus partitions of every month from
+-- from_time to to_time that do not exist yet, archived ones included.
+CREATE OR REPLACE FUNCTION cafe_add_partitions(from_time timestamp, to_time timestamp) RETURNS integer AS $$
+DECLARE
+	first_day timestamp := date_trunc('month', from_time);
+	suffix text;
+	created integer := 0;
+BEGIN
+	WHILE first_day <= to_time LOOP
+		suffix := to_char(first_day, 'YYYY_MM');
+		IF to_regclass('orders_p' || suffix) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+				'orders_p' || suffix, first_day, first_day + interval '1 month');
+			EXECUTE format('CREATE TABLE %I PARTITION OF ItemStatus FOR VALUES FROM (%L) TO (%L)',
+				'itemstatus_p' || suffix, first_day, first_day + interval '1 month');
+			created := created + 1;
+		END IF;
+		first_day := first_day + interval '1 month';
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER TABLE ItemStatus ADD COLUMN orderTime timestamp;
+UPDATE ItemStatus i SET orderTime = o.timeStampRecieved FROM Orders o WHERE o.orderid = i.orderid;
+
+-- swap in partitioned tables of the same shape; the sequence has to survive the old Orders
+ALTER TABLE Orders RENAME TO orders_unpartitioned;
+ALTER TABLE ItemStatus RENAME TO itemstatus_unpartitioned;
+ALTER SEQUENCE orders_orderid_seq OWNED BY NONE;
+
+CREATE TABLE Orders (LIKE orders_unpartitioned INCLUDING DEFAULTS) PARTITION BY RANGE (timeStampRecieved);
+CREATE TABLE ItemStatus (LIKE itemstatus_unpartitioned INCLUDING DEFAULTS) PARTITION BY RANGE (orderTime);
+CREATE TABLE itemstatus_default PARTITION OF ItemStatus DEFAULT;
+
+-- every month with orders, at least the last one, and three months ahead
+SELECT cafe_add_partitions(
+	LEAST(MIN(timeStampRecieved), now()::timestamp - interval '1 month'),
+	GREATEST(MAX(timeStampRecieved), now()::timestamp + interval '3 months'))
+FROM orders_unpartitioned;
+
+INSERT INTO Orders SELECT * FROM orders_unpartitioned;
+INSERT INTO ItemStatus SELECT * FROM itemstatus_unpartitioned;
+DROP TABLE itemstatus_unpartitioned;
+DROP TABLE orders_unpartitioned;
+ALTER SEQUENCE orders_orderid_seq OWNED BY Orders.orderid;
+
+ALTER TABLE Orders ADD CONSTRAINT orders_pkey PRIMARY KEY (orderid, timeStampRecieved);
+ALTER TABLE ItemStatus
+	ADD CONSTRAINT itemstatus_order_item_key UNIQUE (orderid, itemName, orderTime),
+	ADD CONSTRAINT itemstatus_orderid_fkey FOREIGN KEY (orderid, orderTime) REFERENCES Orders (orderid, timeStampRecieved),
+	ADD CONSTRAINT itemstatus_itemname_fkey FOREIGN KEY (itemName) REFERENCES Menu (itemName);
+
+CREATE INDEX index1 ON Orders (timeStampRecieved);
+CREATE INDEX orders_login_time ON Orders (login, timeStampRecieved DESC, orderid DESC);
+CREATE INDEX orders_unpaid_time ON Orders (timeStampRecieved DESC, orderid DESC) WHERE paid = false;
+CREATE INDEX index2 ON ItemStatus (orderid);
+
+-- autovacuum analyzes the partitions but never the partitioned parents
+ANALYZE Orders;
+ANALYZE ItemStatus;
@@ -0,0 +1,36 @@
+-- Sales rollups for the manager reports, kept current by the sales_order and
+-- sales_item triggers in create_triggers.sql so reports never read Orders or
+-- ItemStatus. Each order lands in one of eight slots (orderid % 8) so that
+-- concurrent orders do not all wait on the same rollup row; reports sum the
+-- slots.
+
+-- orders, revenue and items per hour the orders were received in
+CREATE TABLE sales_hourly(
+	hour timestamp NOT NULL,
+	slot smallint NOT NULL,
+	orders integer NOT NULL DEFAULT 0,
+	revenue numeric(12,2) NOT NULL DEFAULT 0,
+	paidOrders integer NOT NULL DEFAULT 0,
+	paidRevenue numeric(12,2) NOT NULL DEFAULT 0,
+	items integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(hour, slot));
+
+-- how often each menu item was ordered per day
+CREATE TABLE item_sales_daily(
+	day date NOT NULL,
+	itemName varchar(50) NOT NULL,
+	slot smallint NOT NULL,
+	sold integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(day, itemName, slot));
+
+-- the history so far; the triggers take over once migrate.sh installs them
+INSERT INTO sales_hourly (hour, slot, orders, revenue, paidOrders, paidRevenue, items)
+SELECT date_trunc('hour', o.timeStampRecieved), o.orderid % 8, count(*), SUM(o.total),
+	count(*) FILTER (WHERE o.paid), COALESCE(SUM(o.total) FILTER (WHERE o.paid), 0), COALESCE(SUM(i.n), 0)
+FROM Orders o LEFT JOIN (SELECT orderid, count(*) AS n FROM ItemStatus GROUP BY orderid) i ON i.orderid = o.orderid
+GROUP BY 1, 2;
+
+INSERT INTO item_sales_daily (day, itemName, slot, sold)
+SELECT o.timeStampRecieved::date, i.itemName, i.orderid % 8, count(*)
+FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid
+GROUP BY 1, 2, 3;
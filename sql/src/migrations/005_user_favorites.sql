@@ -0,0 +1,18 @@
+-- Favorites as a relation instead of the comma-joined Users.favItems, so
+-- Cafe can reorder them in one statement. Names in favItems are matched to
+-- the menu ignoring case; the ones not on the menu are dropped. favItems is
+-- left in place but no longer read.
+CREATE TABLE UserFavorites(
+	login varchar(50) NOT NULL REFERENCES Users(login) ON UPDATE CASCADE ON DELETE CASCADE,
+	itemName varchar(50) NOT NULL REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE,
+	position smallint NOT NULL,
+	PRIMARY KEY(login, itemName));
+
+INSERT INTO UserFavorites (login, itemName, position)
+SELECT DISTINCT ON (u.login, m.itemName) u.login, m.itemName, f.n
+FROM Users u
+CROSS JOIN LATERAL unnest(string_to_array(u.favItems, ',')) WITH ORDINALITY f(item, n)
+JOIN Menu m ON lower(m.itemName) = lower(btrim(f.item))
+ORDER BY u.login, m.itemName, f.n;
+
+ANALYZE UserFavorites;
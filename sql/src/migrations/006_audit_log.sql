@@ -0,0 +1,12 @@
+-- Who changed which profile or order, appended in batches by AuditLog.
+-- subject is the login or orderid changed, detail the new value; passwords
+-- are never recorded.
+CREATE TABLE AuditLog(
+	id bigserial PRIMARY KEY,
+	at timestamp NOT NULL,
+	actor varchar(50),
+	action varchar(32) NOT NULL,
+	subject varchar(50) NOT NULL,
+	detail text);
+
+CREATE INDEX auditlog_subject ON AuditLog (subject, at);